@@ -7,11 +7,17 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.modules.QualityOfLifeModule;
 import org.mitre.synthea.world.agents.Payer;
@@ -53,6 +59,69 @@ public class DataStore {
    */
   private boolean fileBased;
 
+  /** All pooled connections. */
+  private final List<PooledConnection> connections;
+  /** Pooled connections that are not currently in use. */
+  private final BlockingQueue<PooledConnection> pool;
+  /** Number of persons to store on a connection before committing. */
+  private final int commitInterval;
+  /** Whether the pooled connections have been closed, or could not be opened. */
+  private volatile boolean closed;
+
+  /**
+   * A long-lived connection, with the statements that have been prepared on it. The inserts for
+   * each statement are batched until the connection is committed.
+   */
+  private static class PooledConnection {
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements;
+    /** Persons whose rows are in the batches, waiting to be committed. */
+    private final List<Person> pending;
+
+    private PooledConnection(Connection connection) {
+      this.connection = connection;
+      this.statements = new LinkedHashMap<String, PreparedStatement>();
+      this.pending = new ArrayList<Person>();
+    }
+
+    private PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement statement = statements.get(sql);
+      if (statement == null) {
+        statement = connection.prepareStatement(sql);
+        statements.put(sql, statement);
+      }
+      return statement;
+    }
+
+    private void commit() throws SQLException {
+      for (PreparedStatement statement : statements.values()) {
+        statement.executeBatch();
+      }
+      connection.commit();
+      pending.clear();
+    }
+
+    private void rollback() {
+      try {
+        for (PreparedStatement statement : statements.values()) {
+          statement.clearBatch();
+        }
+        connection.rollback();
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+      pending.clear();
+    }
+
+    private void close() throws SQLException {
+      for (PreparedStatement statement : statements.values()) {
+        statement.close();
+      }
+      statements.clear();
+      connection.close();
+    }
+  }
+
   /**
    * Create a new DataStore, specifying whether or not the data store
    * should be written to file (fileBased = true) or kept in-memory (fileBased = false).
@@ -60,6 +129,10 @@ public class DataStore {
    */
   public DataStore(boolean fileBased) {
     this.fileBased = fileBased;
+    int poolSize = Integer.parseInt(Config.get("generate.database.pool_size", "4"));
+    this.commitInterval = Integer.parseInt(Config.get("generate.database.commit_interval", "1"));
+    this.connections = new ArrayList<PooledConnection>();
+    this.pool = new ArrayBlockingQueue<PooledConnection>(Math.max(1, poolSize));
     try (Connection connection = getConnection()) {
       // TODO all of this needs to be done generically, ORM?
       // but this is faster in the short term
@@ -204,13 +277,33 @@ public class DataStore {
 
       connection.commit();
 
+      for (int i = 0; i < Math.max(1, poolSize); i++) {
+        PooledConnection pooled = new PooledConnection(getConnection());
+        connections.add(pooled);
+        pool.add(pooled);
+      }
     } catch (SQLException e) {
       e.printStackTrace();
+      // without its schema and pooled connections the store is unusable; rather than leaving
+      // store() waiting for a connection that never comes, it reports every person as not stored
+      System.out.println("Unable to set up the database; no persons will be stored in it.");
+      closed = true;
+      for (PooledConnection connection : connections) {
+        try {
+          connection.close();
+        } catch (SQLException closeError) {
+          closeError.printStackTrace();
+        }
+      }
+      connections.clear();
+      pool.clear();
     }
   }
 
   /**
-   * Get a SQL Connection to this Data Store.
+   * Get a new SQL Connection to this Data Store. The connection is not pooled and should be
+   * closed by the caller. Persons that have been stored but not yet committed are not visible
+   * to it until {@link #flush()} is called.
    * @return Connection - a SQL Connection to this Data Store.
    * @throws SQLException on errors creating the connection.
    */
@@ -222,203 +315,231 @@ public class DataStore {
   }
 
   /**
-   * Store a Person and related information into this Data Store.
+   * Store a Person and related information into this Data Store. The rows are added to batches
+   * on one of the pooled connections, and only written once "generate.database.commit_interval"
+   * persons have been stored on that connection, or when {@link #flush()} is called.
+   *
+   * <p>If storing or committing fails, the batches of the connection are rolled back, which
+   * includes the rows of any earlier persons that are waiting to be committed on it. Those
+   * persons are stored again one at a time, so that only the persons that really fail are lost,
+   * and each of those is reported.
+   *
+   * <p>Persons are not stored once the data store is closed, or if it could not be set up.
    * @param p - Person to store.
    * @return Whether or not the person was completely stored (true) or not (false).
    */
-  @SuppressWarnings("unchecked")
   public boolean store(Person p) {
+    if (closed) {
+      return false;
+    }
+    PooledConnection connection;
+    try {
+      connection = pool.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    try {
+      addRows(connection, p);
+      connection.pending.add(p);
+      if (connection.pending.size() >= commitInterval) {
+        connection.commit();
+      }
+      return true;
+    } catch (SQLException | RuntimeException e) {
+      e.printStackTrace();
+      return storeSeparately(connection, p);
+    } finally {
+      pool.offer(connection);
+    }
+  }
+
+  /**
+   * Roll back a connection, and store the persons that were waiting to be committed on it
+   * again, committing each one on its own.
+   * @param connection - the connection that failed.
+   * @param failed - the person being stored when it failed, or null.
+   * @return Whether or not the failed person, and all the pending persons, were stored.
+   */
+  private boolean storeSeparately(PooledConnection connection, Person failed) {
+    List<Person> persons = new ArrayList<Person>(connection.pending);
+    if (failed != null && !persons.contains(failed)) {
+      persons.add(failed);
+    }
+    connection.rollback();
+    boolean success = true;
+    for (Person person : persons) {
+      try {
+        addRows(connection, person);
+        connection.commit();
+      } catch (SQLException | RuntimeException e) {
+        connection.rollback();
+        System.out.printf("Unable to store person %s in the database, error: %s\n",
+            person.attributes.get(Person.ID), e.getMessage());
+        success = false;
+      }
+    }
+    return success;
+  }
+
+  /**
+   * Add the rows for a Person and related information to the batches of a connection.
+   * @param connection - the connection to add the rows to.
+   * @param p - Person to store.
+   * @throws SQLException on errors preparing or adding the rows.
+   */
+  @SuppressWarnings("unchecked")
+  private void addRows(PooledConnection connection, Person p) throws SQLException {
     String personID = (String) p.attributes.get(Person.ID);
 
-    try (Connection connection = getConnection()) {
-      // CREATE TABLE IF NOT EXISTS PERSON (id varchar, name varchar, date_of_birth bigint,
-      // date_of_death bigint, race varchar, gender varchar, socioeconomic_status varchar)
-      PreparedStatement stmt = connection.prepareStatement(
-          "INSERT INTO PERSON "
-          + "(id, name, date_of_birth, date_of_death, race, gender, socioeconomic_status) "
-          + "VALUES (?,?,?,?,?,?,?);");
+    // CREATE TABLE IF NOT EXISTS PERSON (id varchar, name varchar, date_of_birth bigint,
+    // date_of_death bigint, race varchar, gender varchar, socioeconomic_status varchar)
+    PreparedStatement stmt = connection.prepare(
+        "INSERT INTO PERSON "
+        + "(id, name, date_of_birth, date_of_death, race, gender, socioeconomic_status) "
+        + "VALUES (?,?,?,?,?,?,?);");
+
+    stmt.setString(1, personID);
+    stmt.setString(2, (String) p.attributes.get(Person.NAME));
+    stmt.setLong(3, (long) p.attributes.get(Person.BIRTHDATE));
+    if (p.record.death == null) {
+      stmt.setObject(4, null);
+    } else {
+      stmt.setLong(4, p.record.death);
+    }
 
-      stmt.setString(1, personID);
-      stmt.setString(2, (String) p.attributes.get(Person.NAME));
-      stmt.setLong(3, (long) p.attributes.get(Person.BIRTHDATE));
-      if (p.record.death == null) {
-        stmt.setObject(4, null);
-      } else {
-        stmt.setLong(4, p.record.death);
-      }
+    stmt.setString(5, (String) p.attributes.get(Person.RACE));
+    stmt.setString(6, (String) p.attributes.get(Person.GENDER));
+    stmt.setString(7, (String) p.attributes.get(Person.SOCIOECONOMIC_CATEGORY));
 
-      stmt.setString(5, (String) p.attributes.get(Person.RACE));
-      stmt.setString(6, (String) p.attributes.get(Person.GENDER));
-      stmt.setString(7, (String) p.attributes.get(Person.SOCIOECONOMIC_CATEGORY));
+    stmt.addBatch();
 
-      stmt.execute();
+    // CREATE TABLE IF NOT EXISTS ATTRIBUTE (person_id varchar, name varchar, value varchar)
+    stmt = connection.prepare("INSERT INTO ATTRIBUTE (person_id, name, value) VALUES (?,?,?);");
+    for (Map.Entry<String, Object> attr : p.attributes.entrySet()) {
+      stmt.setString(1, personID);
+      stmt.setString(2, attr.getKey());
+      stmt.setString(3, String.valueOf(attr.getValue()));
+      stmt.addBatch();
+    }
 
-      // CREATE TABLE IF NOT EXISTS ATTRIBUTE (person_id varchar, name varchar, value varchar)
-      stmt = connection
-          .prepareStatement("INSERT INTO ATTRIBUTE (person_id, name, value) VALUES (?,?,?);");
-      for (Map.Entry<String, Object> attr : p.attributes.entrySet()) {
+    // Add coverage to database
+    stmt = connection.prepare("INSERT INTO COVERAGE (person_id, year, category) VALUES (?,?,?);");
+    Payer[] payerHistory = p.getPayerHistory();
+    long birthdate = (long) p.attributes.get(Person.BIRTHDATE);
+    int birthYear = Utilities.getYear(birthdate);
+    for (int i = 0; i < payerHistory.length; i++) {
+      if (payerHistory[i] == null) {
+        break;
+      } else {
         stmt.setString(1, personID);
-        stmt.setString(2, attr.getKey());
-        stmt.setString(3, String.valueOf(attr.getValue()));
+        stmt.setInt(2, (birthYear + i));
+        stmt.setString(3, payerHistory[i].getOwnership());
         stmt.addBatch();
       }
-      stmt.executeBatch();
-
-      // Add coverage to database
-      stmt = connection
-          .prepareStatement("INSERT INTO COVERAGE (person_id, year, category) VALUES (?,?,?);");
-      Payer[] payerHistory = p.getPayerHistory();
-      long birthdate = (long) p.attributes.get(Person.BIRTHDATE);
-      int birthYear = Utilities.getYear(birthdate);
-      for (int i = 0; i < payerHistory.length; i++) {
-        if (payerHistory[i] == null) {
-          break;
-        } else {
-          stmt.setString(1, personID);
-          stmt.setInt(2, (birthYear + i));
-          stmt.setString(3, payerHistory[i].getOwnership());
-          stmt.addBatch();
-        }
-      }
-      stmt.executeBatch();
+    }
 
-      for (Encounter encounter : p.record.encounters) {
-        String encounterID = UUID.randomUUID().toString();
+    for (Encounter encounter : p.record.encounters) {
+      String encounterID = UUID.randomUUID().toString();
 
-        String providerID = null;
+      String providerID = null;
 
-        if (encounter.provider != null) {
-          providerID = encounter.provider.getResourceID();
+      if (encounter.provider != null) {
+        providerID = encounter.provider.getResourceID();
+      }
+
+      // CREATE TABLE IF NOT EXISTS ENCOUNTER (id varchar, person_id varchar, provider_id varchar,
+      // name varchar, type varchar, start bigint, stop bigint, code varchar, display varchar,
+      // system varchar)
+      stmt = connection.prepare(
+          "INSERT INTO ENCOUNTER "
+          + "(id, person_id, provider_id, name, type, start, stop, code, display, system) "
+          + "VALUES (?,?,?,?,?,?,?,?,?,?);");
+      stmt.setString(1, encounterID);
+      stmt.setString(2, personID);
+      stmt.setString(3, providerID);
+      stmt.setString(4, encounter.name);
+      stmt.setString(5, encounter.type);
+      stmt.setLong(6, encounter.start);
+      stmt.setLong(7, encounter.stop);
+      if (encounter.codes.isEmpty()) {
+        stmt.setString(8, null);
+        stmt.setString(9, null);
+        stmt.setString(10, null);
+      } else {
+        Code code = encounter.codes.get(0);
+        stmt.setString(8, code.code);
+        stmt.setString(9, code.display);
+        stmt.setString(10, code.system);
+      }
+      stmt.addBatch();
+
+      for (HealthRecord.Entry condition : encounter.conditions) {
+        // CREATE TABLE IF NOT EXISTS CONDITION (person_id varchar, name varchar, type varchar,
+        // start bigint, stop bigint, code varchar, display varchar, system varchar)
+        stmt = connection.prepare(
+            "INSERT INTO CONDITION "
+            + "(person_id, name, type, start, stop, code, display, system) "
+            + "VALUES (?,?,?,?,?,?,?,?);");
+        stmt.setString(1, personID);
+        stmt.setString(2, condition.name);
+        stmt.setString(3, condition.type);
+        stmt.setLong(4, condition.start);
+        stmt.setLong(5, condition.stop);
+        if (condition.codes.isEmpty()) {
+          stmt.setString(6, null);
+          stmt.setString(7, null);
+          stmt.setString(8, null);
+        } else {
+          Code code = condition.codes.get(0);
+          stmt.setString(6, code.code);
+          stmt.setString(7, code.display);
+          stmt.setString(8, code.system);
         }
+        stmt.addBatch();
+      }
 
-        // CREATE TABLE IF NOT EXISTS ENCOUNTER (id varchar, person_id varchar, provider_id varchar,
-        // name varchar, type varchar, start bigint, stop bigint, code varchar, display varchar,
-        // system varchar)
-        stmt = connection.prepareStatement(
-            "INSERT INTO ENCOUNTER "
-            + "(id, person_id, provider_id, name, type, start, stop, code, display, system) "
-            + "VALUES (?,?,?,?,?,?,?,?,?,?);");
-        stmt.setString(1, encounterID);
+      for (Report report : encounter.reports) {
+        String reportID = UUID.randomUUID().toString();
+
+        // CREATE TABLE IF NOT EXISTS REPORT (id varchar, person_id varchar, encounter_id varchar,
+        // name varchar, type varchar, start bigint, code varchar, display varchar, system
+        // varchar)
+        stmt = connection.prepare(
+            "INSERT INTO report "
+            + "(id, person_id, encounter_id, name, type, start, code, display, system) "
+            + "VALUES (?,?,?,?,?,?,?,?,?);");
+        stmt.setString(1, reportID);
         stmt.setString(2, personID);
-        stmt.setString(3, providerID);
-        stmt.setString(4, encounter.name);
-        stmt.setString(5, encounter.type);
-        stmt.setLong(6, encounter.start);
-        stmt.setLong(7, encounter.stop);
-        if (encounter.codes.isEmpty()) {
+        stmt.setString(3, encounterID);
+        stmt.setString(4, report.name);
+        stmt.setString(5, report.type);
+        stmt.setLong(6, report.start);
+        if (report.codes.isEmpty()) {
+          stmt.setString(7, null);
           stmt.setString(8, null);
           stmt.setString(9, null);
-          stmt.setString(10, null);
         } else {
-          Code code = encounter.codes.get(0);
-          stmt.setString(8, code.code);
-          stmt.setString(9, code.display);
-          stmt.setString(10, code.system);
+          Code code = report.codes.get(0);
+          stmt.setString(7, code.code);
+          stmt.setString(8, code.display);
+          stmt.setString(9, code.system);
         }
-        stmt.execute();
-
-        for (HealthRecord.Entry condition : encounter.conditions) {
-          // CREATE TABLE IF NOT EXISTS CONDITION (person_id varchar, name varchar, type varchar,
-          // start bigint, stop bigint, code varchar, display varchar, system varchar)
-          stmt = connection.prepareStatement(
-              "INSERT INTO CONDITION "
-              + "(person_id, name, type, start, stop, code, display, system) "
-              + "VALUES (?,?,?,?,?,?,?,?);");
-          stmt.setString(1, personID);
-          stmt.setString(2, condition.name);
-          stmt.setString(3, condition.type);
-          stmt.setLong(4, condition.start);
-          stmt.setLong(5, condition.stop);
-          if (condition.codes.isEmpty()) {
-            stmt.setString(6, null);
-            stmt.setString(7, null);
-            stmt.setString(8, null);
-          } else {
-            Code code = condition.codes.get(0);
-            stmt.setString(6, code.code);
-            stmt.setString(7, code.display);
-            stmt.setString(8, code.system);
-          }
-          stmt.execute();
-        }
-
-        for (Report report : encounter.reports) {
-          String reportID = UUID.randomUUID().toString();
 
-          // CREATE TABLE IF NOT EXISTS REPORT (id varchar, person_id varchar, encounter_id varchar,
-          // name varchar, type varchar, start bigint, code varchar, display varchar, system
-          // varchar)
-          stmt = connection.prepareStatement(
-              "INSERT INTO report "
-              + "(id, person_id, encounter_id, name, type, start, code, display, system) "
-              + "VALUES (?,?,?,?,?,?,?,?,?);");
-          stmt.setString(1, personID);
-          stmt.setString(2, encounterID);
-          stmt.setString(3, reportID);
-          stmt.setString(4, report.name);
-          stmt.setString(5, report.type);
-          stmt.setLong(6, report.start);
-          if (report.codes.isEmpty()) {
-            stmt.setString(7, null);
-            stmt.setString(8, null);
-            stmt.setString(9, null);
-          } else {
-            Code code = report.codes.get(0);
-            stmt.setString(7, code.code);
-            stmt.setString(8, code.display);
-            stmt.setString(9, code.system);
-          }
-
-          stmt.execute();
-
-          for (Observation observation : report.observations) {
-            // CREATE TABLE IF NOT EXISTS OBSERVATION (person_id varchar, encounter_id varchar,
-            // report_id varchar, name varchar, type varchar, start bigint, value varchar, unit
-            // varchar, code varchar, display varchar, system varchar)
-            stmt = connection.prepareStatement(
-                "INSERT INTO OBSERVATION "
-                + "(person_id, encounter_id, report_id, name, type, start, value, unit, "
-                + "code, display, system) "
-                + "VALUES (?,?,?,?,?,?,?,?,?,?,?);");
-            stmt.setString(1, personID);
-            stmt.setString(2, encounterID);
-            stmt.setString(3, reportID); // report ID
-            stmt.setString(4, observation.name);
-            stmt.setString(5, observation.type);
-            stmt.setLong(6, observation.start);
-            stmt.setString(7, String.valueOf(observation.value));
-            stmt.setString(8, observation.unit);
-            if (observation.codes.isEmpty()) {
-              stmt.setString(9, null);
-              stmt.setString(10, null);
-              stmt.setString(11, null);
-            } else {
-              Code code = observation.codes.get(0);
-              stmt.setString(9, code.code);
-              stmt.setString(10, code.display);
-              stmt.setString(11, code.system);
-            }
-
-            stmt.execute();
-          }
-        }
+        stmt.addBatch();
 
-        for (Observation observation : encounter.observations) {
-          if (observation.report != null) {
-            // only add observations that don't belong to a diagnostic report here
-            continue;
-          }
+        for (Observation observation : report.observations) {
           // CREATE TABLE IF NOT EXISTS OBSERVATION (person_id varchar, encounter_id varchar,
           // report_id varchar, name varchar, type varchar, start bigint, value varchar, unit
           // varchar, code varchar, display varchar, system varchar)
-          stmt = connection.prepareStatement(
+          stmt = connection.prepare(
               "INSERT INTO OBSERVATION "
               + "(person_id, encounter_id, report_id, name, type, start, value, unit, "
               + "code, display, system) "
               + "VALUES (?,?,?,?,?,?,?,?,?,?,?);");
           stmt.setString(1, personID);
           stmt.setString(2, encounterID);
-          stmt.setString(3, null); // report ID
+          stmt.setString(3, reportID); // report ID
           stmt.setString(4, observation.name);
           stmt.setString(5, observation.type);
           stmt.setLong(6, observation.start);
@@ -435,217 +556,299 @@ public class DataStore {
             stmt.setString(11, code.system);
           }
 
-          stmt.execute();
+          stmt.addBatch();
         }
+      }
 
-        for (Procedure procedure : encounter.procedures) {
-          // CREATE TABLE IF NOT EXISTS PROCEDURE (person_id varchar, encounter_id varchar, name
-          // varchar, type varchar, start bigint, stop bigint, code varchar, display varchar, system
-          // varchar)
-          stmt = connection.prepareStatement(
-              "INSERT INTO PROCEDURE "
-              + "(person_id, encounter_id, name, type, start, stop, code, display, system) "
-              + "VALUES (?,?,?,?,?,?,?,?,?);");
-          stmt.setString(1, personID);
-          stmt.setString(2, encounterID);
-
-          stmt.setString(3, procedure.name);
-          stmt.setString(4, procedure.type);
-          stmt.setLong(5, procedure.start);
-          stmt.setLong(6, procedure.stop);
-          if (procedure.codes.isEmpty()) {
-            stmt.setString(7, null);
-            stmt.setString(8, null);
-            stmt.setString(9, null);
-          } else {
-            Code code = procedure.codes.get(0);
-            stmt.setString(7, code.code);
-            stmt.setString(8, code.display);
-            stmt.setString(9, code.system);
-          }
-
-          stmt.execute();
+      for (Observation observation : encounter.observations) {
+        if (observation.report != null) {
+          // only add observations that don't belong to a diagnostic report here
+          continue;
         }
-
-        for (Medication medication : encounter.medications) {
-          // CREATE TABLE IF NOT EXISTS MEDICATION (id varchar, person_id varchar, provider_id
-          // varchar, name varchar, type varchar, start bigint, stop bigint, code varchar, display
-          // varchar, system varchar)
-          stmt = connection.prepareStatement(
-              "INSERT INTO MEDICATION "
-              + "(id, person_id, provider_id, name, type, start, stop, code, display, system) "
-              + "VALUES (?,?,?,?,?,?,?,?,?,?);");
-          String medicationID = UUID.randomUUID().toString();
-          stmt.setString(1, medicationID);
-          stmt.setString(2, personID);
-          stmt.setString(3, providerID);
-          stmt.setString(4, medication.name);
-          stmt.setString(5, medication.type);
-          stmt.setLong(6, medication.start);
-          stmt.setLong(7, medication.stop);
-          if (medication.codes.isEmpty()) {
-            stmt.setString(8, null);
-            stmt.setString(9, null);
-            stmt.setString(10, null);
-          } else {
-            Code code = medication.codes.get(0);
-            stmt.setString(8, code.code);
-            stmt.setString(9, code.display);
-            stmt.setString(10, code.system);
-          }
-          stmt.execute();
-
-          // CREATE TABLE IF NOT EXISTS CLAIM (id varchar, person_id varchar, encounter_id varchar,
-          // medication_id varchar, time bigint, cost decimal)
-          stmt = connection.prepareStatement(
-              "INSERT INTO CLAIM "
-              + "(id, person_id, encounter_id, medication_id, time, cost) "
-              + "VALUES (?,?,?,?,?,?)");
-          stmt.setString(1, UUID.randomUUID().toString());
-          stmt.setString(2, personID);
-          stmt.setString(3, encounterID);
-          stmt.setString(4, medicationID);
-          stmt.setLong(5, medication.start);
-          stmt.setBigDecimal(6, new BigDecimal(medication.claim.getTotalClaimCost()));
-          stmt.execute();
-
+        // CREATE TABLE IF NOT EXISTS OBSERVATION (person_id varchar, encounter_id varchar,
+        // report_id varchar, name varchar, type varchar, start bigint, value varchar, unit
+        // varchar, code varchar, display varchar, system varchar)
+        stmt = connection.prepare(
+            "INSERT INTO OBSERVATION "
+            + "(person_id, encounter_id, report_id, name, type, start, value, unit, "
+            + "code, display, system) "
+            + "VALUES (?,?,?,?,?,?,?,?,?,?,?);");
+        stmt.setString(1, personID);
+        stmt.setString(2, encounterID);
+        stmt.setString(3, null); // report ID
+        stmt.setString(4, observation.name);
+        stmt.setString(5, observation.type);
+        stmt.setLong(6, observation.start);
+        stmt.setString(7, String.valueOf(observation.value));
+        stmt.setString(8, observation.unit);
+        if (observation.codes.isEmpty()) {
+          stmt.setString(9, null);
+          stmt.setString(10, null);
+          stmt.setString(11, null);
+        } else {
+          Code code = observation.codes.get(0);
+          stmt.setString(9, code.code);
+          stmt.setString(10, code.display);
+          stmt.setString(11, code.system);
         }
 
-        for (HealthRecord.Entry immunization : encounter.immunizations) {
-          // CREATE TABLE IF NOT EXISTS IMMUNIZATION (person_id varchar, encounter_id varchar, name
-          // varchar, type varchar, start bigint, code varchar, display varchar, system varchar)
-          stmt = connection.prepareStatement(
-              "INSERT INTO IMMUNIZATION "
-              + "(person_id, encounter_id, name, type, start, code, display, system) "
-              + "VALUES (?,?,?,?,?,?,?,?);");
-          stmt.setString(1, personID);
-          stmt.setString(2, encounterID);
-          stmt.setString(3, immunization.name);
-          stmt.setString(4, immunization.type);
-          stmt.setLong(5, immunization.start);
-          if (immunization.codes.isEmpty()) {
-            stmt.setString(6, null);
-            stmt.setString(7, null);
-            stmt.setString(8, null);
-          } else {
-            Code code = immunization.codes.get(0);
-            stmt.setString(6, code.code);
-            stmt.setString(7, code.display);
-            stmt.setString(8, code.system);
-          }
-          stmt.execute();
-        }
+        stmt.addBatch();
+      }
 
-        for (CarePlan careplan : encounter.careplans) {
-          // CREATE TABLE IF NOT EXISTS careplan (id varchar, person_id varchar, provider_id
-          // varchar, name varchar, type varchar, start bigint, stop bigint, code varchar, display
-          // varchar, system varchar)
-          stmt = connection.prepareStatement(
-              "INSERT INTO careplan "
-              + "(id, person_id, provider_id, name, type, start, stop, code, display, system) "
-              + "VALUES (?,?,?,?,?,?,?,?,?,?);");
-          stmt.setString(1, UUID.randomUUID().toString());
-          stmt.setString(2, personID);
-          if (encounter.provider == null) {
-            stmt.setString(3, null);
-          } else {
-            stmt.setString(3, encounter.provider.getResourceID());
-          }
-          stmt.setString(4, careplan.name);
-          stmt.setString(5, careplan.type);
-          stmt.setLong(6, careplan.start);
-          stmt.setLong(7, careplan.stop);
-          if (careplan.codes.isEmpty()) {
-            stmt.setString(8, null);
-            stmt.setString(9, null);
-            stmt.setString(10, null);
-          } else {
-            Code code = careplan.codes.get(0);
-            stmt.setString(8, code.code);
-            stmt.setString(9, code.display);
-            stmt.setString(10, code.system);
-          }
-          stmt.execute();
+      for (Procedure procedure : encounter.procedures) {
+        // CREATE TABLE IF NOT EXISTS PROCEDURE (person_id varchar, encounter_id varchar, name
+        // varchar, type varchar, start bigint, stop bigint, code varchar, display varchar, system
+        // varchar)
+        stmt = connection.prepare(
+            "INSERT INTO PROCEDURE "
+            + "(person_id, encounter_id, name, type, start, stop, code, display, system) "
+            + "VALUES (?,?,?,?,?,?,?,?,?);");
+        stmt.setString(1, personID);
+        stmt.setString(2, encounterID);
+
+        stmt.setString(3, procedure.name);
+        stmt.setString(4, procedure.type);
+        stmt.setLong(5, procedure.start);
+        stmt.setLong(6, procedure.stop);
+        if (procedure.codes.isEmpty()) {
+          stmt.setString(7, null);
+          stmt.setString(8, null);
+          stmt.setString(9, null);
+        } else {
+          Code code = procedure.codes.get(0);
+          stmt.setString(7, code.code);
+          stmt.setString(8, code.display);
+          stmt.setString(9, code.system);
         }
 
-        for (ImagingStudy imagingStudy : encounter.imagingStudies) {
-          // CREATE TABLE IF NOT EXISTS IMAGING_STUDY (uid varchar,
-          // person_id varchar, encounter_id varchar, start bigint,
-          // modality_code varchar, modality_display varchar, modality_system varchar,
-          // bodysite_code varchar, bodysite_display varchar, bodysite_system varchar,
-          // sop_class varchar)
-
-          stmt = connection.prepareStatement(
-              "INSERT INTO IMAGING_STUDY "
-              + "(id, uid, person_id, encounter_id, start, modality_code, modality_display, "
-              + "modality_system, bodysite_code, bodysite_display, bodysite_system, sop_class) "
-              + "VALUES (?,?,?,?,?,?,?,?,?,?,?,?);");
-          stmt.setString(1, UUID.randomUUID().toString());
-          stmt.setString(2, imagingStudy.dicomUid);
-          stmt.setString(3, personID);
-          stmt.setString(4, encounterID);
-          stmt.setLong(5, imagingStudy.start);
-
-          Code modality = imagingStudy.series.get(0).modality;
-          stmt.setString(6, modality.code);
-          stmt.setString(7, modality.display);
-          stmt.setString(8, modality.system);
-
-          Code bodySite = imagingStudy.series.get(0).bodySite;
-          stmt.setString(9, bodySite.code);
-          stmt.setString(10, bodySite.display);
-          stmt.setString(11, bodySite.system);
-
-          Code sopClass = imagingStudy.series.get(0).instances.get(0).sopClass;
-          stmt.setString(12, sopClass.code);
-
-          stmt.execute();
+        stmt.addBatch();
+      }
+
+      for (Medication medication : encounter.medications) {
+        // CREATE TABLE IF NOT EXISTS MEDICATION (id varchar, person_id varchar, provider_id
+        // varchar, name varchar, type varchar, start bigint, stop bigint, code varchar, display
+        // varchar, system varchar)
+        stmt = connection.prepare(
+            "INSERT INTO MEDICATION "
+            + "(id, person_id, provider_id, name, type, start, stop, code, display, system) "
+            + "VALUES (?,?,?,?,?,?,?,?,?,?);");
+        String medicationID = UUID.randomUUID().toString();
+        stmt.setString(1, medicationID);
+        stmt.setString(2, personID);
+        stmt.setString(3, providerID);
+        stmt.setString(4, medication.name);
+        stmt.setString(5, medication.type);
+        stmt.setLong(6, medication.start);
+        stmt.setLong(7, medication.stop);
+        if (medication.codes.isEmpty()) {
+          stmt.setString(8, null);
+          stmt.setString(9, null);
+          stmt.setString(10, null);
+        } else {
+          Code code = medication.codes.get(0);
+          stmt.setString(8, code.code);
+          stmt.setString(9, code.display);
+          stmt.setString(10, code.system);
         }
+        stmt.addBatch();
 
         // CREATE TABLE IF NOT EXISTS CLAIM (id varchar, person_id varchar, encounter_id varchar,
         // medication_id varchar, time bigint, cost decimal)
-        stmt = connection.prepareStatement(
+        stmt = connection.prepare(
             "INSERT INTO CLAIM "
             + "(id, person_id, encounter_id, medication_id, time, cost) "
             + "VALUES (?,?,?,?,?,?)");
         stmt.setString(1, UUID.randomUUID().toString());
         stmt.setString(2, personID);
         stmt.setString(3, encounterID);
-        stmt.setString(4, null);
-        stmt.setLong(5, encounter.start);
-        stmt.setBigDecimal(6, new BigDecimal(encounter.claim.getTotalClaimCost()));
-        stmt.execute();
+        stmt.setString(4, medicationID);
+        stmt.setLong(5, medication.start);
+        stmt.setBigDecimal(6, new BigDecimal(medication.claim.getTotalClaimCost()));
+        stmt.addBatch();
 
       }
 
-      Map<Integer, Double> qalys =
-          (Map<Integer, Double>) p.attributes.get(QualityOfLifeModule.QALY);
-      Map<Integer, Double> dalys =
-          (Map<Integer, Double>) p.attributes.get(QualityOfLifeModule.DALY);
-      Map<Integer, Double> qols =
-          (Map<Integer, Double>) p.attributes.get(QualityOfLifeModule.QOLS);
-      if (qols != null) {
-        // TODO - would rather have something more generic
-        stmt = connection.prepareStatement(
-            "INSERT INTO QUALITY_OF_LIFE (person_id, year, qol, qaly, daly) VALUES (?,?,?,?,?);");
-
-        for (Integer year : qols.keySet()) {
-          stmt.setString(1, personID);
-          stmt.setInt(2, year);
-          stmt.setDouble(3, qols.get(year));
-          stmt.setDouble(4, qalys.get(year));
-          stmt.setDouble(5, dalys.get(year));
-          stmt.addBatch();
+      for (HealthRecord.Entry immunization : encounter.immunizations) {
+        // CREATE TABLE IF NOT EXISTS IMMUNIZATION (person_id varchar, encounter_id varchar, name
+        // varchar, type varchar, start bigint, code varchar, display varchar, system varchar)
+        stmt = connection.prepare(
+            "INSERT INTO IMMUNIZATION "
+            + "(person_id, encounter_id, name, type, start, code, display, system) "
+            + "VALUES (?,?,?,?,?,?,?,?);");
+        stmt.setString(1, personID);
+        stmt.setString(2, encounterID);
+        stmt.setString(3, immunization.name);
+        stmt.setString(4, immunization.type);
+        stmt.setLong(5, immunization.start);
+        if (immunization.codes.isEmpty()) {
+          stmt.setString(6, null);
+          stmt.setString(7, null);
+          stmt.setString(8, null);
+        } else {
+          Code code = immunization.codes.get(0);
+          stmt.setString(6, code.code);
+          stmt.setString(7, code.display);
+          stmt.setString(8, code.system);
         }
-        stmt.executeBatch();
+        stmt.addBatch();
       }
 
-      connection.commit();
+      for (CarePlan careplan : encounter.careplans) {
+        // CREATE TABLE IF NOT EXISTS careplan (id varchar, person_id varchar, provider_id
+        // varchar, name varchar, type varchar, start bigint, stop bigint, code varchar, display
+        // varchar, system varchar)
+        stmt = connection.prepare(
+            "INSERT INTO careplan "
+            + "(id, person_id, provider_id, name, type, start, stop, code, display, system) "
+            + "VALUES (?,?,?,?,?,?,?,?,?,?);");
+        stmt.setString(1, UUID.randomUUID().toString());
+        stmt.setString(2, personID);
+        if (encounter.provider == null) {
+          stmt.setString(3, null);
+        } else {
+          stmt.setString(3, encounter.provider.getResourceID());
+        }
+        stmt.setString(4, careplan.name);
+        stmt.setString(5, careplan.type);
+        stmt.setLong(6, careplan.start);
+        stmt.setLong(7, careplan.stop);
+        if (careplan.codes.isEmpty()) {
+          stmt.setString(8, null);
+          stmt.setString(9, null);
+          stmt.setString(10, null);
+        } else {
+          Code code = careplan.codes.get(0);
+          stmt.setString(8, code.code);
+          stmt.setString(9, code.display);
+          stmt.setString(10, code.system);
+        }
+        stmt.addBatch();
+      }
+
+      for (ImagingStudy imagingStudy : encounter.imagingStudies) {
+        // CREATE TABLE IF NOT EXISTS IMAGING_STUDY (uid varchar,
+        // person_id varchar, encounter_id varchar, start bigint,
+        // modality_code varchar, modality_display varchar, modality_system varchar,
+        // bodysite_code varchar, bodysite_display varchar, bodysite_system varchar,
+        // sop_class varchar)
+
+        stmt = connection.prepare(
+            "INSERT INTO IMAGING_STUDY "
+            + "(id, uid, person_id, encounter_id, start, modality_code, modality_display, "
+            + "modality_system, bodysite_code, bodysite_display, bodysite_system, sop_class) "
+            + "VALUES (?,?,?,?,?,?,?,?,?,?,?,?);");
+        stmt.setString(1, UUID.randomUUID().toString());
+        stmt.setString(2, imagingStudy.dicomUid);
+        stmt.setString(3, personID);
+        stmt.setString(4, encounterID);
+        stmt.setLong(5, imagingStudy.start);
+
+        Code modality = imagingStudy.series.get(0).modality;
+        stmt.setString(6, modality.code);
+        stmt.setString(7, modality.display);
+        stmt.setString(8, modality.system);
+
+        Code bodySite = imagingStudy.series.get(0).bodySite;
+        stmt.setString(9, bodySite.code);
+        stmt.setString(10, bodySite.display);
+        stmt.setString(11, bodySite.system);
+
+        Code sopClass = imagingStudy.series.get(0).instances.get(0).sopClass;
+        stmt.setString(12, sopClass.code);
+
+        stmt.addBatch();
+      }
+
+      // CREATE TABLE IF NOT EXISTS CLAIM (id varchar, person_id varchar, encounter_id varchar,
+      // medication_id varchar, time bigint, cost decimal)
+      stmt = connection.prepare(
+          "INSERT INTO CLAIM "
+          + "(id, person_id, encounter_id, medication_id, time, cost) "
+          + "VALUES (?,?,?,?,?,?)");
+      stmt.setString(1, UUID.randomUUID().toString());
+      stmt.setString(2, personID);
+      stmt.setString(3, encounterID);
+      stmt.setString(4, null);
+      stmt.setLong(5, encounter.start);
+      stmt.setBigDecimal(6, new BigDecimal(encounter.claim.getTotalClaimCost()));
+      stmt.addBatch();
+
+    }
+
+    Map<Integer, Double> qalys =
+        (Map<Integer, Double>) p.attributes.get(QualityOfLifeModule.QALY);
+    Map<Integer, Double> dalys =
+        (Map<Integer, Double>) p.attributes.get(QualityOfLifeModule.DALY);
+    Map<Integer, Double> qols =
+        (Map<Integer, Double>) p.attributes.get(QualityOfLifeModule.QOLS);
+    if (qols != null) {
+      // TODO - would rather have something more generic
+      stmt = connection.prepare(
+          "INSERT INTO QUALITY_OF_LIFE (person_id, year, qol, qaly, daly) VALUES (?,?,?,?,?);");
+
+      for (Integer year : qols.keySet()) {
+        stmt.setString(1, personID);
+        stmt.setInt(2, year);
+        stmt.setDouble(3, qols.get(year));
+        stmt.setDouble(4, qalys.get(year));
+        stmt.setDouble(5, dalys.get(year));
+        stmt.addBatch();
+      }
+    }
+  }
+
+  /**
+   * Write and commit all the persons that have been stored on the pooled connections but not
+   * yet committed. This waits for any stores in progress to complete.
+   * @return Whether or not all pending persons were committed successfully.
+   */
+  public synchronized boolean flush() {
+    List<PooledConnection> idle = new ArrayList<PooledConnection>(connections.size());
+    boolean success = true;
+    try {
+      while (idle.size() < connections.size()) {
+        idle.add(pool.take());
+      }
+      for (PooledConnection connection : idle) {
+        try {
+          connection.commit();
+        } catch (SQLException e) {
+          e.printStackTrace();
+          success = storeSeparately(connection, null) && success;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      success = false;
+    } finally {
+      pool.addAll(idle);
+    }
+    return success;
+  }
+
+  /**
+   * Commit all pending persons, then close the pooled connections and the statements prepared
+   * on them. Connections from {@link #getConnection()} can still be used afterwards, since the
+   * database is kept until the JVM exits, but persons can no longer be stored.
+   * @return Whether or not all pending persons were committed successfully.
+   */
+  public synchronized boolean close() {
+    if (closed) {
       return true;
-    } catch (SQLException e) {
-      e.printStackTrace();
-      return false;
     }
+    boolean success = flush();
+    closed = true;
+    for (PooledConnection connection : connections) {
+      pool.remove(connection);
+      try {
+        connection.close();
+      } catch (SQLException e) {
+        e.printStackTrace();
+        success = false;
+      }
+    }
+    connections.clear();
+    return success;
   }
 
   /**
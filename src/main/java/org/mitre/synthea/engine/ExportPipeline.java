@@ -0,0 +1,166 @@
+package org.mitre.synthea.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mitre.synthea.export.Exporter;
+import org.mitre.synthea.world.agents.Person;
+
+/**
+ * ExportPipeline decouples record export from simulation. Simulation threads hand finished
+ * persons to a bounded queue, which is drained by a separately sized pool of export threads.
+ * When the exporters fall behind, the queue fills up and the simulation threads block until
+ * space is available again (backpressure), so the number of persons waiting for export, and
+ * therefore the memory they hold, stays bounded.
+ */
+public class ExportPipeline {
+
+  /**
+   * A finished person waiting to be exported.
+   */
+  private static class ExportJob {
+    private final Person person;
+    private final long stopTime;
+
+    private ExportJob(Person person, long stopTime) {
+      this.person = person;
+      this.stopTime = stopTime;
+    }
+  }
+
+  /** Marker placed on the queue to tell an export thread to finish. */
+  private static final ExportJob END_OF_STREAM = new ExportJob(null, 0L);
+
+  private final BlockingQueue<ExportJob> queue;
+  private final List<Thread> workers;
+  private final Exporter.ExporterRuntimeOptions options;
+
+  /** Number of persons handed to the pipeline by simulation threads. */
+  private final AtomicLong submitted = new AtomicLong();
+  /** Total time simulation threads spent blocked because the queue was full. */
+  private final AtomicLong submitWaitNanos = new AtomicLong();
+  /** Number of persons the export threads have finished exporting. */
+  private final AtomicLong exported = new AtomicLong();
+  /** Total time export threads spent exporting. */
+  private final AtomicLong exportNanos = new AtomicLong();
+  /** Total time export threads spent idle because the queue was empty. */
+  private final AtomicLong exportWaitNanos = new AtomicLong();
+
+  /**
+   * Create and start a new export pipeline.
+   * @param threads Number of export threads.
+   * @param capacity Maximum number of persons waiting to be exported.
+   * @param options Runtime exporter options passed on to the Exporter.
+   */
+  public ExportPipeline(int threads, int capacity, Exporter.ExporterRuntimeOptions options) {
+    this.queue = new ArrayBlockingQueue<ExportJob>(capacity);
+    this.options = options;
+    this.workers = new ArrayList<Thread>(threads);
+    for (int i = 0; i < threads; i++) {
+      Thread worker = new Thread(this::drain, "export-" + i);
+      worker.setDaemon(true);
+      workers.add(worker);
+      worker.start();
+    }
+  }
+
+  /**
+   * Hand a finished person to the export threads. Blocks while the queue is full.
+   * If the calling thread is interrupted while waiting, the person is exported on the
+   * calling thread instead so that the record is not lost.
+   * @param person The person to export.
+   * @param stopTime Time at which the simulation stopped.
+   */
+  public void submit(Person person, long stopTime) {
+    ExportJob job = new ExportJob(person, stopTime);
+    submitted.incrementAndGet();
+    long start = System.nanoTime();
+    try {
+      queue.put(job);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      export(job);
+    } finally {
+      submitWaitNanos.addAndGet(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Wait for all queued persons to be exported and stop the export threads.
+   */
+  public void shutdown() {
+    try {
+      for (int i = 0; i < workers.size(); i++) {
+        queue.put(END_OF_STREAM);
+      }
+      for (Thread worker : workers) {
+        worker.join();
+      }
+    } catch (InterruptedException e) {
+      System.out.println("Export pipeline interrupted. Pending records may not be exported.");
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Get the number of persons handed to the pipeline so far.
+   * @return number of persons submitted
+   */
+  public long getSubmittedCount() {
+    return submitted.get();
+  }
+
+  /**
+   * Get the number of persons exported by the pipeline so far.
+   * @return number of persons exported
+   */
+  public long getExportedCount() {
+    return exported.get();
+  }
+
+  /**
+   * Summarize the throughput of each stage. If simulation threads spent a long time blocked,
+   * export is the bottleneck; if export threads spent a long time idle, simulation is.
+   * @return a one-line summary of the pipeline counters
+   */
+  public String getStatistics() {
+    return String.format("Export pipeline: submitted=%d, exported=%d, "
+        + "simulation blocked=%dms, export busy=%dms, export idle=%dms",
+        submitted.get(), exported.get(), submitWaitNanos.get() / 1_000_000L,
+        exportNanos.get() / 1_000_000L, exportWaitNanos.get() / 1_000_000L);
+  }
+
+  private void drain() {
+    while (true) {
+      ExportJob job;
+      long start = System.nanoTime();
+      try {
+        job = queue.take();
+      } catch (InterruptedException e) {
+        return;
+      } finally {
+        exportWaitNanos.addAndGet(System.nanoTime() - start);
+      }
+      if (job == END_OF_STREAM) {
+        return;
+      }
+      export(job);
+    }
+  }
+
+  private void export(ExportJob job) {
+    long start = System.nanoTime();
+    try {
+      Exporter.export(job.person, job.stopTime, options);
+    } catch (Throwable e) {
+      // lots of fhir things throw errors for some reason
+      e.printStackTrace();
+    } finally {
+      exportNanos.addAndGet(System.nanoTime() - start);
+      exported.incrementAndGet();
+    }
+  }
+}
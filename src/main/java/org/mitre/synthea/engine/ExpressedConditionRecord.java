@@ -382,11 +382,12 @@ public class ExpressedConditionRecord implements Cloneable, Serializable {
    * with the related symptoms at different age/time. 
    */
   public Map<Long, List<ConditionWithSymptoms>> getConditionSymptoms() {
-    Map<String, ExpressedSymptom> symptoms = person.getExpressedSymptoms();
+    SymptomSummary symptoms = person.getSymptomSummary();
     Map<Long, List<ConditionWithSymptoms>> result;
     result = new ConcurrentHashMap<Long, List<ConditionWithSymptoms>>();    
     for (String module : sources.keySet()) {
       ModuleConditions moduleConditions = sources.get(module);
+      Map<String, SymptomSource> symptomSources = symptoms.getSourcesFromModule(module);
       for (String condition : moduleConditions.getOnsetConditions().keySet()) {
         List<ConditionPeriod> infos = moduleConditions.getOnsetConditions().get(
             condition).getTimeInfos();
@@ -399,12 +400,8 @@ public class ExpressedConditionRecord implements Cloneable, Serializable {
           ConditionWithSymptoms conditionWithSymptoms = new ConditionWithSymptoms(
               condition, begin, end
           );
-          for (String type : symptoms.keySet()) {
-            ExpressedSymptom expressedSymptom = symptoms.get(type);
-            if (expressedSymptom.getSources().containsKey(module)) {
-              SymptomSource symptomSource = expressedSymptom.getSources().get(module);
-              conditionWithSymptoms.addSymptoms(type, symptomSource);
-            }
+          for (String type : symptomSources.keySet()) {
+            conditionWithSymptoms.addSymptoms(type, symptomSources.get(type));
           }
           result.get(begin).add(conditionWithSymptoms);
         }
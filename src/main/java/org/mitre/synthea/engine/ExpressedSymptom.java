@@ -49,7 +49,6 @@ public class ExpressedSymptom implements Cloneable, Serializable {
   public class SymptomSource implements Cloneable, Serializable {    
     private static final long serialVersionUID = 4322116644425686802L;
     
-    ExpressedSymptom symptom = ExpressedSymptom.this;
     // From which module the expressed symptom was set    
     private String source;
     // what is the status from a given expressed symptom from a given module
@@ -86,10 +85,12 @@ public class ExpressedSymptom implements Cloneable, Serializable {
 
     public void resolve() {
       this.resolved = true;
+      ExpressedSymptom.this.refresh();
     }
 
     public void activate() {
       this.resolved = false;
+      ExpressedSymptom.this.refresh();
     }
 
     public Long getLastUpdateTime() {
@@ -108,6 +109,7 @@ public class ExpressedSymptom implements Cloneable, Serializable {
       timeInfos.put(Long.valueOf(time), info);
       lastUpdateTime = time;
       resolved = addressed;
+      ExpressedSymptom.this.refresh();
     }
 
     /**
@@ -131,6 +133,13 @@ public class ExpressedSymptom implements Cloneable, Serializable {
   //keep track of the different sources of the expressed conditions
   private Map<String, SymptomSource> sources;
   private String name;
+  // the value of the symptom and the source with the high value not yet addressed, kept up to
+  // date as the sources change. They are not serialized, and computed again when first used.
+  private transient int value;
+  private transient String sourceWithHighValue;
+  private transient boolean current;
+  // the summary of all the symptoms of the person, which is told when the value changes
+  private transient SymptomSummary summary;
   
   public ExpressedSymptom(String name) {
     this.name = name;  
@@ -138,7 +147,8 @@ public class ExpressedSymptom implements Cloneable, Serializable {
   }
   
   /**
-   * Create a shallow copy of this instance.
+   * Create a shallow copy of this instance. The sources are shared with this instance, but
+   * only changes made through this instance update the value of the copy.
    */
   public ExpressedSymptom clone() {
     ExpressedSymptom data = new ExpressedSymptom(this.name);
@@ -146,6 +156,10 @@ public class ExpressedSymptom implements Cloneable, Serializable {
     return data;
   }
   
+  public String getName() {
+    return name;
+  }
+  
   public Map<String, SymptomSource> getSources() {
     return sources;
   }
@@ -154,7 +168,11 @@ public class ExpressedSymptom implements Cloneable, Serializable {
    */
   public void onSet(String module, String cause, long time, int value, Boolean addressed) {    
     if (!sources.containsKey(module)) {
-      sources.put(module, new SymptomSource(module));
+      SymptomSource source = new SymptomSource(module);
+      sources.put(module, source);
+      if (summary != null) {
+        summary.sourceAdded(this, source);
+      }
     }
     sources.get(module).addInfo(cause, time, value, addressed);
   }
@@ -164,35 +182,68 @@ public class ExpressedSymptom implements Cloneable, Serializable {
    * This correspond to the maximum value across all potential causes.
    */
   public int getSymptom() {
-    int max = 0;
-    for (String module : sources.keySet()) {
-      Integer value = sources.get(module).getCurrentValue();
-      Boolean isResolved = sources.get(module).isResolved();
-      if (value != null && value.intValue() > max && !isResolved) {
-        max = value.intValue();
-      }
+    if (!current) {
+      compute();
     }
-    return max;
+    return value;
   }
   
   /**
    * Method for retrieving the source with the high value not yet addressed. 
    */ 
   public String getSourceWithHighValue() {
-    String result = null;
+    if (!current) {
+      compute();
+    }
+    return sourceWithHighValue;
+  }
+  
+  /**
+   * Set the summary that is told when the value of this symptom changes.
+   */
+  void setSummary(SymptomSummary summary) {
+    this.summary = summary;
+  }
+  
+  /**
+   * Compute the value again after a source changed, and update the summary.
+   */
+  void refresh() {
+    if (summary == null) {
+      current = false;
+      return;
+    }
+    int oldValue = getSymptom();
+    summary.remove(this);
+    compute();
+    summary.add(this, oldValue);
+  }
+  
+  /**
+   * Compute the value (the maximum value across all causes not yet addressed) and the source
+   * with the high value not yet addressed.
+   */
+  private void compute() {
     int max = 0;
+    String result = null;
+    int resultMax = 0;
     for (String module : sources.keySet()) {
-      Boolean isResolved = sources.get(module).isResolved();
       Integer value = sources.get(module).getCurrentValue();
+      Boolean isResolved = sources.get(module).isResolved();
+      if (value != null && value.intValue() > max && !isResolved) {
+        max = value.intValue();
+      }
       if (result == null && value != null && !isResolved) {
         result = module;
-        max = value.intValue();
-      } else if (value != null && value.intValue() > max && !isResolved) {
+        resultMax = value.intValue();
+      } else if (value != null && value.intValue() > resultMax && !isResolved) {
         result = module;
-        max = value.intValue();
+        resultMax = value.intValue();
       }
     }
-    return result;
+    this.value = max;
+    this.sourceWithHighValue = result;
+    this.current = true;
   }
   
   /**
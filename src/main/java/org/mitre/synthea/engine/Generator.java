@@ -1,23 +1,28 @@
 package org.mitre.synthea.engine;
 
+import com.google.common.cache.CacheStats;
+
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -51,6 +56,17 @@ public class Generator {
   public GeneratorOptions options;
   private Random random;
   public long timestep;
+  /**
+   * Whether generic modules are only processed at the time steps on which they may do something,
+   * as selected by generate.time_advancement.
+   */
+  public boolean eventDriven;
+  /** Number of generic module steps processed, in event-driven mode. */
+  final AtomicLong moduleStepsProcessed = new AtomicLong();
+  /** Number of generic module steps skipped before their wake time, in event-driven mode. */
+  final AtomicLong moduleStepsSkipped = new AtomicLong();
+  /** Evicts old history from persons during simulation, or null, per generate.evict_history. */
+  private HistoryEviction historyEviction;
   public long stop;
   public Map<String, AtomicInteger> stats;
   public Location location;
@@ -75,9 +91,33 @@ public class Generator {
    * module. Use "-m filename" on the command line to filter which modules get loaded.
    */
   Predicate<String> modulePredicate;
+
+  /**
+   * The modules selected by <code>modulePredicate</code>, resolved once from the module registry
+   * when the generator is initialized.
+   */
+  private List<Module> selectedModules;
   
   private static final String TARGET_AGE = "target_age";
 
+  /**
+   * Limits the number of persons that have been handed to the thread pool but not yet finished,
+   * so that large populations do not queue one pending task per person up front.
+   */
+  private Semaphore inFlight;
+
+  /**
+   * When generate.export_threads is greater than zero, finished persons are exported by this
+   * pipeline rather than on the simulation threads. Only set while the generator is running.
+   */
+  ExportPipeline exportPipeline;
+
+  /**
+   * Writes persons to <code>options.updatedPopulationSnapshotPath</code> as they are recorded.
+   * Only set while the generator is running.
+   */
+  private PopulationSnapshot.Writer snapshotWriter;
+
   /**
    * Helper class following the "Parameter Object" pattern.
    * This class provides the default values for Generator, or alternatives may be set.
@@ -105,7 +145,8 @@ public class Generator {
     public List<String> enabledModules;
     /** File used to initialize a population. */
     public File initialPopulationSnapshotPath;
-    /** File used to store a population snapshot. */
+    /** File used to store a population snapshot. Persons are written to it as they finish,
+     * see {@link PopulationSnapshot}. */
     public File updatedPopulationSnapshotPath;
     /** Time period in days to evolve the population loaded from initialPopulationSnapshotPath. A
      *  value of -1 will evolve the population to the current system time.
@@ -164,10 +205,6 @@ public class Generator {
   public Generator(GeneratorOptions o, Exporter.ExporterRuntimeOptions ero) {
     options = o;
     exporterRuntimeOptions = ero;
-    if (options.updatedPopulationSnapshotPath != null) {
-      exporterRuntimeOptions.deferExports = true;
-      internalStore = Collections.synchronizedList(new LinkedList<>());
-    }
     init();
   }
 
@@ -200,6 +237,8 @@ public class Generator {
 
     this.random = new Random(options.seed);
     this.timestep = Long.parseLong(Config.get("generate.timestep"));
+    this.eventDriven = isEventDriven(Config.get("generate.time_advancement", "fixed"));
+    this.historyEviction = HistoryEviction.fromConfig();
     this.stop = System.currentTimeMillis();
 
     this.location = new Location(options.state, options.city);
@@ -237,8 +276,12 @@ public class Generator {
     if (options.localModuleDir != null) {
       Module.addModules(options.localModuleDir);
     }
-    List<String> coreModuleNames = getModuleNames(Module.getModules(path -> false));
-    List<String> moduleNames = getModuleNames(Module.getModules(modulePredicate)); 
+    // only the selected modules are loaded, so excluded modules cannot fail the run
+    Module.Registry registry = Module.warmUp(modulePredicate);
+    selectedModules = Collections.unmodifiableList(
+        Arrays.asList(registry.select(modulePredicate)));
+    List<String> coreModuleNames = getModuleNames(Arrays.asList(registry.select(path -> false)));
+    List<String> moduleNames = getModuleNames(selectedModules);
     Costs.loadCostData(); // ensure cost data loads early
     
     String locationName;
@@ -284,36 +327,55 @@ public class Generator {
    * Generate the population, using the currently set configuration settings.
    */
   public void run() {
-    ExecutorService threadPool = Executors.newFixedThreadPool(8);
+    int threads = getThreadCount();
+    ExecutorService threadPool = createThreadPool(threads);
+    int window = Integer.parseInt(Config.get("generate.scheduler.window", "0"));
+    if (window <= 0) {
+      window = threads * 4;
+    }
+    inFlight = new Semaphore(window);
+    int exportThreads = Integer.parseInt(Config.get("generate.export_threads", "0"));
+    if (exportThreads > 0) {
+      int capacity = Integer.parseInt(Config.get("generate.export_queue_size", "0"));
+      if (capacity <= 0) {
+        capacity = exportThreads * 4;
+      }
+      exportPipeline = new ExportPipeline(exportThreads, capacity, exporterRuntimeOptions);
+    }
+    long snapshotInterval = Long.parseLong(
+        Config.get("generate.track_detailed_transition_metrics.snapshot_interval", "0"));
+    if (this.metrics != null && snapshotInterval > 0) {
+      File snapshotFile = new File(Exporter.getOutputFolder("metrics", null),
+          "transition_metrics.json");
+      metrics.startSnapshots(snapshotFile, snapshotInterval);
+    }
 
-    if (options.initialPopulationSnapshotPath != null) {
-      FileInputStream fis = null;
-      List<Person> initialPopulation = null;
+    if (options.updatedPopulationSnapshotPath != null) {
       try {
-        fis = new FileInputStream(options.initialPopulationSnapshotPath);
-        ObjectInputStream ois = new ObjectInputStream(fis);
-        initialPopulation = (List<Person>) ois.readObject();
-        ois.close();
-      } catch (Exception ex) {
-        System.out.printf("Unable to load population snapshot, error: %s", ex.getMessage());
+        snapshotWriter = new PopulationSnapshot.Writer(options.updatedPopulationSnapshotPath,
+            location);
+      } catch (IOException ex) {
+        System.out.printf("Unable to save population snapshot, error: %s\n", ex.getMessage());
       }
-      if (initialPopulation != null && initialPopulation.size() > 0) {
-        // default is to run until current system time.
-        if (options.daysToTravelForward > 0) {
-          stop = initialPopulation.get(0).lastUpdated 
-                  + Utilities.convertTime("days", options.daysToTravelForward);
-        }
-        for (int i = 0; i < initialPopulation.size(); i++) {
-          final int index = i;
-          final Person p = initialPopulation.get(i);        
-          threadPool.submit(() -> updateRecordExportPerson(p, index));
+    }
+
+    if (options.initialPopulationSnapshotPath != null) {
+      try {
+        if (PopulationSnapshot.isSnapshot(options.initialPopulationSnapshotPath)) {
+          updatePopulationSnapshot(threadPool);
+        } else {
+          updateSerializedPopulation(threadPool);
         }
+      } catch (IOException ex) {
+        System.out.printf("Unable to load population snapshot, error: %s\n", ex.getMessage());
       }
     } else {
       for (int i = 0; i < this.options.population; i++) {
         final int index = i;
         final long seed = this.random.nextLong();
-        threadPool.submit(() -> generatePerson(index, seed));
+        if (!submit(threadPool, () -> generatePerson(index, seed))) {
+          break;
+        }
       }
     }
 
@@ -327,24 +389,49 @@ public class Generator {
       threadPool.shutdownNow();
     }
 
+    if (exportPipeline != null) {
+      exportPipeline.shutdown();
+      System.out.println(exportPipeline.getStatistics());
+      exportPipeline = null;
+    }
+
+    if (eventDriven) {
+      long processed = moduleStepsProcessed.get();
+      long skipped = moduleStepsSkipped.get();
+      System.out.printf("Event-driven time advancement: skipped %d of %d module steps (%.1f%%)\n",
+          skipped, processed + skipped,
+          (processed + skipped == 0) ? 0.0 : 100.0 * skipped / (processed + skipped));
+    }
+
+    if (historyEviction != null) {
+      System.out.println(historyEviction.getStatistics());
+    }
+
+    if (Long.parseLong(Config.get("physiology.cache.size", "0")) > 0) {
+      CacheStats physiologyStats = PhysiologySimulator.getResultCacheStats();
+      System.out.println(String.format("Physiology result cache: hits=%d, misses=%d, "
+          + "evictions=%d, hit rate=%.1f%%", physiologyStats.hitCount(),
+          physiologyStats.missCount(), physiologyStats.evictionCount(),
+          physiologyStats.hitRate() * 100));
+    }
+
     // have to store providers at the end to correctly capture utilization #s
     // TODO - de-dup hospitals if using a file-based database?
     if (database != null) {
+      // commit the last persons and release the pooled connections; reports use new ones
+      database.close();
       database.store(Provider.getProviderList());
     }
 
-    // Save a snapshot of the generated population using Java Serialization
-    if (options.updatedPopulationSnapshotPath != null) {
-      FileOutputStream fos = null;
+    // Finish the snapshot of the generated population; persons were written as they finished
+    if (snapshotWriter != null) {
       try {
-        fos = new FileOutputStream(options.updatedPopulationSnapshotPath);
-        ObjectOutputStream oos = new ObjectOutputStream(fos);
-        oos.writeObject(internalStore);
-        oos.close();
-        fos.close();
-      } catch (Exception ex) {
-        System.out.printf("Unable to save population snapshot, error: %s", ex.getMessage());
+        snapshotWriter.close();
+        System.out.printf("Saved %d persons to population snapshot\n", snapshotWriter.size());
+      } catch (IOException ex) {
+        System.out.printf("Unable to save population snapshot, error: %s\n", ex.getMessage());
       }
+      snapshotWriter = null;
     }
     Exporter.runPostCompletionExports(this, exporterRuntimeOptions);
 
@@ -352,10 +439,157 @@ public class Generator {
             stats.get("alive").get(), stats.get("dead").get());
 
     if (this.metrics != null) {
-      metrics.printStats(totalGeneratedPopulation.get(), Module.getModules(getModulePredicate()));
+      metrics.stopSnapshots();
+      metrics.printStats(totalGeneratedPopulation.get(), selectedModules);
     }
   }
   
+  /**
+   * Update and export the persons of the initial population snapshot. Persons are read one at a
+   * time as threads become available, and are decompressed and deserialized by the simulation
+   * threads, so the population is never held in memory at once.
+   * @param threadPool the pool to run the tasks on
+   * @throws IOException if the snapshot can not be read
+   */
+  private void updatePopulationSnapshot(ExecutorService threadPool) throws IOException {
+    try (PopulationSnapshot.Reader reader =
+        new PopulationSnapshot.Reader(options.initialPopulationSnapshotPath, location)) {
+      PopulationSnapshot.Record record = reader.next();
+      // default is to run until current system time.
+      if (record != null && options.daysToTravelForward > 0) {
+        // the first person is read to find the start time, and is updated as read here
+        Person first = record.read();
+        stop = first.lastUpdated + Utilities.convertTime("days", options.daysToTravelForward);
+        final int firstIndex = record.index;
+        record = submit(threadPool, () -> updateRecordExportPerson(first, firstIndex))
+            ? reader.next() : null;
+      }
+      while (record != null) {
+        final PopulationSnapshot.Record next = record;
+        if (!submit(threadPool, () -> updateRecordExportPerson(next))) {
+          break;
+        }
+        record = reader.next();
+      }
+      if (reader.size() < 0) {
+        System.out.println("The population snapshot was not completed; "
+            + "only the persons written completely were loaded.");
+      }
+    }
+  }
+
+  /**
+   * Update and export the persons of an initial population snapshot written by earlier
+   * versions, as a single serialized list of persons.
+   * @param threadPool the pool to run the tasks on
+   */
+  private void updateSerializedPopulation(ExecutorService threadPool) {
+    FileInputStream fis = null;
+    List<Person> initialPopulation = null;
+    try {
+      fis = new FileInputStream(options.initialPopulationSnapshotPath);
+      ObjectInputStream ois = new ObjectInputStream(fis);
+      initialPopulation = (List<Person>) ois.readObject();
+      ois.close();
+    } catch (Exception ex) {
+      System.out.printf("Unable to load population snapshot, error: %s", ex.getMessage());
+    }
+    if (initialPopulation != null && initialPopulation.size() > 0) {
+      // default is to run until current system time.
+      if (options.daysToTravelForward > 0) {
+        stop = initialPopulation.get(0).lastUpdated 
+                + Utilities.convertTime("days", options.daysToTravelForward);
+      }
+      for (int i = 0; i < initialPopulation.size(); i++) {
+        final int index = i;
+        final Person p = initialPopulation.get(i);        
+        if (!submit(threadPool, () -> updateRecordExportPerson(p, index))) {
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Determine how many threads should be used to simulate persons. The generate.threads setting
+   * is used if it is a positive number, otherwise one thread per available processor.
+   * @return number of simulation threads
+   */
+  private int getThreadCount() {
+    int threads = Integer.parseInt(Config.get("generate.threads", "0"));
+    if (threads <= 0) {
+      threads = Runtime.getRuntime().availableProcessors();
+    }
+    return threads;
+  }
+
+  /**
+   * Parse the generate.time_advancement setting.
+   * @param timeAdvancement fixed or event
+   * @return whether modules are only processed when they may do something
+   */
+  private static boolean isEventDriven(String timeAdvancement) {
+    switch (timeAdvancement) {
+      case "fixed":
+        return false;
+      case "event":
+        return true;
+      default:
+        throw new IllegalArgumentException(
+            "Unexpected value for config setting generate.time_advancement: '" + timeAdvancement
+                + "' . Valid values are fixed or event.");
+    }
+  }
+
+  /**
+   * Create the thread pool used to simulate persons, as selected by generate.scheduler.
+   * @param threads number of threads (or parallelism level for the work-stealing pool)
+   * @return a new ExecutorService
+   */
+  private ExecutorService createThreadPool(int threads) {
+    String scheduler = Config.get("generate.scheduler", "fixed");
+    switch (scheduler) {
+      case "fixed":
+        return Executors.newFixedThreadPool(threads);
+      case "work_stealing":
+        return Executors.newWorkStealingPool(threads);
+      default:
+        throw new IllegalArgumentException(
+            "Unexpected value for config setting generate.scheduler: '" + scheduler
+                + "' . Valid values are fixed or work_stealing.");
+    }
+  }
+
+  /**
+   * Submit a task to the thread pool, blocking while the maximum number of tasks is already
+   * in flight. Seeds are always drawn on the calling thread before submission, so the order in
+   * which tasks complete does not affect the generated population.
+   * @param threadPool the pool to run the task on
+   * @param task the task to run
+   * @return false if the generator was interrupted and no more tasks should be submitted
+   */
+  private boolean submit(ExecutorService threadPool, Runnable task) {
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    try {
+      threadPool.submit(() -> {
+        try {
+          task.run();
+        } finally {
+          inFlight.release();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      inFlight.release();
+      throw e;
+    }
+    return true;
+  }
+
   /**
    * Generate a completely random Person. The returned person will be alive at the end of the
    * simulation. This means that if in the course of the simulation the person dies, a new person
@@ -436,9 +670,8 @@ public class Generator {
           }
         }
 
-        // TODO - export is DESTRUCTIVE when it filters out data
-        // this means export must be the LAST THING done with the person
-        Exporter.export(person, finishTime, exporterRuntimeOptions);
+        // export filters a copy of the records, so the person is not changed
+        export(person, finishTime);
       } while ((!isAlive && !onlyDeadPatients && this.options.overflow)
           || (isAlive && onlyDeadPatients));
       // if the patient is alive and we want only dead ones => loop & try again
@@ -462,10 +695,41 @@ public class Generator {
     updatePerson(person);
     recordPerson(person, index);
     long finishTime = person.lastUpdated + timestep;
-    Exporter.export(person, finishTime, exporterRuntimeOptions);
+    export(person, finishTime);
     return person;
   }
 
+  /**
+   * Read a person from a population snapshot, then update, record and export them.
+   * @param record the person in the population snapshot
+   */
+  private void updateRecordExportPerson(PopulationSnapshot.Record record) {
+    Person person;
+    try {
+      person = record.read();
+    } catch (IOException ex) {
+      System.out.printf("Unable to load person %d from population snapshot, error: %s\n",
+          record.index, ex.getMessage());
+      return;
+    }
+    updateRecordExportPerson(person, record.index);
+  }
+
+  /**
+   * Export a finished person, either directly on the calling thread or by handing them to the
+   * export pipeline when one is running. Export does not change the person (see
+   * {@link Person#exportView()}), so the person may still be read while it is exported.
+   * @param person the person to export
+   * @param finishTime time at which the simulation stopped
+   */
+  private void export(Person person, long finishTime) {
+    if (exportPipeline != null) {
+      exportPipeline.submit(person, finishTime);
+    } else {
+      Exporter.export(person, finishTime, exporterRuntimeOptions);
+    }
+  }
+
   /**
    * Update a previously created person from the time they were last updated until Generator.stop or
    * they die, whichever comes sooner.
@@ -475,29 +739,72 @@ public class Generator {
     HealthInsuranceModule healthInsuranceModule = new HealthInsuranceModule();
     EncounterModule encounterModule = new EncounterModule();
 
+    // in event-driven mode, the time before which each generic module will not do anything, at
+    // the position of the module in person.currentModules
+    long[] wakeTimes = null;
+    if (eventDriven) {
+      wakeTimes = new long[person.currentModules.size()];
+      Arrays.fill(wakeTimes, Long.MIN_VALUE);
+    }
+
+    long processed = 0;
+    long skipped = 0;
+
     long time = person.lastUpdated;
+    long nextEviction = (historyEviction == null) ? Long.MAX_VALUE
+        : historyEviction.nextEviction(time);
     while (person.alive(time) && time < stop) {
 
       healthInsuranceModule.process(person, time + timestep);
       encounterModule.process(person, time);
 
       Iterator<Module> iter = person.currentModules.iterator();
+      int position = 0;
       while (iter.hasNext()) {
         Module module = iter.next();
         // System.out.format("Processing module %s\n", module.name);
-        if (module.process(person, time)) {
+        boolean finished;
+        if (wakeTimes != null && wakeTimes[position] > time) {
+          skipped++;
+          finished = module.skip(person, time);
+        } else {
+          processed++;
+          finished = module.process(person, time);
+          if (!finished && wakeTimes != null) {
+            wakeTimes[position] = module.nextWakeTime(person, time);
+          }
+        }
+        if (finished) {
           // System.out.format("Removing module %s\n", module.name);
           iter.remove(); // this module has completed/terminated.
+          if (wakeTimes != null) {
+            // move the wake times of the following modules along with them
+            System.arraycopy(wakeTimes, position + 1, wakeTimes, position,
+                wakeTimes.length - position - 1);
+          }
+        } else {
+          position++;
         }
       }
       encounterModule.endEncounterModuleEncounters(person, time);
       person.lastUpdated = time;
       HealthRecordEditors.getInstance().executeAll(
               person, person.record, time, timestep, person.random);
+      if (time >= nextEviction) {
+        historyEviction.evict(person, time);
+        nextEviction = historyEviction.nextEviction(time);
+      }
       time += timestep;
     }
 
     DeathModule.process(person, time);
+    if (eventDriven) {
+      moduleStepsProcessed.addAndGet(processed);
+      moduleStepsSkipped.addAndGet(skipped);
+    }
+    if (historyEviction != null) {
+      historyEviction.count(person);
+    }
   }
   
   /**
@@ -515,7 +822,7 @@ public class Generator {
     person.lastUpdated = (long) demoAttributes.get(Person.BIRTHDATE);
 
     LifecycleModule.birth(person, person.lastUpdated);
-    person.currentModules = Module.getModules(modulePredicate);
+    person.currentModules = new ArrayList<Module>(selectedModules);
 
     updatePerson(person);
     
@@ -551,8 +858,17 @@ public class Generator {
       internalStore.add(person);
     }
 
+    if (snapshotWriter != null) {
+      try {
+        snapshotWriter.write(person, index);
+      } catch (IOException ex) {
+        System.out.printf("Unable to save person %d to population snapshot, error: %s\n",
+            index, ex.getMessage());
+      }
+    }
+
     if (this.metrics != null) {
-      metrics.recordStats(person, finishTime, Module.getModules(modulePredicate));
+      metrics.recordStats(person, finishTime, selectedModules);
     }
 
     if (!this.logLevel.equals("none")) {
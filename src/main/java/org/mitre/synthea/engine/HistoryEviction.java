@@ -0,0 +1,269 @@
+package org.mitre.synthea.engine;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.helpers.Utilities;
+import org.mitre.synthea.modules.DeathModule;
+import org.mitre.synthea.world.agents.Person;
+import org.mitre.synthea.world.concepts.HealthRecord;
+import org.mitre.synthea.world.concepts.HealthRecord.Encounter;
+import org.mitre.synthea.world.concepts.HealthRecord.EncounterType;
+import org.mitre.synthea.world.concepts.HealthRecord.Entry;
+import org.mitre.synthea.world.concepts.HealthRecord.Observation;
+
+/**
+ * HistoryEviction bounds the memory held by each person during simulation, by removing entries
+ * from their health records that are older than the history that will be exported. The
+ * exporters only keep the last exporter.years_of_history years (see
+ * <code>Exporter.filterForExport</code>), but without eviction every entry from birth is held
+ * until the person is exported.
+ *
+ * <p>Eviction only removes entries that the export filter would also remove, so exported
+ * records are unchanged. An entry is evicted once it ended before the retention window, unless:
+ * <ul>
+ * <li>it is a condition, allergy, medication or careplan. Whether the export filter keeps these
+ * depends on whether a condition, medication or careplan of the same type is active at export,
+ * and the quality of life calculation uses every condition, so they are all kept.</li>
+ * <li>it is the latest observation of its type, which Logic may still look up.</li>
+ * <li>it is a cause of death observation or death certificate.</li>
+ * </ul>
+ * An encounter is evicted once it ended before the retention window and nothing is left in it,
+ * unless it is the latest encounter, to which new entries are added, the latest wellness
+ * encounter, or a death certification. Entries are also removed from the claims of their
+ * encounters. Loss of care records are never evicted, since the whole of them is used to decide
+ * whether the person dies from loss of care.
+ *
+ * <p>The number of entries retained per person is counted, as a measure of the memory each
+ * person holds, and reported at the end of the simulation.
+ */
+public class HistoryEviction {
+  /** Eviction is run once per simulated year of each person. */
+  private static final long INTERVAL = Utilities.convertTime("years", 1);
+
+  private final long retention;
+
+  /** Number of persons whose records have been counted. */
+  private final LongAdder persons = new LongAdder();
+  /** Number of entries retained in the records of the counted persons, when they finished. */
+  private final LongAdder retained = new LongAdder();
+  /** Number of entries evicted. */
+  private final LongAdder evicted = new LongAdder();
+  /** Largest number of entries retained by a single person. */
+  private final AtomicLong maxRetained = new AtomicLong();
+
+  /**
+   * Create a history eviction that keeps the given number of years of history.
+   * @param yearsToKeep The last __ years to keep; at least exporter.years_of_history.
+   */
+  public HistoryEviction(int yearsToKeep) {
+    this.retention = Utilities.convertTime("years", yearsToKeep);
+  }
+
+  /**
+   * Create the history eviction selected by generate.evict_history, which keeps the history that
+   * is exported.
+   * @return the history eviction, or null if it is not enabled or all history is exported
+   */
+  public static HistoryEviction fromConfig() {
+    if (!Boolean.parseBoolean(Config.get("generate.evict_history", "false"))) {
+      return null;
+    }
+    int yearsOfHistory = Integer.parseInt(Config.get("exporter.years_of_history", "0"));
+    if (yearsOfHistory <= 0) {
+      return null;
+    }
+    return new HistoryEviction(yearsOfHistory);
+  }
+
+  /**
+   * Get the time at which eviction should next be run, after running it at the given time.
+   * @param time the simulation time
+   * @return the time of the next eviction
+   */
+  public long nextEviction(long time) {
+    return time + INTERVAL;
+  }
+
+  /**
+   * Evict the history of the person that is older than the retention window.
+   * @param person the person
+   * @param time the current simulation time; never later than the time the person is exported
+   */
+  public void evict(Person person, long time) {
+    long cutoffDate = time - retention;
+    Set<HealthRecord> records = Collections.newSetFromMap(new IdentityHashMap<>());
+    records.add(person.defaultRecord);
+    if (person.hasMultipleRecords) {
+      records.addAll(person.records.values());
+    }
+    records.remove(person.lossOfCareRecord);
+    records.remove(null);
+    for (HealthRecord record : records) {
+      evicted.add(evict(record, cutoffDate));
+    }
+  }
+
+  /**
+   * Count the entries retained in the records of a finished person.
+   * @param person the person
+   */
+  public void count(Person person) {
+    Set<HealthRecord> records = Collections.newSetFromMap(new IdentityHashMap<>());
+    records.add(person.defaultRecord);
+    records.add(person.lossOfCareRecord);
+    if (person.hasMultipleRecords) {
+      records.addAll(person.records.values());
+    }
+    records.remove(null);
+    long entries = 0;
+    for (HealthRecord record : records) {
+      entries += countEntries(record);
+    }
+    persons.increment();
+    retained.add(entries);
+    maxRetained.accumulateAndGet(entries, Math::max);
+  }
+
+  /**
+   * Get a summary of the entries retained per person.
+   * @return one line of statistics
+   */
+  public String getStatistics() {
+    long count = persons.sum();
+    return String.format("History eviction: persons=%d, retained entries per person=%.1f, "
+        + "max retained entries=%d, evicted entries=%d", count,
+        count == 0 ? 0.0 : (double) retained.sum() / count, maxRetained.get(), evicted.sum());
+  }
+
+  /**
+   * Evict the entries of a record that ended before the cutoff date.
+   * @return the number of entries evicted
+   */
+  private static long evict(HealthRecord record, long cutoffDate) {
+    if (record.encounters.isEmpty()) {
+      return 0;
+    }
+    // the types of which each encounter holds the latest observation, as the observation index
+    // of the record finds them
+    Map<String, Encounter> latestByType = new HashMap<>();
+    for (Encounter encounter : record.encounters) {
+      for (Observation observation : encounter.observations) {
+        latestByType.put(observation.type, encounter);
+      }
+    }
+    Map<Encounter, Set<String>> latestObservations = new IdentityHashMap<>();
+    for (Map.Entry<String, Encounter> latest : latestByType.entrySet()) {
+      latestObservations.computeIfAbsent(latest.getValue(), e -> new HashSet<>())
+          .add(latest.getKey());
+    }
+    Encounter latest = record.encounters.get(record.encounters.size() - 1);
+    Encounter latestWellness = null;
+    for (int i = record.encounters.size() - 1; i >= 0 && latestWellness == null; i--) {
+      if (record.encounters.get(i).type.equals(EncounterType.WELLNESS.toString())) {
+        latestWellness = record.encounters.get(i);
+      }
+    }
+
+    long count = 0;
+    Iterator<Encounter> iterator = record.encounters.iterator();
+    while (iterator.hasNext()) {
+      Encounter encounter = iterator.next();
+      if (encounter.start > cutoffDate) {
+        continue;
+      }
+      Set<Entry> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+      Set<String> latestTypes = latestObservations.getOrDefault(encounter,
+          Collections.emptySet());
+      evictEntries(encounter.observations, cutoffDate, removed,
+          o -> isFirstOfType(encounter, o, latestTypes)
+              || DeathModule.CAUSE_OF_DEATH_CODE.code.equals(o.type));
+      evictEntries(encounter.reports, cutoffDate, removed,
+          r -> DeathModule.DEATH_CERTIFICATE.code.equals(r.type));
+      evictEntries(encounter.procedures, cutoffDate, removed, null);
+      evictEntries(encounter.immunizations, cutoffDate, removed, null);
+      if (!removed.isEmpty()) {
+        encounter.claim.items.removeIf(removed::contains);
+        count += removed.size();
+      }
+
+      if (encounter != latest && encounter != latestWellness && ended(encounter, cutoffDate)
+          && encounter.conditions.isEmpty() && encounter.allergies.isEmpty()
+          && encounter.observations.isEmpty() && encounter.reports.isEmpty()
+          && encounter.procedures.isEmpty() && encounter.medications.isEmpty()
+          && encounter.immunizations.isEmpty() && encounter.careplans.isEmpty()
+          && (encounter.codes.isEmpty()
+              || !DeathModule.DEATH_CERTIFICATION.equals(encounter.codes.get(0)))) {
+        iterator.remove();
+        count += 1 + encounter.imagingStudies.size() + encounter.devices.size()
+            + encounter.supplies.size();
+      }
+    }
+    if (count > 0) {
+      record.resetObservationIndex();
+    }
+    return count;
+  }
+
+  /**
+   * Whether an encounter ended before the cutoff date. Encounters are given a stop time when
+   * they are created, so one without a stop time has not ended.
+   */
+  private static boolean ended(Encounter encounter, long cutoffDate) {
+    return encounter.stop != 0L && encounter.stop <= cutoffDate;
+  }
+
+  /**
+   * Whether an observation is the one that is found for its type in the encounter, and the
+   * encounter holds the latest observation of that type.
+   */
+  private static boolean isFirstOfType(Encounter encounter, Observation observation,
+      Set<String> latestTypes) {
+    return latestTypes.contains(observation.type)
+        && encounter.findObservation(observation.type) == observation;
+  }
+
+  /**
+   * Remove the entries of a list that ended before the cutoff date, unless kept by the keep
+   * function. Observations, reports, procedures and immunizations are not given a stop time
+   * after they are recorded, so one without a stop time ended when it started.
+   */
+  private static <E extends Entry> void evictEntries(List<E> entries, long cutoffDate,
+      Set<Entry> removed, Predicate<E> keepFunction) {
+    Iterator<E> iterator = entries.iterator();
+    while (iterator.hasNext()) {
+      E entry = iterator.next();
+      long end = (entry.stop == 0L) ? entry.start : entry.stop;
+      if (end <= cutoffDate && (keepFunction == null || !keepFunction.test(entry))) {
+        iterator.remove();
+        removed.add(entry);
+      }
+    }
+  }
+
+  /**
+   * Count the encounters of a record and the entries in them.
+   */
+  private static long countEntries(HealthRecord record) {
+    long count = 0;
+    for (Encounter encounter : record.encounters) {
+      count += 1 + encounter.observations.size() + encounter.reports.size()
+          + encounter.conditions.size() + encounter.allergies.size()
+          + encounter.procedures.size() + encounter.immunizations.size()
+          + encounter.medications.size() + encounter.careplans.size()
+          + encounter.imagingStudies.size() + encounter.devices.size()
+          + encounter.supplies.size();
+    }
+    return count;
+  }
+}
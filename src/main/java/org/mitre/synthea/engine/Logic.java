@@ -35,6 +35,19 @@ public abstract class Logic implements Serializable {
    */
   public abstract boolean test(Person person, long time);
 
+  /**
+   * Get a lower bound on the first time, at or after the given time, at which the logic may be
+   * true for the given person, assuming nothing about the person changes in the meantime other
+   * than the passing of time. Logic that depends on anything else returns the given time.
+   *
+   * @param person Person to execute logic against
+   * @param time Timestamp from which to look for the logic to pass
+   * @return the earliest time at which the logic may be true
+   */
+  public long earliestPass(Person person, long time) {
+    return time;
+  }
+
   /**
    * Find the most recent entry, of a specific type of HealthRecord.Entry
    * within the patient history. May return null.
@@ -46,6 +59,9 @@ public abstract class Logic implements Serializable {
   @SuppressWarnings("unchecked")
   private static <T extends HealthRecord.Entry> HealthRecord.Entry findEntryFromHistory(
       Person person, Class<T> classType, Code code) {
+    if (person.history instanceof StateHistory) {
+      return ((StateHistory) person.history).findEntry(classType, code);
+    }
     // Find the most recent health record entry from the patient history
     HealthRecord.Entry entry = null;
     for (State state : person.history) {
@@ -105,6 +121,35 @@ public abstract class Logic implements Serializable {
 
       return Utilities.compare(age, quantity, operator);
     }
+
+    @Override
+    public long earliestPass(Person person, long time) {
+      Object birthdate = person.attributes.get(Person.BIRTHDATE);
+      if (birthdate == null) {
+        return time;
+      }
+      // the age in whole units at which the logic first passes
+      long age;
+      if (">=".equals(operator)) {
+        age = (long) Math.ceil(quantity);
+      } else if (">".equals(operator)) {
+        age = (long) Math.floor(quantity) + 1;
+      } else {
+        return time;
+      }
+      // a year is at least 365 days and a month at least 28, and the local dates the age is
+      // calculated on may be up to two days off from the elapsed time
+      long days;
+      if ("years".equals(unit)) {
+        days = age * 365;
+      } else if ("months".equals(unit)) {
+        days = age * 28;
+      } else {
+        return time;
+      }
+      long earliest = (long) birthdate + Utilities.convertTime("days", days - 2);
+      return Math.max(time, earliest);
+    }
   }
   
   /**
@@ -226,7 +271,7 @@ public abstract class Logic implements Serializable {
                 findEntryFromHistory(person, HealthRecord.Observation.class, code);
             if (Boolean.parseBoolean(
                 Config.get("exporter.split_records.duplicate_data", "false"))) {
-              person.record.currentEncounter(time).observations.add(last);
+              person.record.currentEncounter(time).addObservation(last);
             }
           }
           if (last != null) {
@@ -303,6 +348,15 @@ public abstract class Logic implements Serializable {
     public boolean test(Person person, long time) {
       return conditions.stream().allMatch(c -> c.test(person, time));
     }
+
+    @Override
+    public long earliestPass(Person person, long time) {
+      long earliest = time;
+      for (Logic condition : conditions) {
+        earliest = Math.max(earliest, condition.earliestPass(person, time));
+      }
+      return earliest;
+    }
   }
 
   /**
@@ -315,6 +369,15 @@ public abstract class Logic implements Serializable {
     public boolean test(Person person, long time) {
       return conditions.stream().anyMatch(c -> c.test(person, time));
     }
+
+    @Override
+    public long earliestPass(Person person, long time) {
+      long earliest = Long.MAX_VALUE;
+      for (Logic condition : conditions) {
+        earliest = Math.min(earliest, condition.earliestPass(person, time));
+      }
+      return Math.max(time, earliest);
+    }
   }
 
   /**
@@ -9,30 +9,56 @@ import com.jayway.jsonpath.JsonPath;
 import com.jayway.jsonpath.spi.json.GsonJsonProvider;
 import com.jayway.jsonpath.spi.mapper.GsonMappingProvider;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.spi.FileSystemProvider;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Properties;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
+import java.util.stream.Stream;
 
+import org.apache.commons.codec.binary.Hex;
 import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.modules.CardiovascularDiseaseModule;
@@ -57,8 +83,27 @@ public class Module implements Serializable {
       .mappingProvider(new GsonMappingProvider())
       .build();
 
+  /**
+   * Packages (or classes) that cached modules may contain. Any other class in a module cache
+   * file is rejected before it is instantiated, since the cache folder may be shared.
+   */
+  private static final String[] CACHE_ALLOWED_CLASSES = {
+      "org.mitre.synthea.", "java.lang.", "java.util.", "java.math.", "com.google.gson.",
+      "com.google.common.collect.", "org.apache.commons.lang3.Range"};
+  /** Number of modules read from the module cache rather than parsed, and the time taken. */
+  private static final AtomicInteger CACHED_LOADS = new AtomicInteger();
+  private static final AtomicLong CACHED_LOAD_NANOS = new AtomicLong();
+  /** Number of modules parsed from JSON, and the time taken. */
+  private static final AtomicInteger PARSED_LOADS = new AtomicInteger();
+  private static final AtomicLong PARSED_LOAD_NANOS = new AtomicLong();
+
   private static final Map<String, ModuleSupplier> modules = loadModules();
-  
+  /**
+   * Snapshot of the loaded modules, published by {@link #warmUp()} and cleared whenever modules
+   * are added. Readers only need the volatile read, not a lock.
+   */
+  private static volatile Registry registry;
+
   private static Map<String, ModuleSupplier> loadModules() {
     Map<String, ModuleSupplier> retVal = new ConcurrentHashMap<>();
     int submoduleCount = 0;
@@ -129,7 +174,7 @@ public class Module implements Serializable {
    * unit tests.
    * @param dir - the folder or directory to add.
    */
-  public static void addModules(File dir) {
+  public static synchronized void addModules(File dir) {
     int submoduleCount = 0;
     int originalModuleCount = modules.size();
     Properties moduleOverrides = getModuleOverrides();
@@ -138,6 +183,7 @@ public class Module implements Serializable {
     } catch (Exception e) {
       e.printStackTrace();
     }
+    registry = null;
 
     System.out.format("Scanned %d local modules and %d local submodules.\n", 
                       modules.size() - (originalModuleCount + submoduleCount), 
@@ -180,9 +226,182 @@ public class Module implements Serializable {
     if (overrides != null) {
       jsonString = applyOverrides(jsonString, overrides, path.getFileName().toString());
     }
+    File cacheFile = getCacheFile(jsonString, submodule);
+    long start = System.nanoTime();
+    if (cacheFile != null) {
+      Module cached = readCacheFile(cacheFile);
+      if (cached != null) {
+        CACHED_LOADS.incrementAndGet();
+        CACHED_LOAD_NANOS.addAndGet(System.nanoTime() - start);
+        return cached;
+      }
+      start = System.nanoTime();
+    }
     JsonParser parser = new JsonParser();
     JsonObject object = parser.parse(jsonString).getAsJsonObject();
-    return new Module(object, submodule);
+    Module module = new Module(object, submodule);
+    PARSED_LOADS.incrementAndGet();
+    PARSED_LOAD_NANOS.addAndGet(System.nanoTime() - start);
+    if (cacheFile != null) {
+      writeCacheFile(module, cacheFile);
+    }
+    return module;
+  }
+
+  /**
+   * Get the file in the module cache folder (generate.modules.cache_dir) that the compiled form
+   * of a module is stored in. The file is named after a hash of the module JSON, after any
+   * overrides have been applied, and of the Synthea code (see {@link #getCodeFingerprint()}), so
+   * a changed module, override or build never matches an old file.
+   * @param jsonString the module definition
+   * @param submodule whether the module is a submodule
+   * @return the cache file, or null if the module cache is disabled
+   */
+  private static File getCacheFile(String jsonString, boolean submodule) {
+    String cacheDir = Config.get("generate.modules.cache_dir", "");
+    String fingerprint = getCodeFingerprint();
+    if (cacheDir.trim().isEmpty() || fingerprint == null) {
+      return null;
+    }
+    MessageDigest md = sha256();
+    md.update((fingerprint + "|" + submodule + "|").getBytes(StandardCharsets.UTF_8));
+    byte[] hash = md.digest(jsonString.getBytes(StandardCharsets.UTF_8));
+    return new File(cacheDir.trim(), Hex.encodeHexString(hash) + ".module");
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Get a fingerprint of the Synthea code that the compiled modules depend on: a hash of the jar
+   * that this class was loaded from, or of every class file when running from a folder of
+   * classes. Any rebuild with changes therefore invalidates the module cache, without anyone
+   * having to remember to bump a version number.
+   * @return the fingerprint, or null if the code could not be read, which disables the cache
+   */
+  static String getCodeFingerprint() {
+    return CodeFingerprint.VALUE;
+  }
+
+  /** Holder, so the fingerprint is only computed if the module cache is used. */
+  private static class CodeFingerprint {
+    private static final String VALUE = compute();
+
+    private static String compute() {
+      try {
+        URL location = Module.class.getProtectionDomain().getCodeSource().getLocation();
+        Path code = Paths.get(location.toURI());
+        MessageDigest md = sha256();
+        if (Files.isDirectory(code)) {
+          List<Path> classFiles = new ArrayList<Path>();
+          try (Stream<Path> files = Files.walk(code)) {
+            files.filter(p -> p.toString().endsWith(".class")).forEach(classFiles::add);
+          }
+          // sort so that the hash does not depend on the order of the directory listing
+          Collections.sort(classFiles);
+          for (Path classFile : classFiles) {
+            md.update(code.relativize(classFile).toString().getBytes(StandardCharsets.UTF_8));
+            md.update(Files.readAllBytes(classFile));
+          }
+        } else {
+          try (InputStream in = new BufferedInputStream(Files.newInputStream(code))) {
+            byte[] buffer = new byte[65536];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+              md.update(buffer, 0, read);
+            }
+          }
+        }
+        return Hex.encodeHexString(md.digest());
+      } catch (Exception e) {
+        System.err.format("Module cache disabled, unable to fingerprint the code: %s\n", e);
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Read a compiled module from the module cache. Only the classes allowed by
+   * CACHE_ALLOWED_CLASSES are deserialized.
+   * @param cacheFile the file to read
+   * @return the module, or null if it is not cached or could not be read, e.g. because it
+   *     contains a class that is not allowed
+   */
+  private static Module readCacheFile(File cacheFile) {
+    if (!cacheFile.exists()) {
+      return null;
+    }
+    try (ObjectInputStream ois = new CacheInputStream(
+        new BufferedInputStream(new FileInputStream(cacheFile)))) {
+      return (Module) ois.readObject();
+    } catch (Exception e) {
+      System.err.format("Ignoring unreadable module cache file %s: %s\n", cacheFile, e);
+      return null;
+    }
+  }
+
+  /**
+   * Object stream that rejects any class that compiled modules do not contain, before it is
+   * instantiated. This works like an ObjectInputFilter, which is not available on Java 8.
+   */
+  private static class CacheInputStream extends ObjectInputStream {
+    private CacheInputStream(InputStream in) throws IOException {
+      super(in);
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc)
+        throws IOException, ClassNotFoundException {
+      String name = desc.getName();
+      // arrays are allowed if their component type is, e.g. [Ljava.lang.String; or [J
+      int dimensions = 0;
+      while (name.charAt(dimensions) == '[') {
+        dimensions++;
+      }
+      if (dimensions > 0) {
+        name = (name.charAt(dimensions) == 'L')
+            ? name.substring(dimensions + 1, name.length() - 1) : "java.lang.primitive";
+      }
+      for (String allowed : CACHE_ALLOWED_CLASSES) {
+        if (name.startsWith(allowed)) {
+          return super.resolveClass(desc);
+        }
+      }
+      throw new InvalidClassException(desc.getName(), "not allowed in the module cache");
+    }
+
+    @Override
+    protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+      throw new InvalidClassException("proxy", "not allowed in the module cache");
+    }
+  }
+
+  /**
+   * Write a compiled module to the module cache. The module is written to a temporary file that
+   * is then moved into place, so other processes sharing the cache never see a partial file.
+   * @param module the module to write
+   * @param cacheFile the file to write it to
+   */
+  private static void writeCacheFile(Module module, File cacheFile) {
+    try {
+      cacheFile.getParentFile().mkdirs();
+      File tempFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getParentFile());
+      try (ObjectOutputStream oos = new ObjectOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+        oos.writeObject(module);
+      }
+      try {
+        Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
   }
 
   private static String applyOverrides(String jsonString, Properties overrides,
@@ -220,15 +439,7 @@ public class Module implements Serializable {
    *     supplied predicate. Submodules are loaded, but not included.
    */
   public static List<Module> getModules(Predicate<String> pathPredicate) {
-    List<Module> list = new ArrayList<Module>();
-    modules.forEach((k, v) -> {
-      if (v.submodule) {
-        v.get(); // ensure submodules get loaded
-      } else if (v.core || pathPredicate.test(v.path)) {
-        list.add(v.get());
-      }
-    });
-    return list;
+    return new ArrayList<Module>(Arrays.asList(warmUp(pathPredicate).select(pathPredicate)));
   }
 
   /**
@@ -239,10 +450,126 @@ public class Module implements Serializable {
    * @return module : the given module
    */
   public static Module getModuleByPath(String path) {
+    Registry current = registry;
+    if (current != null) {
+      Module module = current.byPath.get(path);
+      if (module != null) {
+        return module;
+      }
+    }
     ModuleSupplier supplier = modules.get(path);
     return supplier == null ? null : supplier.get();
   }
 
+  /**
+   * Get the registry of loaded modules. If no modules have been loaded yet, the core modules
+   * and submodules are loaded first.
+   * @return the current module registry
+   */
+  public static Registry getRegistry() {
+    Registry current = registry;
+    return (current == null) ? warmUp(path -> false) : current;
+  }
+
+  /**
+   * Load every known module and submodule and publish the resulting registry.
+   * @return the current module registry
+   * @throws RuntimeException if any top-level module fails to load
+   * @see #warmUp(Predicate)
+   */
+  public static Registry warmUp() {
+    return warmUp(path -> true);
+  }
+
+  /**
+   * Load the core modules, the submodules and the top-level modules allowed by the given
+   * predicate, and publish a registry of every module loaded so far. This is done automatically
+   * on first use, but may be called explicitly so that the cost of loading is not paid by the
+   * first persons to be simulated. Modules that are not selected are not loaded, so they cannot
+   * fail the run. A submodule that fails to load is reported, and left out of the registry; the
+   * error is thrown again if the submodule is used.
+   * @param pathPredicate filter on the relative path of the top-level modules to load
+   * @return the current module registry
+   * @throws RuntimeException if any selected top-level module fails to load
+   */
+  public static synchronized Registry warmUp(Predicate<String> pathPredicate) {
+    List<ModuleSupplier> unloaded = new ArrayList<ModuleSupplier>();
+    for (ModuleSupplier supplier : modules.values()) {
+      if (!supplier.isLoaded()
+          && (supplier.submodule || supplier.core || pathPredicate.test(supplier.path))) {
+        unloaded.add(supplier);
+      }
+    }
+    if (registry == null || !unloaded.isEmpty()) {
+      loadAll(unloaded);
+      registry = new Registry(modules);
+    }
+    return registry;
+  }
+
+  /**
+   * Load the given modules in parallel, using generate.modules.load_threads threads (or one per
+   * available processor), and print how long that took. When generate.modules.load_report is
+   * true, the time taken and number of states of each module are printed as well.
+   * @param suppliers the modules to load
+   * @throws RuntimeException as soon as any top-level module fails to load
+   */
+  private static void loadAll(Collection<ModuleSupplier> suppliers) {
+    int threads = Integer.parseInt(Config.get("generate.modules.load_threads", "0"));
+    if (threads <= 0) {
+      threads = Runtime.getRuntime().availableProcessors();
+    }
+    long start = System.nanoTime();
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    CompletionService<Module> completion = new ExecutorCompletionService<Module>(pool);
+    Map<Future<Module>, ModuleSupplier> pending = new HashMap<Future<Module>, ModuleSupplier>();
+    try {
+      for (ModuleSupplier supplier : suppliers) {
+        pending.put(completion.submit(supplier::get), supplier);
+      }
+      for (int i = 0; i < suppliers.size(); i++) {
+        Future<Module> future = completion.take();
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          ModuleSupplier failed = pending.get(future);
+          if (!failed.submodule) {
+            throw new RuntimeException("Unable to load module " + failed.path, e.getCause());
+          }
+          // only fail if a module that is simulated actually calls the submodule
+          System.out.format("Unable to load submodule %s, error: %s\n", failed.path,
+              e.getCause().getMessage());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while loading modules", e);
+    } finally {
+      pool.shutdownNow();
+    }
+    System.out.format("Loaded %d modules in %d ms using %d threads (%d from the module cache).\n",
+        suppliers.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), threads,
+        CACHED_LOADS.get());
+    if (!Config.get("generate.modules.cache_dir", "").trim().isEmpty()) {
+      // so the benefit of the cache can be seen on the modules and hardware actually used
+      System.out.format("Module cache: %d cached in %d ms, %d parsed in %d ms.\n",
+          CACHED_LOADS.get(), TimeUnit.NANOSECONDS.toMillis(CACHED_LOAD_NANOS.get()),
+          PARSED_LOADS.get(), TimeUnit.NANOSECONDS.toMillis(PARSED_LOAD_NANOS.get()));
+    }
+
+    if (Boolean.parseBoolean(Config.get("generate.modules.load_report", "false"))) {
+      List<ModuleSupplier> sorted = new ArrayList<ModuleSupplier>(suppliers);
+      sorted.sort((a, b) -> Long.compare(b.loadTime, a.loadTime));
+      System.out.println("    Time (ms)  States  Module");
+      for (ModuleSupplier supplier : sorted) {
+        if (supplier.isAvailable()) {
+          System.out.format("%13.1f  %6d  %s\n", supplier.loadTime / 1e6,
+              supplier.get().getStateNames().size(), supplier.path);
+        }
+      }
+    }
+  }
+
   public String name;
   public boolean submodule;
   public List<String> remarks;
@@ -294,7 +621,7 @@ public class Module implements Serializable {
     person.history = null;
     // what current state is this person in?
     if (!person.attributes.containsKey(this.name)) {
-      person.history = new LinkedList<State>();
+      person.history = new StateHistory();
       person.history.add(initialState());
       person.attributes.put(this.name, person.history);
     }
@@ -332,6 +659,50 @@ public class Module implements Serializable {
     return (current instanceof State.Terminal);
   }
 
+  /**
+   * Get the earliest time at which processing this Module for the given Person may have any
+   * effect, given that it was processed at the given time and did not complete. This is the
+   * wake time of the state the Person is in. Non-GMF modules, and states that can not tell when
+   * they may exit, return the given time, meaning that the module should be processed on the
+   * next time step.
+   *
+   * @param person
+   *          : the person being simulated
+   * @param time
+   *          : the date within the simulated world at which the module was last processed
+   * @return the earliest time at which processing the module may have any effect
+   */
+  @SuppressWarnings("unchecked")
+  public long nextWakeTime(Person person, long time) {
+    if (states == null) {
+      return time;
+    }
+    List<State> history = (List<State>) person.attributes.get(this.name);
+    if (history == null || history.isEmpty()) {
+      return time;
+    }
+    return history.get(0).nextWakeTime(person, time);
+  }
+
+  /**
+   * Skip processing this Module for the given Person at the specified time, because the time is
+   * before its wake time. This leaves the Person as processing the module would have.
+   *
+   * @param person
+   *          : the person being simulated
+   * @param time
+   *          : the date within the simulated world
+   * @return completed : whether or not this Module completed.
+   */
+  @SuppressWarnings("unchecked")
+  public boolean skip(Person person, long time) {
+    if (!person.alive(time)) {
+      return true;
+    }
+    person.history = (List<State>) person.attributes.get(this.name);
+    return false;
+  }
+
   private State initialState() {
     return states.get("Initial").clone(); // all Initial states have name Initial
   }
@@ -371,6 +742,8 @@ public class Module implements Serializable {
     private Callable<Module> loader;
     private Module module;
     private Throwable fault;
+    /** Time taken to load the module, in nanoseconds. Zero for core modules. */
+    private long loadTime;
 
     /**
      * Create a ModuleSupplier.
@@ -403,6 +776,7 @@ public class Module implements Serializable {
     @Override
     public synchronized Module get() {
       if (!loaded) {
+        long start = System.nanoTime();
         try {
           module = loader.call();
         } catch (Throwable e) {
@@ -411,6 +785,7 @@ public class Module implements Serializable {
         } finally {
           loaded = true;
           loader = null;
+          loadTime = System.nanoTime() - start;
         }
       }
       if (fault != null) {
@@ -418,5 +793,89 @@ public class Module implements Serializable {
       }
       return module;
     }
+
+    private synchronized boolean isLoaded() {
+      return loaded;
+    }
+
+    /** Whether the module has been loaded without errors. */
+    private synchronized boolean isAvailable() {
+      return loaded && fault == null;
+    }
+  }
+
+  /**
+   * An immutable snapshot of the loaded modules. Lookups on a registry take no locks, so it can
+   * be shared freely between the threads simulating persons. Modules that have not been loaded,
+   * or that failed to load, are not part of the registry.
+   */
+  public static final class Registry {
+    /** Top-level modules, in the iteration order of the module map. */
+    private final Module[] topLevel;
+    private final String[] paths;
+    private final boolean[] core;
+    private final Map<String, Module> byPath;
+
+    private Registry(Map<String, ModuleSupplier> suppliers) {
+      Map<String, Module> loaded = new HashMap<String, Module>();
+      List<ModuleSupplier> topLevelSuppliers = new ArrayList<ModuleSupplier>();
+      for (Entry<String, ModuleSupplier> entry : suppliers.entrySet()) {
+        ModuleSupplier supplier = entry.getValue();
+        if (supplier.isAvailable()) {
+          loaded.put(entry.getKey(), supplier.get());
+          if (!supplier.submodule) {
+            topLevelSuppliers.add(supplier);
+          }
+        }
+      }
+      // modules are processed in this order for each person, so it is kept the same as before
+      // the registry existed (the module map order), to keep the output for a seed the same
+      topLevel = new Module[topLevelSuppliers.size()];
+      paths = new String[topLevel.length];
+      core = new boolean[topLevel.length];
+      for (int i = 0; i < topLevel.length; i++) {
+        ModuleSupplier supplier = topLevelSuppliers.get(i);
+        topLevel[i] = supplier.get();
+        paths[i] = supplier.path;
+        core[i] = supplier.core;
+      }
+      byPath = Collections.unmodifiableMap(loaded);
+    }
+
+    /**
+     * Select the loaded top-level modules allowed by the given predicate. Core modules are always
+     * included and submodules never are. The result is in the same order every time, and should
+     * be resolved once and reused rather than selected for every person. Use
+     * {@link Module#warmUp(Predicate)} with the same predicate first, so that the selected
+     * modules are loaded.
+     * @param pathPredicate filter on the relative path of each module
+     * @return a new array of the selected modules
+     */
+    public Module[] select(Predicate<String> pathPredicate) {
+      List<Module> selected = new ArrayList<Module>();
+      for (int i = 0; i < topLevel.length; i++) {
+        if (core[i] || pathPredicate.test(paths[i])) {
+          selected.add(topLevel[i]);
+        }
+      }
+      return selected.toArray(new Module[selected.size()]);
+    }
+
+    /**
+     * Get a module or submodule by path.
+     * @param path the relative path of the module, as in {@link Module#getModuleByPath(String)}
+     * @return the module, or null if there is no such module
+     */
+    public Module get(String path) {
+      return byPath.get(path);
+    }
+
+    /**
+     * Get the number of modules and submodules in this registry.
+     * @return the number of modules
+     */
+    public int size() {
+      return byPath.size();
+    }
   }
 }
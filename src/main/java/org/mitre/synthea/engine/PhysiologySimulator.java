@@ -1,5 +1,9 @@
 package org.mitre.synthea.engine;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -17,7 +21,11 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import javax.xml.stream.XMLStreamException;
 
 import org.apache.commons.lang3.ArrayUtils;
@@ -25,6 +33,7 @@ import org.apache.commons.math.ode.DerivativeException;
 import org.mitre.synthea.helpers.ChartRenderer;
 import org.mitre.synthea.helpers.ChartRenderer.MultiTableChartConfig;
 import org.mitre.synthea.helpers.ChartRenderer.MultiTableSeriesConfig;
+import org.mitre.synthea.helpers.Config;
 import org.sbml.jsbml.Model;
 import org.sbml.jsbml.SBMLDocument;
 import org.sbml.jsbml.SBMLException;
@@ -54,7 +63,15 @@ public class PhysiologySimulator {
   private static final URL MODELS_RESOURCE = ClassLoader.getSystemClassLoader()
       .getResource("physiology/models");
   private static final Map<String, Class<?>> SOLVER_CLASSES;
-  private static Map<String, Model> MODEL_CACHE;
+  private static final Map<String, Model> MODEL_CACHE = new ConcurrentHashMap<String, Model>();
+  /** Idle simulators, keyed by their model, solver, step size and duration. */
+  private static final Map<String, Queue<PhysiologySimulator>> POOL =
+      new ConcurrentHashMap<String, Queue<PhysiologySimulator>>();
+  /**
+   * Results of previous simulations, keyed by simulator settings and (quantized) inputs.
+   * Null if "physiology.cache.size" is 0, which disables the cache.
+   */
+  private static Cache<ResultKey, MultiTable> RESULT_CACHE;
   private static Path SBML_PATH;
   private static Path OUTPUT_PATH = Paths.get("output", "physiology");
   
@@ -64,6 +81,34 @@ public class PhysiologySimulator {
   private final String[] modelFields;
   private final double[] modelDefaults;
   private final double simDuration;
+  private final String poolKey;
+  /** Quantization step of each model field when caching results, 0 if not quantized. */
+  private final double[] quantization;
+
+  /** Identifies the results of a simulation in the result cache. */
+  private static class ResultKey {
+    private final String settings;
+    private final double[] params;
+
+    ResultKey(String settings, double[] params) {
+      this.settings = settings;
+      this.params = params;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * settings.hashCode() + Arrays.hashCode(params);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof ResultKey)) {
+        return false;
+      }
+      ResultKey other = (ResultKey) obj;
+      return settings.equals(other.settings) && Arrays.equals(params, other.params);
+    }
+  }
 
   /** POJO configuration for the simulation. **/
   public static class SimConfig {
@@ -156,11 +201,31 @@ public class PhysiologySimulator {
     } catch (URISyntaxException ex) {
       throw new RuntimeException(ex);
     }
-    
-    // Initialize our model cache
-    MODEL_CACHE = new HashMap<String, Model>();
+
+    setResultCacheSize(Long.parseLong(Config.get("physiology.cache.size", "0")));
   }
   
+  /**
+   * Sets the maximum number of simulation results to keep in the result cache. Results are
+   * evicted least recently used first. Any previously cached results are discarded.
+   * @param size maximum number of results to cache, or 0 to disable the cache
+   */
+  public static void setResultCacheSize(long size) {
+    if (size > 0) {
+      RESULT_CACHE = CacheBuilder.newBuilder().maximumSize(size).recordStats().build();
+    } else {
+      RESULT_CACHE = null;
+    }
+  }
+
+  /**
+   * Returns the hit and miss counts of the result cache.
+   * @return cache statistics, or null if the result cache is disabled
+   */
+  public static CacheStats getResultCacheStats() {
+    return (RESULT_CACHE == null) ? null : RESULT_CACHE.stats();
+  }
+
   /**
    * Sets the path to search for SBML model files.
    * @param newPath new path to use
@@ -187,31 +252,77 @@ public class PhysiologySimulator {
   public PhysiologySimulator(String modelPath, String solverName, double stepSize,
       double simDuration) {
     
-    // Get the model from cache if it has already been loaded
-    if (MODEL_CACHE.containsKey(modelPath)) {
-      model = MODEL_CACHE.get(modelPath);
-    } else {
-      // Load and instantiate the model from the SBML file
-      Path modelFilepath = Paths.get(SBML_PATH.toString(), modelPath);
-      SBMLReader reader = new SBMLReader();
-      File inputFile = new File(modelFilepath.toString());
-      SBMLDocument doc;
-      try {
-        doc = reader.readSBML(inputFile);
-      } catch (IOException | XMLStreamException ex) {
-        throw new RuntimeException(ex);
-      }
-      model = doc.getModel();
-      
-      // Add the loaded model to the cache so we don't need to load it again
-      MODEL_CACHE.put(modelPath, model);
-    }
+    // Get the model from cache, loading it the first time it is used
+    model = MODEL_CACHE.computeIfAbsent(modelPath, PhysiologySimulator::loadModel);
     interpreter = getInterpreter(model);
     solver = getSolver(solverName);
     solver.setStepSize(stepSize);
     modelFields = interpreter.getIdentifiers();
     modelDefaults = interpreter.getInitialValues();
     this.simDuration = simDuration;
+    this.poolKey = getPoolKey(modelPath, solverName, stepSize, simDuration);
+
+    String defaultStep = Config.get("physiology.cache.quantization", "0");
+    quantization = new double[modelFields.length];
+    for (int i = 0; i < modelFields.length; i++) {
+      quantization[i] = Double.parseDouble(
+          Config.get("physiology.cache.quantization." + modelFields[i], defaultStep));
+    }
+  }
+
+  /**
+   * Borrow a simulator from the shared pool, or create a new one if none are idle. Creating a
+   * simulator builds a new interpreter for the model, so states that run simulations repeatedly
+   * should borrow one for each run and hand it back with {@link #release(PhysiologySimulator)}.
+   * A borrowed simulator must not be used by more than one thread at a time.
+   * @param modelPath Path to the SBML file to load relative to resources/physiology
+   * @param solverName Name of the solver to use
+   * @param stepSize Time step for the simulation
+   * @param simDuration Amount of time to simulate
+   * @return a simulator for the exclusive use of the caller
+   */
+  public static PhysiologySimulator borrow(String modelPath, String solverName, double stepSize,
+      double simDuration) {
+    Queue<PhysiologySimulator> idle =
+        POOL.get(getPoolKey(modelPath, solverName, stepSize, simDuration));
+    PhysiologySimulator simulator = (idle == null) ? null : idle.poll();
+    if (simulator == null) {
+      simulator = new PhysiologySimulator(modelPath, solverName, stepSize, simDuration);
+    }
+    return simulator;
+  }
+
+  /**
+   * Return a simulator obtained from {@link #borrow(String, String, double, double)} to the pool.
+   * The caller must not use the simulator afterwards.
+   * @param simulator the simulator to return
+   */
+  public static void release(PhysiologySimulator simulator) {
+    POOL.computeIfAbsent(simulator.poolKey, k -> new ConcurrentLinkedQueue<PhysiologySimulator>())
+        .offer(simulator);
+  }
+
+  private static String getPoolKey(String modelPath, String solverName, double stepSize,
+      double simDuration) {
+    return modelPath + "|" + solverName + "|" + stepSize + "|" + simDuration;
+  }
+
+  /**
+   * Load an SBML model from a file.
+   * @param modelPath Path to the SBML file to load relative to resources/physiology
+   * @return the model
+   */
+  private static Model loadModel(String modelPath) {
+    Path modelFilepath = Paths.get(SBML_PATH.toString(), modelPath);
+    SBMLReader reader = new SBMLReader();
+    File inputFile = new File(modelFilepath.toString());
+    SBMLDocument doc;
+    try {
+      doc = reader.readSBML(inputFile);
+    } catch (IOException | XMLStreamException ex) {
+      throw new RuntimeException(ex);
+    }
+    return doc.getModel();
   }
   
   /**
@@ -230,6 +341,12 @@ public class PhysiologySimulator {
    * 
    * <p>Note that this method will throw a DerivativeException if the model encounters an error
    * while attempting to solve the system.
+   *
+   * <p>If the result cache is enabled ("physiology.cache.size"), provided inputs are first
+   * rounded to the step configured in "physiology.cache.quantization" (or
+   * "physiology.cache.quantization.[name]" for a single parameter), and results for inputs
+   * that were already simulated are returned from the cache. Model defaults are never rounded.
+   * Results may be shared, so callers must not modify them.
    * @param inputs Map of model parameter inputs. For any parameters which are not provided
    *               the default value from the model will be used. If null, all default
    *               parameter values will be used.
@@ -238,17 +355,10 @@ public class PhysiologySimulator {
    *        solution to differential equations
    */
   public MultiTable run(Map<String, Double> inputs) throws DerivativeException {
-    try {
-      // Reinitialize the interpreter to prevent old values from affecting the new simulation
-      interpreter.init(true);
-    } catch (ModelOverdeterminedException | SBMLException ex) {
-      // This shouldn't ever happen here since the interpreter has already been instantiated
-      // at least once
-      throw new RuntimeException(ex);
-    }
-    
     // Create a copy of the default parameters to use
     double[] params = Arrays.copyOf(modelDefaults, modelDefaults.length);
+    // Which parameters were provided, as opposed to model defaults
+    boolean[] provided = new boolean[params.length];
 
     // Overwrite model defaults with the provided input parameters, if present
     if (inputs != null) {
@@ -256,14 +366,53 @@ public class PhysiologySimulator {
         String field = modelFields[i];
         if (inputs.containsKey(field)) {
           params[i] = inputs.get(field);
+          provided[i] = true;
         }
       }
     }
+
+    Cache<ResultKey, MultiTable> cache = RESULT_CACHE;
+    if (cache == null) {
+      return solve(params);
+    }
+
+    // Round the inputs, so that similar inputs share results. The rounded inputs are also the
+    // ones that get simulated, so results do not depend on which input was simulated first.
+    // Model defaults (rate constants, initial values) are never rounded, since a global step
+    // could change them, e.g. round a rate constant of 0.003 to 0.
+    for (int i = 0; i < params.length; i++) {
+      if (provided[i] && quantization[i] > 0) {
+        params[i] = Math.round(params[i] / quantization[i]) * quantization[i];
+      }
+    }
+    try {
+      return cache.get(new ResultKey(poolKey, params), () -> solve(params));
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof DerivativeException) {
+        throw (DerivativeException) ex.getCause();
+      }
+      throw new RuntimeException(ex.getCause());
+    }
+  }
+
+  /**
+   * Solves the model for the specified duration with the given initial parameters.
+   * @param params initial value of every model parameter
+   * @return simulation results
+   * @throws DerivativeException if the solver encounters errors
+   */
+  private MultiTable solve(double[] params) throws DerivativeException {
+    try {
+      // Reinitialize the interpreter to prevent old values from affecting the new simulation
+      interpreter.init(true);
+    } catch (ModelOverdeterminedException | SBMLException ex) {
+      // This shouldn't ever happen here since the interpreter has already been instantiated
+      // at least once
+      throw new RuntimeException(ex);
+    }
     
     // Solve the ODE for the specified duration and return the results
-    MultiTable results = solver.solve(interpreter, params, 0, simDuration);
-    
-    return results;
+    return solver.solve(interpreter, params, 0, simDuration);
   }
 
   /**
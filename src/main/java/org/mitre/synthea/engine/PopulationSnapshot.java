@@ -0,0 +1,429 @@
+package org.mitre.synthea.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.mitre.synthea.world.agents.Payer;
+import org.mitre.synthea.world.agents.Person;
+import org.mitre.synthea.world.agents.Provider;
+import org.mitre.synthea.world.geography.Location;
+
+/**
+ * A population snapshot, as saved with <code>updatedPopulationSnapshotPath</code> and loaded
+ * with <code>initialPopulationSnapshotPath</code>. Each person is serialized and compressed
+ * independently, so persons can be written as they finish and read one at a time, and the
+ * population never has to be held in memory at once.
+ *
+ * <p>The file format is:
+ * <ul>
+ * <li>a header: the magic number and the format version.</li>
+ * <li>one record per person: the index of the person, the length of the data and the data,
+ * which is the person in Java serialization, compressed with Deflate. Records are in the order
+ * the persons were written, which is not necessarily the order of their index.</li>
+ * <li>an index, written when the snapshot is closed: -1, the number of records, and the index
+ * and file offset of each record.</li>
+ * <li>a trailer: the file offset of the index and the magic number.</li>
+ * </ul>
+ * A snapshot that was not closed, e.g. because the generator was stopped, has no index. The
+ * records in it can still be read, up to the last one that was written completely.
+ *
+ * <p>The modules, providers, payers and location that persons refer to are shared by the
+ * whole population, and are large: modules hold all of their states, payers the utilization of
+ * every person they cover, and the location the demographics of every city in it. So rather
+ * than writing a copy of them with every person, they are written as references (by module
+ * path, by UUID, or by state and city) and resolved to the modules, providers, payers and
+ * location that are loaded when the snapshot is read. A snapshot must therefore be read with
+ * the same modules and the same location as it was written with. Snapshots written as a single
+ * serialized list of persons by earlier versions are not in this format; see
+ * {@link #isSnapshot(File)}.
+ */
+public final class PopulationSnapshot {
+  /** "SYNS". */
+  private static final int MAGIC = 0x53594E53;
+  private static final int VERSION = 1;
+  /** The index of the marker record that starts the index. */
+  private static final int INDEX_MARKER = -1;
+  /** The length of the trailer: the offset of the index and the magic number. */
+  private static final int TRAILER_LENGTH = Long.BYTES + Integer.BYTES;
+
+  private PopulationSnapshot() {
+    // no instances
+  }
+
+  /**
+   * Check whether a file is a population snapshot in this format.
+   * @param file the file
+   * @return true if the file starts with the magic number of this format
+   * @throws IOException if the file can not be read
+   */
+  public static boolean isSnapshot(File file) throws IOException {
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      return in.readInt() == MAGIC;
+    } catch (EOFException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Writes persons to a population snapshot. Persons may be written from several threads at
+   * once: each is serialized and compressed on the calling thread, and only appending the
+   * compressed record to the file is synchronized.
+   *
+   * <p>Records are appended in the order they are written, so when the generator writes each
+   * person as they finish, they are in order of completion rather than of their index.
+   * Consumers that need the population in index order must sort by {@link Record#index}.
+   */
+  public static class Writer implements Closeable {
+    private final DataOutputStream out;
+    private final SharedObjects shared;
+    /** The index and file offset of each record written, in the order they were written. */
+    private final ByteArrayOutputStream index;
+    private final DataOutputStream indexOut;
+    private long offset;
+    private int count;
+
+    /**
+     * Create a snapshot file, replacing it if it exists.
+     * @param file the file to write
+     * @param location the location of the population
+     * @throws IOException if the file can not be created
+     */
+    public Writer(File file, Location location) throws IOException {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+      shared = SharedObjects.loaded(location);
+      index = new ByteArrayOutputStream();
+      indexOut = new DataOutputStream(index);
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      offset = out.size();
+    }
+
+    /**
+     * Append a person to the snapshot.
+     * @param person the person
+     * @param index the index of the person in the population
+     * @throws IOException if the person can not be serialized or written
+     */
+    public void write(Person person, int index) throws IOException {
+      ByteArrayOutputStream data = new ByteArrayOutputStream();
+      try (ObjectOutputStream oos = new SnapshotOutputStream(new DeflaterOutputStream(data),
+          shared)) {
+        oos.writeObject(person);
+      }
+      append(index, data);
+    }
+
+    private synchronized void append(int personIndex, ByteArrayOutputStream data)
+        throws IOException {
+      indexOut.writeInt(personIndex);
+      indexOut.writeLong(offset);
+      out.writeInt(personIndex);
+      out.writeInt(data.size());
+      data.writeTo(out);
+      offset += Integer.BYTES * 2 + data.size();
+      count++;
+    }
+
+    /**
+     * Get the number of persons written so far.
+     * @return the number of persons
+     */
+    public synchronized int size() {
+      return count;
+    }
+
+    /**
+     * Write the index and the trailer, and close the file.
+     * @throws IOException if they can not be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+      long indexOffset = offset;
+      out.writeInt(INDEX_MARKER);
+      out.writeInt(count);
+      index.writeTo(out);
+      out.writeLong(indexOffset);
+      out.writeInt(MAGIC);
+      out.close();
+    }
+  }
+
+  /**
+   * Reads the records of a population snapshot in the order they were written. Only the
+   * compressed data of each record is read; it is decompressed and deserialized by
+   * {@link Record#read()}, which may be called on any thread.
+   */
+  public static class Reader implements Closeable {
+    private final DataInputStream in;
+    private final SharedObjects shared;
+    private final int size;
+    private boolean finished;
+
+    /**
+     * Open a snapshot file.
+     * @param file the file to read
+     * @param location the location of the population
+     * @throws IOException if the file can not be read or is not a population snapshot
+     */
+    public Reader(File file, Location location) throws IOException {
+      size = readSize(file);
+      shared = SharedObjects.loaded(location);
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      if (in.readInt() != MAGIC) {
+        in.close();
+        throw new IOException("Not a population snapshot: " + file);
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        in.close();
+        throw new IOException("Unsupported population snapshot version " + version);
+      }
+    }
+
+    /**
+     * Read the number of records from the index of a snapshot.
+     * @return the number of records, or -1 if the snapshot has no index
+     */
+    private static int readSize(File file) throws IOException {
+      if (file.length() < Integer.BYTES * 2 + TRAILER_LENGTH) {
+        return -1;
+      }
+      try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+        raf.seek(file.length() - TRAILER_LENGTH);
+        long indexOffset = raf.readLong();
+        if (raf.readInt() != MAGIC || indexOffset < 0
+            || indexOffset > file.length() - TRAILER_LENGTH - Integer.BYTES * 2) {
+          return -1;
+        }
+        raf.seek(indexOffset);
+        if (raf.readInt() != INDEX_MARKER) {
+          return -1;
+        }
+        return raf.readInt();
+      }
+    }
+
+    /**
+     * Get the number of persons in the snapshot, from its index.
+     * @return the number of persons, or -1 if the snapshot was not closed and has no index
+     */
+    public int size() {
+      return size;
+    }
+
+    /**
+     * Read the next record, in the order the records were written (see {@link Writer}).
+     * @return the record, or null if there are no more records
+     * @throws IOException if the file can not be read
+     */
+    public Record next() throws IOException {
+      if (finished) {
+        return null;
+      }
+      try {
+        int personIndex = in.readInt();
+        if (personIndex == INDEX_MARKER) {
+          finished = true;
+          return null;
+        }
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return new Record(personIndex, data, shared);
+      } catch (EOFException e) {
+        // the snapshot was not closed, and the last record may be incomplete
+        finished = true;
+        return null;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * One compressed person in a population snapshot.
+   */
+  public static class Record {
+    /** The index of the person in the population. */
+    public final int index;
+    private final byte[] data;
+    private final SharedObjects shared;
+
+    private Record(int index, byte[] data, SharedObjects shared) {
+      this.index = index;
+      this.data = data;
+      this.shared = shared;
+    }
+
+    /**
+     * Decompress and deserialize the person.
+     * @return the person
+     * @throws IOException if the person can not be deserialized, or refers to a module,
+     *     provider, payer or location that is not loaded
+     */
+    public Person read() throws IOException {
+      try (ObjectInputStream ois = new SnapshotInputStream(
+          new InflaterInputStream(new ByteArrayInputStream(data)), shared)) {
+        return (Person) ois.readObject();
+      } catch (ClassNotFoundException e) {
+        throw new IOException("Unable to read person " + index, e);
+      }
+    }
+  }
+
+  /**
+   * The modules, providers, payers and location that are written as references.
+   */
+  private static class SharedObjects {
+    private final Map<Object, Reference> references = new IdentityHashMap<>();
+    private final Map<Reference, Object> objects = new HashMap<>();
+
+    /**
+     * Collect the modules, providers and payers that are currently loaded.
+     * @param location the location of the population
+     */
+    private static SharedObjects loaded(Location location) {
+      SharedObjects shared = new SharedObjects();
+      if (location != null) {
+        shared.add(location, Reference.LOCATION, location.state + "/" + location.city);
+      }
+      Module.Registry registry = Module.getRegistry();
+      for (String path : Module.getModuleNames()) {
+        shared.add(registry.get(path), Reference.MODULE, path);
+      }
+      for (Provider provider : Provider.getProviderList()) {
+        shared.add(provider, Reference.PROVIDER, provider.uuid);
+      }
+      for (Payer payer : Payer.getAllPayers()) {
+        shared.add(payer, Reference.PAYER, payer.uuid);
+      }
+      if (Payer.noInsurance != null) {
+        shared.add(Payer.noInsurance, Reference.PAYER, Payer.noInsurance.uuid);
+      }
+      return shared;
+    }
+
+    private void add(Object object, char type, String key) {
+      if (object != null && key != null) {
+        Reference reference = new Reference(type, key);
+        references.put(object, reference);
+        objects.put(reference, object);
+      }
+    }
+  }
+
+  /**
+   * A reference to a shared module (by path), provider or payer (by UUID) or location (by state
+   * and city), written in place of the object itself.
+   */
+  private static class Reference implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final char MODULE = 'm';
+    private static final char PROVIDER = 'p';
+    private static final char PAYER = 'y';
+    private static final char LOCATION = 'l';
+
+    private final char type;
+    private final String key;
+
+    private Reference(char type, String key) {
+      this.type = type;
+      this.key = key;
+    }
+
+    private String describeType() {
+      switch (type) {
+        case MODULE:
+          return "module";
+        case PROVIDER:
+          return "provider";
+        case PAYER:
+          return "payer";
+        default:
+          return "location";
+      }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Reference)) {
+        return false;
+      }
+      Reference other = (Reference) obj;
+      return type == other.type && key.equals(other.key);
+    }
+
+    @Override
+    public int hashCode() {
+      return type * 31 + key.hashCode();
+    }
+  }
+
+  private static class SnapshotOutputStream extends ObjectOutputStream {
+    private final SharedObjects shared;
+
+    private SnapshotOutputStream(OutputStream out, SharedObjects shared) throws IOException {
+      super(out);
+      this.shared = shared;
+      enableReplaceObject(true);
+    }
+
+    @Override
+    protected Object replaceObject(Object obj) {
+      Reference reference = shared.references.get(obj);
+      return (reference == null) ? obj : reference;
+    }
+  }
+
+  private static class SnapshotInputStream extends ObjectInputStream {
+    private final SharedObjects shared;
+
+    private SnapshotInputStream(InputStream in, SharedObjects shared) throws IOException {
+      super(in);
+      this.shared = shared;
+      enableResolveObject(true);
+    }
+
+    @Override
+    protected Object resolveObject(Object obj) throws IOException {
+      if (!(obj instanceof Reference)) {
+        return obj;
+      }
+      Object resolved = shared.objects.get(obj);
+      Reference reference = (Reference) obj;
+      if (resolved == null && reference.type == Reference.MODULE) {
+        // a module that is not selected in this run
+        resolved = Module.getModuleByPath(reference.key);
+      }
+      if (resolved == null) {
+        throw new InvalidObjectException(String.format("The %s %s is not loaded",
+            reference.describeType(), reference.key));
+      }
+      return resolved;
+    }
+  }
+}
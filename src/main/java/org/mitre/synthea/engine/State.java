@@ -11,6 +11,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -89,6 +90,12 @@ public abstract class State implements Cloneable, Serializable {
     }
   }
 
+  /** Gson is thread-safe, and reusing it keeps the type adapters it builds for each state. */
+  private static final Gson GSON = Utilities.getGson();
+  /** State classes by module state type, so each is only looked up once. */
+  private static final Map<String, Class<?>> STATE_CLASSES =
+      new ConcurrentHashMap<String, Class<?>>();
+
   /**
    * Construct a state object from the given definitions.
    *
@@ -104,12 +111,14 @@ public abstract class State implements Cloneable, Serializable {
    *           if the state type does not exist
    */
   public static State build(Module module, String name, JsonObject definition) throws Exception {
-    String className = State.class.getName() + "$" + definition.get("type").getAsString();
-
-    Class<?> stateClass = Class.forName(className);
+    String type = definition.get("type").getAsString();
+    Class<?> stateClass = STATE_CLASSES.get(type);
+    if (stateClass == null) {
+      stateClass = Class.forName(State.class.getName() + "$" + type);
+      STATE_CLASSES.put(type, stateClass);
+    }
 
-    Gson gson = Utilities.getGson();
-    State state = (State) gson.fromJson(definition, stateClass);
+    State state = (State) GSON.fromJson(definition, stateClass);
 
     state.initialize(module, name, definition);
 
@@ -135,6 +144,40 @@ public abstract class State implements Cloneable, Serializable {
     }
   }
 
+  /**
+   * Whether this state has finished changing, once the person has moved on to the next state.
+   * Only settled states can be stored in compact form in a {@link StateHistory}.
+   * @return true unless the state can still be modified after it was exited
+   */
+  boolean isSettled() {
+    return true;
+  }
+
+  /**
+   * Create a read-only copy of this state as it was when it finished. This is used to read
+   * states that are stored in compact form in a {@link StateHistory}. Unlike clone(), this is a
+   * shallow copy that shares every field with this state and runs no setup, so the copy must
+   * not be processed or modified.
+   * @param entered time the state was entered
+   * @param exited time the state was exited
+   * @param entry the entry recorded by the state, if any
+   * @return the copy of the finished state
+   */
+  State finishedCopy(Long entered, Long exited, Entry entry) {
+    State copy;
+    try {
+      // Object.clone, not the clone() of the subclass
+      copy = (State) super.clone();
+    } catch (CloneNotSupportedException e) {
+      // should not happen, and not something we can handle
+      throw new RuntimeException(e);
+    }
+    copy.entered = entered;
+    copy.exited = exited;
+    copy.entry = entry;
+    return copy;
+  }
+
   public String transition(Person person, long time) {
     return transition.follow(person, time);
   }
@@ -190,6 +233,21 @@ public abstract class State implements Cloneable, Serializable {
     return exit;
   }
 
+  /**
+   * Get the earliest time at which processing this state may have any effect, given that it was
+   * processed at the given time and did not exit. States that can not tell when they may exit
+   * return the given time, meaning that they should be processed on the next time step.
+   *
+   * @param person
+   *          the person being simulated
+   * @param time
+   *          the date within the simulated world at which the state was last processed
+   * @return the earliest time at which the state may exit; never before the given time
+   */
+  public long nextWakeTime(Person person, long time) {
+    return time;
+  }
+
   public String toString() {
     return this.getClass().getSimpleName() + " '" + name + "'";
   }
@@ -236,6 +294,12 @@ public abstract class State implements Cloneable, Serializable {
       return clone;
     }
 
+    @Override
+    boolean isSettled() {
+      // the state is in the history before and after the submodule, and only exits at the end
+      return exited != null;
+    }
+
     @Override
     public boolean process(Person person, long time) {
       // e.g. "submodule": "medications/otc_antihistamine"
@@ -291,7 +355,6 @@ public abstract class State implements Cloneable, Serializable {
     private List<IoMapper> inputs;
     private List<IoMapper> outputs;
     private Transition altTransition;
-    private transient PhysiologySimulator simulator;
     private transient Map<String,String> paramTypes;
     
     @Override
@@ -316,15 +379,20 @@ public abstract class State implements Cloneable, Serializable {
     }
     
     private void setup() {
-      simulator = new PhysiologySimulator(model, solver, stepSize, simDuration);
-      paramTypes = new HashMap<String, String>();
-      
-      for (String param : simulator.getParameters()) {
-        // Assume all physiology model inputs are lists of Decimal objects which is typically
-        // the case
-        // TODO: Look into whether SBML supports other parameter types, and if so, how we might map
-        // those types to CQL types
-        paramTypes.put(param, "List<Decimal>");
+      // the parameter types only depend on the model, so clones share them with the original
+      if (paramTypes == null) {
+        PhysiologySimulator simulator =
+            PhysiologySimulator.borrow(model, solver, stepSize, simDuration);
+        Map<String, String> types = new HashMap<String, String>();
+        for (String param : simulator.getParameters()) {
+          // Assume all physiology model inputs are lists of Decimal objects which is typically
+          // the case
+          // TODO: Look into whether SBML supports other parameter types, and if so, how we might
+          // map those types to CQL types
+          types.put(param, "List<Decimal>");
+        }
+        PhysiologySimulator.release(simulator);
+        paramTypes = types;
       }
       
       for (IoMapper mapper : inputs) {
@@ -368,10 +436,17 @@ public abstract class State implements Cloneable, Serializable {
       if (!ENABLE_PHYSIOLOGY_STATE) {
         return true;
       }
+      if (paramTypes == null) {
+        // not set up yet, e.g. when physiology states were enabled after loading the module
+        setup();
+      }
       Map<String,Double> modelInputs = new HashMap<String,Double>();
       for (IoMapper mapper : inputs) {
         mapper.toModelInputs(person, time, modelInputs);
       }
+      // simulators are expensive to build, so borrow one from the pool for just this run
+      PhysiologySimulator simulator =
+          PhysiologySimulator.borrow(model, solver, stepSize, simDuration);
       try {
         MultiTable results = simulator.run(modelInputs);
         for (IoMapper mapper : outputs) {
@@ -391,6 +466,8 @@ public abstract class State implements Cloneable, Serializable {
         Logger.getLogger(State.class.getName()).log(Level.SEVERE, "Unable to solve simulation \""
             + model + "\" at time step " + time + " for person "
             + person.attributes.get(Person.ID), ex);
+      } finally {
+        PhysiologySimulator.release(simulator);
       }
       return true;
     }
@@ -478,6 +555,11 @@ public abstract class State implements Cloneable, Serializable {
 
       return ((time >= this.next) && person.alive(this.next));
     }
+
+    @Override
+    public long nextWakeTime(Person person, long time) {
+      return (this.next == null) ? time : Math.max(time, this.next);
+    }
   }
 
   /**
@@ -512,6 +594,11 @@ public abstract class State implements Cloneable, Serializable {
       }
       return exit;
     }
+
+    @Override
+    public long nextWakeTime(Person person, long time) {
+      return allow.earliestPass(person, time);
+    }
   }
 
   /**
@@ -760,7 +847,19 @@ public abstract class State implements Cloneable, Serializable {
 
     private void diagnosePastConditions(Person person, long time) {
       // reminder: history[0] is current state, history[size-1] is Initial
-      for (State state : person.history) {
+      List<State> history = person.history;
+      StateHistory compact = (history instanceof StateHistory) ? (StateHistory) history : null;
+      for (int i = 0; i < history.size(); i++) {
+        if (compact != null && compact.isCompact(i)) {
+          // a compact state can no longer change, so if it is an onset it has been diagnosed.
+          // only check whether it is a prior instance of this state, without copying it.
+          if (name.equals(compact.nameAt(i))
+              && Encounter.class.isAssignableFrom(compact.typeAt(i))) {
+            break;
+          }
+          continue;
+        }
+        State state = history.get(i);
         if (state instanceof OnsetState) {
           OnsetState onset = (OnsetState) state;
 
@@ -897,6 +996,19 @@ public abstract class State implements Cloneable, Serializable {
       return clone;
     }
 
+    @Override
+    boolean isSettled() {
+      // until diagnosed, a later encounter may diagnose it (see Encounter.diagnosePastConditions)
+      return diagnosed;
+    }
+
+    @Override
+    State finishedCopy(Long entered, Long exited, Entry entry) {
+      OnsetState copy = (OnsetState) super.finishedCopy(entered, exited, entry);
+      copy.diagnosed = true;
+      return copy;
+    }
+
     @Override
     public boolean process(Person person, long time) {
       updateOnsetInfo(person, time);
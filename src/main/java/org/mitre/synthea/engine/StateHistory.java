@@ -0,0 +1,448 @@
+package org.mitre.synthea.engine;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import org.mitre.synthea.world.concepts.HealthRecord.Code;
+import org.mitre.synthea.world.concepts.HealthRecord.Entry;
+
+/**
+ * The states a person has passed through in a module, most recent first, as stored in
+ * <code>person.history</code>. In addition to the list itself, the history keeps an index of the
+ * most recent position of each state name and of the entries recorded for each code, so that
+ * PriorState logic and history lookups do not need to walk back through a lifetime of states.
+ *
+ * <p>To keep long histories small, states that have finished are not kept as State objects.
+ * Instead the history keeps the id of the state definition in the module and the entered and
+ * exited times in primitive arrays, and the entry only for the states that have one. Reading
+ * such a state from the list returns a new, shallow and read-only copy of it; code that walks
+ * long histories can use {@link #isCompact(int)}, {@link #nameAt(int)} and {@link #typeAt(int)}
+ * to avoid the copies. The most recent state, and any state that may still change (see
+ * {@link State#isSettled()}), are kept as they are.
+ *
+ * <p>Modules only ever add states at the front of the list (index 0), which keeps the indexes
+ * up to date. Any other modification is allowed, but rebuilds the history.
+ */
+public class StateHistory extends AbstractList<State> implements RandomAccess, Serializable {
+  private static final long serialVersionUID = 4207436981732150394L;
+  /** Stored time for a null entered or exited time. */
+  private static final long NONE = Long.MIN_VALUE;
+  /** Stored id for a state that is kept as an object. */
+  private static final int LIVE = -1;
+
+  /** The state definitions of the compacted states, indexed by their id. */
+  private final List<State> definitions;
+  /** For each position (oldest first), the id of the state definition or LIVE. */
+  private int[] ids;
+  private long[] entered;
+  private long[] exited;
+  private int size;
+  /** The latest exit time of the compacted states, or NONE. */
+  private long latestExit;
+  /**
+   * Positions (ascending) of the compacted states that exited before an earlier compacted state.
+   * The exit times of all the other compacted states never decrease.
+   */
+  private int[] outOfOrder;
+  private int outOfOrderCount;
+  /** States kept as objects, by position. */
+  private final Map<Integer, State> live;
+  /** Positions of the compacted states that have an entry, in ascending order. */
+  private int[] entryPositions;
+  /** Entries of the compacted states, matching <code>entryPositions</code>. */
+  private Entry[] entries;
+  private int entryCount;
+  /** Position of the most recent state with each name. */
+  private final Map<String, Integer> lastByName;
+  /** Indexes (in <code>entries</code>, ascending) of the entries with each code. */
+  private final Map<String, List<Integer>> entriesByCode;
+  /** Number of entries, from the oldest, that have been added to <code>entriesByCode</code>. */
+  private int entriesIndexed;
+
+  /**
+   * Create an empty history.
+   */
+  public StateHistory() {
+    definitions = new ArrayList<State>();
+    live = new HashMap<Integer, State>();
+    lastByName = new HashMap<String, Integer>();
+    entriesByCode = new HashMap<String, List<Integer>>();
+    reset();
+  }
+
+  private void reset() {
+    definitions.clear();
+    ids = new int[16];
+    entered = new long[16];
+    exited = new long[16];
+    size = 0;
+    latestExit = NONE;
+    outOfOrder = new int[4];
+    outOfOrderCount = 0;
+    live.clear();
+    entryPositions = new int[4];
+    entries = new Entry[4];
+    entryCount = 0;
+    lastByName.clear();
+    entriesByCode.clear();
+    entriesIndexed = 0;
+  }
+
+  @Override
+  public State get(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+    return stateAt(size - 1 - index);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public void add(int index, State state) {
+    if (index < 0 || index > size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+    if (index != 0) {
+      List<State> states = new ArrayList<State>(this);
+      states.add(index, state);
+      rebuild(states);
+      return;
+    }
+    prepareAdd();
+    ids[size] = LIVE;
+    live.put(size, state);
+    lastByName.put(state.name, size);
+    size++;
+    modCount++;
+  }
+
+  /**
+   * Make room for one more state at the front.
+   */
+  private void prepareAdd() {
+    if (size > 0) {
+      // the previous state is no longer the most recent one
+      compact(size - 1);
+    }
+    if (size == ids.length) {
+      int capacity = size * 2;
+      ids = Arrays.copyOf(ids, capacity);
+      entered = Arrays.copyOf(entered, capacity);
+      exited = Arrays.copyOf(exited, capacity);
+    }
+  }
+
+  @Override
+  public boolean addAll(int index, Collection<? extends State> collection) {
+    if (index != 0) {
+      return super.addAll(index, collection);
+    }
+    if (collection instanceof StateHistory && collection != this) {
+      // copy compact states as they are, rather than reading copies of them and compacting those
+      StateHistory other = (StateHistory) collection;
+      for (int position = 0; position < other.size; position++) {
+        if (other.ids[position] == LIVE) {
+          add(0, other.live.get(position));
+        } else {
+          addCompact(other.definitions.get(other.ids[position]), other.entered[position],
+              other.exited[position], other.entryAt(position));
+        }
+      }
+      return other.size > 0;
+    }
+    // the last state of the collection is the oldest, so it is added to the front first
+    List<State> added = new ArrayList<State>(collection);
+    for (int i = added.size() - 1; i >= 0; i--) {
+      add(0, added.get(i));
+    }
+    return !added.isEmpty();
+  }
+
+  @Override
+  public State set(int index, State state) {
+    List<State> states = new ArrayList<State>(this);
+    State previous = states.set(index, state);
+    rebuild(states);
+    return previous;
+  }
+
+  @Override
+  public State remove(int index) {
+    List<State> states = new ArrayList<State>(this);
+    State removed = states.remove(index);
+    rebuild(states);
+    return removed;
+  }
+
+  @Override
+  public void clear() {
+    reset();
+    modCount++;
+  }
+
+  /**
+   * Replace the contents of this history.
+   * @param states the new states, most recent first
+   */
+  private void rebuild(List<State> states) {
+    reset();
+    for (int i = states.size() - 1; i >= 0; i--) {
+      add(0, states.get(i));
+    }
+  }
+
+  /**
+   * Store the state at the given position in compact form, if it has finished and its
+   * definition can be found in its module.
+   */
+  private void compact(int position) {
+    State state = live.get(position);
+    if (state == null || !state.isSettled() || state.module == null) {
+      return;
+    }
+    State definition = state.module.getState(state.name);
+    if (definition == null || definition.getClass() != state.getClass()) {
+      return;
+    }
+    live.remove(position);
+    ids[position] = idOf(definition);
+    entered[position] = (state.entered == null) ? NONE : state.entered;
+    exited[position] = (state.exited == null) ? NONE : state.exited;
+    trackExit(position);
+    if (state.entry != null) {
+      addEntry(position, state.entry);
+    }
+  }
+
+  /**
+   * Add a finished state at the front in compact form.
+   */
+  private void addCompact(State definition, long enteredTime, long exitedTime, Entry entry) {
+    prepareAdd();
+    ids[size] = idOf(definition);
+    entered[size] = enteredTime;
+    exited[size] = exitedTime;
+    trackExit(size);
+    if (entry != null) {
+      addEntry(size, entry);
+    }
+    lastByName.put(definition.name, size);
+    size++;
+    modCount++;
+  }
+
+  /**
+   * Keep track of whether the exit times of the compacted states are in order, after compacting
+   * the state at the given position. States are compacted in order of their position.
+   */
+  private void trackExit(int position) {
+    if (exited[position] == NONE) {
+      return;
+    }
+    if (exited[position] < latestExit) {
+      if (outOfOrderCount == outOfOrder.length) {
+        outOfOrder = Arrays.copyOf(outOfOrder, outOfOrderCount * 2);
+      }
+      outOfOrder[outOfOrderCount++] = position;
+    } else {
+      latestExit = exited[position];
+    }
+  }
+
+  private int idOf(State definition) {
+    for (int i = 0; i < definitions.size(); i++) {
+      if (definitions.get(i) == definition) {
+        return i;
+      }
+    }
+    definitions.add(definition);
+    return definitions.size() - 1;
+  }
+
+  private void addEntry(int position, Entry entry) {
+    if (entryCount == entries.length) {
+      entryPositions = Arrays.copyOf(entryPositions, entryCount * 2);
+      entries = Arrays.copyOf(entries, entryCount * 2);
+    }
+    entryPositions[entryCount] = position;
+    entries[entryCount] = entry;
+    entryCount++;
+  }
+
+  private Entry entryAt(int position) {
+    int index = Arrays.binarySearch(entryPositions, 0, entryCount, position);
+    return (index >= 0) ? entries[index] : null;
+  }
+
+  private State stateAt(int position) {
+    if (ids[position] == LIVE) {
+      return live.get(position);
+    }
+    return definitions.get(ids[position]).finishedCopy(
+        toTime(entered[position]), toTime(exited[position]), entryAt(position));
+  }
+
+  /**
+   * Whether the state at the given index is stored in compact form. Such a state can no longer
+   * change, and reading it with {@link #get(int)} returns a new read-only copy of it, so
+   * {@link #nameAt(int)} and {@link #typeAt(int)} are cheaper when only those are needed.
+   * @param index index of the state, 0 being the most recent
+   * @return true if the state is stored in compact form
+   */
+  public boolean isCompact(int index) {
+    return ids[size - 1 - index] != LIVE;
+  }
+
+  /**
+   * Get the name of the state at the given index, without reading the state itself.
+   * @param index index of the state, 0 being the most recent
+   * @return the name of the state
+   */
+  public String nameAt(int index) {
+    return definitionAt(size - 1 - index).name;
+  }
+
+  /**
+   * Get the type of the state at the given index, without reading the state itself.
+   * @param index index of the state, 0 being the most recent
+   * @return the class of the state
+   */
+  public Class<? extends State> typeAt(int index) {
+    return definitionAt(size - 1 - index).getClass();
+  }
+
+  /**
+   * The state definition at a position for compact states, or the state itself otherwise.
+   */
+  private State definitionAt(int position) {
+    if (position < 0 || position >= size) {
+      throw new IndexOutOfBoundsException("Position: " + position + ", Size: " + size);
+    }
+    return (ids[position] == LIVE) ? live.get(position) : definitions.get(ids[position]);
+  }
+
+  private static Long toTime(long time) {
+    return (time == NONE) ? null : time;
+  }
+
+  private static String key(Code code) {
+    return code.system + "|" + code.code;
+  }
+
+  /**
+   * Check for prior existence of the specified state. This has the same result as walking
+   * the history from the most recent state and returning false as soon as a state that exited
+   * at or before <code>within</code>, or a state named <code>since</code>, is found before a
+   * state named <code>name</code>.
+   * @param name the name of the state to look for
+   * @param since optional name of a state that must not have been passed since
+   * @param within optional time that the state must have exited after
+   * @return whether the state was found
+   */
+  public boolean hadPriorState(String name, String since, Long within) {
+    Integer last = lastByName.get(name);
+    if (last == null) {
+      return false;
+    }
+    if (since != null) {
+      Integer lastSince = lastByName.get(since);
+      if (lastSince != null && lastSince >= last) {
+        return false;
+      }
+    }
+    if (within != null && exitedBy(last, within)) {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Check whether any state at or after the given position exited at or before the given time.
+   * States are added as time moves forward, so the exit times of the compacted states are
+   * almost always in order, and only the first of them after the position needs to be checked;
+   * the few that are out of order are checked one by one.
+   */
+  private boolean exitedBy(int from, long time) {
+    // the states kept as objects are few: the most recent one, and those that may still change
+    for (Map.Entry<Integer, State> state : live.entrySet()) {
+      Long exitTime = state.getValue().exited;
+      if (state.getKey() >= from && exitTime != null && exitTime <= time) {
+        return true;
+      }
+    }
+    int first = Arrays.binarySearch(outOfOrder, 0, outOfOrderCount, from);
+    for (int i = (first < 0) ? -first - 1 : first; i < outOfOrderCount; i++) {
+      if (exited[outOfOrder[i]] <= time) {
+        return true;
+      }
+    }
+    // the exit times of the other compacted states never decrease, so the first is the earliest
+    for (int position = from; position < size; position++) {
+      if (ids[position] != LIVE && exited[position] != NONE
+          && Arrays.binarySearch(outOfOrder, 0, outOfOrderCount, position) < 0) {
+        return exited[position] <= time;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Find the most recent entry of the given type with the given code.
+   * @param type Must be a HealthRecord.Entry or subclass.
+   * @param code The code being searched for.
+   * @return the most recent matching entry, or null if there is none.
+   */
+  @SuppressWarnings("unchecked")
+  public <T extends Entry> T findEntry(Class<T> type, Code code) {
+    Entry found = null;
+    int foundPosition = -1;
+    // states kept as objects may have recorded their entry at any time
+    for (Map.Entry<Integer, State> state : live.entrySet()) {
+      Entry entry = state.getValue().entry;
+      if (state.getKey() > foundPosition && type.isInstance(entry) && hasCode(entry, code)) {
+        found = entry;
+        foundPosition = state.getKey();
+      }
+    }
+
+    for (; entriesIndexed < entryCount; entriesIndexed++) {
+      for (Code entryCode : entries[entriesIndexed].codes) {
+        entriesByCode.computeIfAbsent(key(entryCode), k -> new ArrayList<Integer>())
+            .add(entriesIndexed);
+      }
+    }
+    List<Integer> indexes = entriesByCode.get(key(code));
+    if (indexes != null) {
+      for (int i = indexes.size() - 1; i >= 0; i--) {
+        int index = indexes.get(i);
+        if (entryPositions[index] < foundPosition) {
+          break;
+        }
+        if (type.isInstance(entries[index])) {
+          return (T) entries[index];
+        }
+      }
+    }
+    return (T) found;
+  }
+
+  private static boolean hasCode(Entry entry, Code code) {
+    for (Code candidate : entry.codes) {
+      if (candidate.equals(code)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
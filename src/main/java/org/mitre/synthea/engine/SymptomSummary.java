@@ -0,0 +1,125 @@
+package org.mitre.synthea.engine;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.mitre.synthea.engine.ExpressedSymptom.SymptomSource;
+
+/**
+ * A summary of the expressed symptoms of a person, kept up to date as the symptoms change:
+ * the total of their values, which drives care-seeking behaviors, the symptoms ordered by
+ * value, so that the largest can be found without looking at every symptom, and the sources of
+ * the symptoms by module, for the symptom exporters.
+ *
+ * <p>Each {@link ExpressedSymptom} of the person keeps its own value, and tells the summary
+ * when it changes, so reading the total is O(1) and updating it is O(log n) in the number of
+ * symptoms. The summary is not serialized; it is created again from the symptoms when first
+ * used.
+ */
+public class SymptomSummary {
+  /** Largest value first. Symptoms with the same value are ordered by name. */
+  private static final Comparator<ExpressedSymptom> LARGEST_FIRST =
+      Comparator.comparingInt(ExpressedSymptom::getSymptom).reversed()
+          .thenComparing(ExpressedSymptom::getName);
+
+  private final Map<String, ExpressedSymptom> symptoms;
+  private final TreeSet<ExpressedSymptom> byValue;
+  /** Module name -&gt; symptom name -&gt; the source of that symptom from that module. */
+  private final Map<String, Map<String, SymptomSource>> sourcesByModule;
+  private int total;
+
+  /**
+   * Create a summary of the given symptoms, which keeps itself up to date as they change.
+   * Symptoms must only be added to the map through {@link #getOrCreate(String)}.
+   * @param symptoms the symptoms of a person, by name
+   */
+  public SymptomSummary(Map<String, ExpressedSymptom> symptoms) {
+    this.symptoms = symptoms;
+    this.byValue = new TreeSet<ExpressedSymptom>(LARGEST_FIRST);
+    this.sourcesByModule = new HashMap<String, Map<String, SymptomSource>>();
+    for (ExpressedSymptom symptom : symptoms.values()) {
+      attach(symptom);
+    }
+  }
+
+  /**
+   * Get a symptom, adding it if the person does not have it yet.
+   * @param type the name of the symptom
+   * @return the symptom
+   */
+  public ExpressedSymptom getOrCreate(String type) {
+    ExpressedSymptom symptom = symptoms.get(type);
+    if (symptom == null) {
+      symptom = new ExpressedSymptom(type);
+      symptoms.put(type, symptom);
+      attach(symptom);
+    }
+    return symptom;
+  }
+
+  /**
+   * Get the sum of all the symptom values.
+   * @return the total
+   */
+  public int getTotal() {
+    return total;
+  }
+
+  /**
+   * Get the symptom with the largest value. Of the symptoms with the same value, the first by
+   * name is returned.
+   * @return the symptom, or null if no symptom has a value above zero
+   */
+  public ExpressedSymptom getLargest() {
+    if (byValue.isEmpty()) {
+      return null;
+    }
+    ExpressedSymptom largest = byValue.first();
+    return (largest.getSymptom() > 0) ? largest : null;
+  }
+
+  /**
+   * Get the symptoms that were set by a module.
+   * @param module the name of the module
+   * @return the source of each symptom set by the module, by symptom name
+   */
+  public Map<String, SymptomSource> getSourcesFromModule(String module) {
+    Map<String, SymptomSource> sources = sourcesByModule.get(module);
+    return (sources == null) ? Collections.emptyMap() : Collections.unmodifiableMap(sources);
+  }
+
+  private void attach(ExpressedSymptom symptom) {
+    symptom.setSummary(this);
+    total += symptom.getSymptom();
+    byValue.add(symptom);
+    for (SymptomSource source : symptom.getSources().values()) {
+      sourceAdded(symptom, source);
+    }
+  }
+
+  /**
+   * Remove a symptom whose value is about to change from the ordering.
+   */
+  void remove(ExpressedSymptom symptom) {
+    byValue.remove(symptom);
+  }
+
+  /**
+   * Add a symptom whose value changed back to the ordering, and update the total.
+   */
+  void add(ExpressedSymptom symptom, int oldValue) {
+    total += symptom.getSymptom() - oldValue;
+    byValue.add(symptom);
+  }
+
+  /**
+   * Record that a module set a symptom for the first time.
+   */
+  void sourceAdded(ExpressedSymptom symptom, SymptomSource source) {
+    sourcesByModule.computeIfAbsent(source.getSource(), m -> new HashMap<>())
+        .put(symptom.getName(), source);
+  }
+}
@@ -3,13 +3,16 @@ package org.mitre.synthea.engine;
 import com.google.gson.JsonObject;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.apache.commons.lang3.Range;
 import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.helpers.SimpleCSV;
 import org.mitre.synthea.helpers.Utilities;
@@ -119,14 +122,13 @@ public abstract class Transition implements Serializable {
    */
   public static class LookupTableTransition extends Transition {
 
-    // Map of lookupTables
-    private static HashMap<String, HashMap<LookupTableKey, List<DistributedTransitionOption>>>
-        lookupTables = new HashMap<String, HashMap<LookupTableKey,
-        List<DistributedTransitionOption>>>();
+    /** Lookup tables by file name. They are shared by all transitions that use them. */
+    private static final Map<String, LookupTable> lookupTables =
+        new ConcurrentHashMap<String, LookupTable>();
     private final List<LookupTableTransitionOption> transitions;
-    private List<String> attributes;
     private List<DistributedTransitionOption> defaultTransitions;
     private String lookupTableName;
+    private transient LookupTable table;
 
     /**
      * Constructor for LookupTableTransition.
@@ -141,9 +143,20 @@ public abstract class Transition implements Serializable {
         throw new RuntimeException(
           "LOOKUP TABLE JSON ERROR: Table name cannot be null.");
       }
-      if (!lookupTables.containsKey(lookupTableName)) {
-        loadLookupTable();
-      }
+      this.table = lookupTables.computeIfAbsent(lookupTableName,
+          name -> new LookupTable(name, transitions));
+    }
+
+    /**
+     * Java Serialization support method. The lookup tables are shared between transitions rather
+     * than serialized with them, so when a module is read back from the module cache, the table
+     * may have to be loaded again.
+     * @param ois the stream to read from
+     */
+    private void readObject(ObjectInputStream ois) throws ClassNotFoundException, IOException {
+      ois.defaultReadObject();
+      this.table = lookupTables.computeIfAbsent(lookupTableName,
+          name -> new LookupTable(name, transitions));
     }
 
     /**
@@ -161,18 +174,68 @@ public abstract class Transition implements Serializable {
       return defaultTransitions;
     }
 
+    @Override
+    public String follow(Person person, long time) {
+      List<DistributedTransitionOption> options = table.lookup(person, time);
+      if (options == null) {
+        // No attribute match, use default transition.
+        options = this.defaultTransitions;
+      }
+      return pickDistributedTransition(options, person);
+    }
+  }
+
+  /**
+   * A lookup table loaded from a CSV file. Each row has a value for each attribute column, an
+   * optional age range and time range, and a probability for each state to transition to.
+   *
+   * <p>Attribute values are encoded as numbers, and the rows are grouped by the combination of
+   * attribute values, so finding the group for a person is a binary search. Within a group, the
+   * age ranges and then the time ranges are kept sorted, so they are binary searches as well.
+   * Looking up a person does not allocate anything. If rows overlap, the first matching row in
+   * the CSV file is used.
+   */
+  private static final class LookupTable {
+    private final String name;
+    /** Names of the attribute columns, other than age and time. */
+    private final String[] attributes;
+    /** For each attribute column, the number that each value is encoded as. */
+    private final List<Map<String, Integer>> dictionaries;
+    /** For each attribute column, what its encoded value is multiplied by in a group key. */
+    private final long[] multipliers;
+    private final boolean hasAge;
+    private final boolean hasTime;
+    /** Sorted keys of each combination of attribute values in the table. */
+    private final long[] groupKeys;
+    /** The age ranges of each group, matching <code>groupKeys</code>. */
+    private final RangeIndex[] groups;
+    /** Time ranges, indexed by the targets of the age range indexes. */
+    private final List<RangeIndex> timeRanges;
     /**
-     * Loads the current lookuptable.
+     * For each group whose age ranges overlap, its rows in the order of the CSV file; null for
+     * the other groups. An age may be in several ranges of such a group, so its rows are checked
+     * one by one, using <code>rowAges</code> and <code>rowTimes</code>.
      */
-    private void loadLookupTable() {
+    private final int[][] overlappingRows;
+    /** The age range of each row. */
+    private final long[][] rowAges;
+    /** The time range of each row. */
+    private final long[][] rowTimes;
+    /** The transition options of each row, indexed by the targets of the time range indexes. */
+    private final List<List<DistributedTransitionOption>> rows;
+
+    /**
+     * Load a lookup table from the generate.lookup_tables folder.
+     * @param name the file name of the table
+     * @param transitions the transition that the table is loaded for, which the columns of
+     *     probabilities must match
+     */
+    private LookupTable(String name, List<LookupTableTransitionOption> transitions) {
+      this.name = name;
+      System.out.println("Loading Lookup Table: " + name);
 
-      System.out.println("Loading Lookup Table: " + lookupTableName);
-      // Hashmap for the new lookup table.
-      HashMap<LookupTableKey, List<DistributedTransitionOption>> newTable
-          = new HashMap<LookupTableKey, List<DistributedTransitionOption>>();
-      
       // Load in this transitions's CSV file.
-      String fileName = Config.get("generate.lookup_tables") + lookupTableName;
+      String fileName = Config.get("generate.lookup_tables") + name;
       List<? extends Map<String, String>> lookupTable = null;
       try {
         String csv = Utilities.readResource(fileName);
@@ -187,71 +250,129 @@ public abstract class Transition implements Serializable {
       // Retrieve CSV column headers.
       List<String> columnHeaders = new ArrayList<String>(lookupTable.get(0).keySet());
       // Parse the list of attributes.
-      this.attributes = new ArrayList<String>(columnHeaders.subList(0,
-          columnHeaders.size() - this.transitions.size()));
+      List<String> attributeColumns = columnHeaders.subList(0,
+          columnHeaders.size() - transitions.size());
       // Parse the list of states to transition to.
-      List<String> transitionStates = columnHeaders.subList((columnHeaders.size()
-          - this.transitions.size()), columnHeaders.size());
-
-      // Create keys and insert each row of CSV into lookup table map.
-      for (Map<String, String> currentRow : lookupTable) {
-        // Extract attributes from current CSV row.
-        List<String> rowAttributes = new ArrayList<String>(currentRow.values());
-        rowAttributes = rowAttributes.subList(0, this.attributes.size());
-        // Create age range for lookup table key if age is an attribute.
-        Range<Integer> ageRange = null;
-        Range<Long> timeRange = null;
-        if (this.attributes.contains("age")) {
-          Integer ageIndex = this.attributes.indexOf("age");
-          // Remove and parse the age range.
-          String value = rowAttributes.remove(ageIndex.intValue());
-          if (!value.contains("-")
-              || value.substring(0, value.indexOf("-")).length() < 1
-              || value.substring(value.indexOf("-") + 1).length() < 1) {
-            throw new RuntimeException(
-                "LOOKUP TABLE '" + fileName
-                + "' ERROR: Age Range must be in the form: 'ageLow-ageHigh'. Found '"
-                + value + "'");
+      List<String> transitionStates = columnHeaders.subList(attributeColumns.size(),
+          columnHeaders.size());
+      hasAge = attributeColumns.contains("age");
+      hasTime = attributeColumns.contains("time");
+      List<String> keyColumns = new ArrayList<String>(attributeColumns);
+      keyColumns.remove("age");
+      keyColumns.remove("time");
+      attributes = new String[keyColumns.size()];
+      dictionaries = new ArrayList<Map<String, Integer>>();
+      for (int i = 0; i < attributes.length; i++) {
+        attributes[i] = keyColumns.get(i).toLowerCase();
+        dictionaries.add(new HashMap<String, Integer>());
+      }
+
+      // Encode the attribute values and parse the ranges of each row.
+      int[][] codes = new int[lookupTable.size()][attributes.length];
+      long[][] ageRanges = new long[lookupTable.size()][];
+      long[][] timeRanges = new long[lookupTable.size()][];
+      rows = new ArrayList<List<DistributedTransitionOption>>(lookupTable.size());
+      for (int row = 0; row < lookupTable.size(); row++) {
+        Map<String, String> currentRow = lookupTable.get(row);
+        for (int i = 0; i < attributes.length; i++) {
+          Map<String, Integer> dictionary = dictionaries.get(i);
+          String value = currentRow.get(keyColumns.get(i));
+          Integer code = dictionary.get(value);
+          if (code == null) {
+            code = dictionary.size();
+            dictionary.put(value, code);
           }
-          ageRange = Range.between(
-              Integer.parseInt(value.substring(0, value.indexOf("-"))),
-              Integer.parseInt(value.substring(value.indexOf("-") + 1)));
+          codes[row][i] = code;
         }
-        if (this.attributes.contains("time")) {
-          Integer timeIndex = this.attributes.indexOf("time");
-          // Remove and parse the age range.
-          String value = rowAttributes.remove(timeIndex.intValue());
-          if (!value.contains("-")
-              || value.substring(0, value.indexOf("-")).length() < 1
-              || value.substring(value.indexOf("-") + 1).length() < 1) {
-            throw new RuntimeException(
-                "LOOKUP TABLE '" + fileName
-                    + "' ERROR: Time Range must be in the form: 'timeLow-timeHigh'. Found '"
-                    + value + "'");
+        ageRanges[row] = hasAge ? parseRange(currentRow.get("age"), fileName, "Age", "age")
+            : RangeIndex.ANY;
+        timeRanges[row] = hasTime ? parseRange(currentRow.get("time"), fileName, "Time", "time")
+            : RangeIndex.ANY;
+        rows.add(createDistributedTransitionOptions(currentRow, transitionStates, transitions));
+      }
+
+      multipliers = new long[attributes.length];
+      long multiplier = 1;
+      for (int i = 0; i < attributes.length; i++) {
+        multipliers[i] = multiplier;
+        multiplier = Math.multiplyExact(multiplier, (long) dictionaries.get(i).size());
+      }
+
+      // Group the rows by their attribute values, in the order the groups first appear.
+      Map<Long, List<Integer>> rowsByKey = new TreeMap<Long, List<Integer>>();
+      for (int row = 0; row < codes.length; row++) {
+        long key = 0;
+        for (int i = 0; i < attributes.length; i++) {
+          key += codes[row][i] * multipliers[i];
+        }
+        rowsByKey.computeIfAbsent(key, k -> new ArrayList<Integer>()).add(row);
+      }
+      groupKeys = new long[rowsByKey.size()];
+      groups = new RangeIndex[rowsByKey.size()];
+      overlappingRows = new int[rowsByKey.size()][];
+      rowAges = ageRanges;
+      rowTimes = timeRanges;
+      this.timeRanges = new ArrayList<RangeIndex>();
+      int group = 0;
+      for (Map.Entry<Long, List<Integer>> entry : rowsByKey.entrySet()) {
+        groupKeys[group] = entry.getKey();
+        // rows with the same age range share one index of their time ranges
+        List<long[]> distinctAges = new ArrayList<long[]>();
+        List<List<Integer>> rowsByAge = new ArrayList<List<Integer>>();
+        for (int row : entry.getValue()) {
+          int age = 0;
+          while (age < distinctAges.size()
+              && !Arrays.equals(distinctAges.get(age), ageRanges[row])) {
+            age++;
+          }
+          if (age == distinctAges.size()) {
+            distinctAges.add(ageRanges[row]);
+            rowsByAge.add(new ArrayList<Integer>());
           }
-          timeRange = Range.between(
-              Long.parseLong(value.substring(0, value.indexOf("-"))),
-              Long.parseLong(value.substring(value.indexOf("-") + 1)));
+          rowsByAge.get(age).add(row);
+        }
+        List<long[]> ages = new ArrayList<long[]>();
+        List<Integer> timeIndexes = new ArrayList<Integer>();
+        for (int age = 0; age < distinctAges.size(); age++) {
+          List<long[]> times = new ArrayList<long[]>();
+          for (int row : rowsByAge.get(age)) {
+            times.add(timeRanges[row]);
+          }
+          ages.add(distinctAges.get(age));
+          timeIndexes.add(this.timeRanges.size());
+          this.timeRanges.add(new RangeIndex(times, rowsByAge.get(age)));
+        }
+        groups[group] = new RangeIndex(ages, timeIndexes);
+        if (!groups[group].isDisjoint()) {
+          overlappingRows[group] = entry.getValue().stream().mapToInt(Integer::intValue).toArray();
         }
-        // Attributes key to inert into lookup table.
-        LookupTableKey attributesLookupKey =
-            new LookupTableKey(rowAttributes, ageRange, timeRange);
-        // Transition probabilities to insert into lookup table.
-        List<DistributedTransitionOption> transitionProbabilities
-            = createDistributedTransitionOptions(currentRow, transitionStates);
-        // Insert the parsed attributes and transition probabilities into lookup table.
-        newTable.put(attributesLookupKey, transitionProbabilities);
+        group++;
       }
+    }
 
-      // Put new table into Hash map of all lookup tables.
-      lookupTables.put(lookupTableName, newTable);
+    /**
+     * Parse a range in the form "low-high".
+     */
+    private static long[] parseRange(String value, String fileName, String label, String unit) {
+      if (!value.contains("-")
+          || value.substring(0, value.indexOf("-")).length() < 1
+          || value.substring(value.indexOf("-") + 1).length() < 1) {
+        throw new RuntimeException(
+            "LOOKUP TABLE '" + fileName
+            + "' ERROR: " + label + " Range must be in the form: '" + unit + "Low-" + unit
+            + "High'. Found '" + value + "'");
+      }
+      return new long[] {
+          Long.parseLong(value.substring(0, value.indexOf("-"))),
+          Long.parseLong(value.substring(value.indexOf("-") + 1))};
     }
 
     /**
      *  Creates Distributed Transition Options based on CSV row probabilities.
      */
     private ArrayList<DistributedTransitionOption> createDistributedTransitionOptions(
-        Map<String, String> currentRow, List<String> transitionStates) {
+        Map<String, String> currentRow, List<String> transitionStates,
+        List<LookupTableTransitionOption> transitions) {
 
       ArrayList<DistributedTransitionOption> transitionProbabilities
           = new ArrayList<DistributedTransitionOption>();
@@ -266,183 +387,142 @@ public abstract class Transition implements Serializable {
         } else {
           throw new RuntimeException("LOOKUP TABLE ERROR: CSV column state name '"
               + transitionName + "' does not match a JSON state to transition to in CSV '"
-              + lookupTableName + "'");
+              + name + "'");
         }
       }
       return transitionProbabilities;
     }
 
-    @Override
-    public String follow(Person person, long time) {
-      Integer age = null;
-      // Extract Person's list of relevant attributes.
-      ArrayList<String> personsAttributes = new ArrayList<String>();
-      for (String currentAttribute : this.attributes) {
-        if (currentAttribute.equalsIgnoreCase("age")) {
-          age = person.ageInYears(time);
-        } else if (currentAttribute.equalsIgnoreCase("time")) {
-          // do nothing, we already have it
-        } else {
-          String personsAttribute
-              = (String) person.attributes.get(currentAttribute.toLowerCase());
-          if (personsAttribute == null) {
-            throw new RuntimeException("LOOKUP TABLE ERROR: Attribute '"
-                + currentAttribute + "' in CSV table '" + this.lookupTableName
-                + "' does not exist as one of this person's attributes.");
+    /**
+     * Find the row of this table that matches the given person.
+     * @param person the person
+     * @param time the current time
+     * @return the transition options of the matching row, or null if no row matches
+     */
+    private List<DistributedTransitionOption> lookup(Person person, long time) {
+      long key = 0;
+      for (int i = 0; i < attributes.length; i++) {
+        Object value = person.attributes.get(attributes[i]);
+        if (value == null) {
+          throw new RuntimeException("LOOKUP TABLE ERROR: Attribute '"
+              + attributes[i] + "' in CSV table '" + this.name
+              + "' does not exist as one of this person's attributes.");
+        }
+        Integer code = dictionaries.get(i).get((String) value);
+        if (code == null) {
+          return null;
+        }
+        key += code * multipliers[i];
+      }
+      int group = Arrays.binarySearch(groupKeys, key);
+      if (group < 0) {
+        return null;
+      }
+      long age = hasAge ? person.ageInYears(time) : 0L;
+      if (overlappingRows[group] != null) {
+        // the first row containing both the age and the time, which need not be in the first
+        // age range containing the age
+        for (int row : overlappingRows[group]) {
+          if (RangeIndex.contains(rowAges[row], age) && RangeIndex.contains(rowTimes[row], time)) {
+            return rows.get(row);
           }
-          personsAttributes.add(personsAttribute);
         }
+        return null;
       }
-      // Create key from person's attributes to get distributions
-      LookupTableKey personsAttributesLookupKey = new LookupTableKey(personsAttributes, age, time);
-      if (lookupTables.get(lookupTableName).containsKey(personsAttributesLookupKey)) {
-        // Person matches, use their attribute's list of distributedtransitionoptions
-        return pickDistributedTransition(
-          lookupTables.get(lookupTableName).get(personsAttributesLookupKey), person);
-      } else {
-        // No attribute match, use default transition.
-        return pickDistributedTransition(this.defaultTransitions, person);
+      int timeIndex = groups[group].find(age);
+      if (timeIndex < 0) {
+        return null;
       }
+      int row = timeRanges.get(timeIndex).find(time);
+      return (row < 0) ? null : rows.get(row);
     }
   }
 
-  public final class LookupTableKey implements Serializable {
-    private final List<String> attributes;
-    /** Age for this patient. May be null if lookup table does not use age. */
-    private final Integer age;
-    /** Age range for this row. Null if this is a person. */
-    private final Range<Integer> ageRange;
+  /**
+   * Inclusive ranges of numbers, each with a target index, that can be searched for the range
+   * containing a value. When the ranges do not overlap they are kept sorted and searched with a
+   * binary search. Otherwise they are checked in order and the first matching range is used.
+   */
+  static final class RangeIndex {
+    /** A range that matches any value, for tables without an age or time column. */
+    static final long[] ANY = {Long.MIN_VALUE, Long.MAX_VALUE};
 
-    private final Long time;
-    private final Range<Long> timeRange;
+    private final long[] lows;
+    private final long[] highs;
+    private final int[] targets;
+    private final boolean sorted;
 
     /**
-     * Create a symbolic lookup key for a given row that contains actual patient values.
-     * @param attributes Patient attribute values.
-     * @param age Patient age.
+     * Create a new index.
+     * @param ranges the ranges, each an array of the low and high values
+     * @param targets the target of each range
      */
-    public LookupTableKey(List<String> attributes, Integer age, Long time) {
-      this.attributes = attributes;
-      this.age = age;
-      this.ageRange = null;
-      this.time = time;
-      this.timeRange = null;
+    RangeIndex(List<long[]> ranges, List<Integer> targets) {
+      Integer[] order = new Integer[ranges.size()];
+      for (int i = 0; i < order.length; i++) {
+        order[i] = i;
+      }
+      // a stable sort, so ranges with the same low value stay in their original order
+      Arrays.sort(order, (a, b) -> Long.compare(ranges.get(a)[0], ranges.get(b)[0]));
+      boolean disjoint = true;
+      for (int i = 1; i < order.length; i++) {
+        if (ranges.get(order[i - 1])[1] >= ranges.get(order[i])[0]) {
+          disjoint = false;
+        }
+      }
+      this.sorted = disjoint;
+      this.lows = new long[order.length];
+      this.highs = new long[order.length];
+      this.targets = new int[order.length];
+      for (int i = 0; i < order.length; i++) {
+        int index = sorted ? order[i] : i;
+        lows[i] = ranges.get(index)[0];
+        highs[i] = ranges.get(index)[1];
+        this.targets[i] = targets.get(index);
+      }
     }
 
     /**
-     * Create a symbolic lookup key for a given row that contains lookup values.
-     * @param attributes Table attribute values.
-     * @param range If the table contains an age column, range contains the age range
-     *     information for this key.
+     * Whether no two of the ranges overlap, so that a value is in at most one of them.
+     * @return true if the ranges are disjoint
      */
-    public LookupTableKey(List<String> attributes, Range<Integer> range, Range<Long> timeRange) {
-      this.attributes = attributes;
-      this.age = null;
-      this.ageRange = range;
-      this.time = null;
-      this.timeRange = timeRange;
+    boolean isDisjoint() {
+      return sorted;
     }
 
     /**
-     * Overrides the hashcode method. Returns the hash of the List of attributes,
-     * forcing age range to be a hash collision.
+     * Check whether a range contains a value.
+     * @param range the range, an array of the low and high values
+     * @param value the value
+     * @return true if the value is in the range, including its bounds
      */
-    @Override
-    public int hashCode() {
-      return this.attributes.hashCode();
+    static boolean contains(long[] range, long value) {
+      return range[0] <= value && value <= range[1];
     }
 
     /**
-     * Overides the equals method. If there is no age in this tranistion, then it just
-     * returns the default List.equals(). If there is an age range, then the age
-     * must fit in the range for this to return true.
-     * 
-     * @param obj the object to check that this equals.
+     * Find the range containing the given value.
+     * @param value the value
+     * @return the target of the range, or -1 if there is none
      */
-    @Override
-    public boolean equals(Object obj) {
-      if (obj == null || this.getClass() != obj.getClass()) {
-        return false;
-      }
-      LookupTableKey that = (LookupTableKey) obj;
-
-      boolean agesMatch = true;
-      boolean timesMatch = true;
-
-      if (this.age != null) {
-        if (that.age != null) {
-          agesMatch = (this.age == that.age);
-        } else if (that.ageRange != null) {
-          agesMatch = (that.ageRange.contains(this.age));
-        } else {
-          // that.age == null && that.ageRange == null
-          agesMatch = false;
+    int find(long value) {
+      if (sorted) {
+        int index = Arrays.binarySearch(lows, value);
+        if (index < 0) {
+          // the last range starting before the value
+          index = -index - 2;
         }
-      } else if (that.age != null) {
-        if (this.ageRange != null) {
-          agesMatch = (this.ageRange.contains(that.age));
-        } else {
-          // this.age == null && this.ageRange == null
-          agesMatch = false;
-        }
-      } else if (this.ageRange != null) {
-        // this.age == null && that.age == null
-        if (that.ageRange != null) {
-          agesMatch = this.ageRange.containsRange(that.ageRange);
-        } else {
-          agesMatch = false;
-        }
-      } else if (that.ageRange != null) {
-        agesMatch = false;
+        return (index >= 0 && value <= highs[index]) ? targets[index] : -1;
       }
-
-      if (this.time != null) {
-        if (that.time != null) {
-          timesMatch = (this.time == that.time);
-        } else if (that.timeRange != null) {
-          timesMatch = (that.timeRange.contains(this.time));
-        } else {
-          // that.age == null && that.ageRange == null
-          // do nothing. Time will always be populated in one of them
-        }
-      } else if (that.time != null) {
-        if (this.timeRange != null) {
-          timesMatch = (this.timeRange.contains(that.time));
-        } else {
-          // this.age == null && this.ageRange == null
-          timesMatch = false;
-        }
-      } else if (this.timeRange != null) {
-        // this.age == null && that.age == null
-        if (that.timeRange != null) {
-          timesMatch = this.timeRange.containsRange(that.timeRange);
-        } else {
-          timesMatch = false;
+      for (int i = 0; i < lows.length; i++) {
+        if (lows[i] <= value && value <= highs[i]) {
+          return targets[i];
         }
-      } else if (that.timeRange != null) {
-        timesMatch = false;
       }
-
-      return agesMatch && timesMatch && this.attributes.equals(that.attributes);
-    }
-
-    /**
-     * Overrides the toString method for LookupTableKey.
-     */
-    @Override
-    public String toString() {
-      String ending = "";
-      if (this.age != null || this.ageRange != null) {
-        ending = (this.age == null ? ageRange.toString() : this.age.toString());
-      }
-      if (this.time != null || this.timeRange != null) {
-        ending = (this.time == null ? timeRange.toString() : this.time.toString());
-      }
-      return attributes.toString() + " : " + ending;
+      return -1;
     }
   }
 
-
   /**
    * A ConditionalTransitionOption represents a single destination state, with a
    * given logical condition that must be true in order for the state to be
@@ -543,7 +623,8 @@ public abstract class Transition implements Serializable {
       List<DistributedTransitionOption> transitions, Person person) {
     double p = person.rand();
     double high = 0.0;
-    for (DistributedTransitionOption option : transitions) {
+    for (int i = 0; i < transitions.size(); i++) {
+      DistributedTransitionOption option = transitions.get(i);
       processDistributedTransition(option);
       if (option.numericDistribution != null) {
         high += option.numericDistribution;
@@ -0,0 +1,273 @@
+package org.mitre.synthea.export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mitre.synthea.helpers.Config;
+
+/**
+ * Writes FHIR bulk data (NDJSON) files, one file per resource type. Rather than opening and
+ * closing a file for every resource, writers are kept open between patients. At most
+ * "exporter.fhir.bulk_data.max_open_files" files are kept open; when a write takes the number
+ * of open files beyond that, the least recently written ones are closed and reopened for
+ * appending the next time they are written. This bounds the number of file descriptors when
+ * there are many bulk data folders, e.g. with "exporter.subfolders_by_id_substring" and
+ * sharding. Each file records when it was last written without taking a shared lock; a lock is
+ * only taken to close files once the limit is exceeded.
+ *
+ * <p>By default all threads write to the same file for each resource type, taking a lock on
+ * that file only (not on every bulk data file) and writing all of a patient's resources of that
+ * type at once. If "exporter.fhir.bulk_data.sharded" is true, each thread instead writes to its
+ * own shard file (e.g. Observation.0003.ndjson), so a thread only waits for another one while
+ * files are being closed over the limit. The shards are merged back into a single file per
+ * resource type when the writer is closed, unless "exporter.fhir.bulk_data.merge_shards" is
+ * false.
+ *
+ * <p>The sharded and max_open_files settings are read on the first append after the writer is
+ * created or closed, and apply until it is closed again.
+ */
+public class BulkDataWriter {
+  private static final String EXTENSION = ".ndjson";
+  private static final String NEWLINE = System.lineSeparator();
+
+  /** Every bulk data file written so far, keyed by its path. */
+  private final Map<Path, BulkDataFile> files;
+  /** The number of files that are currently open. */
+  private final AtomicInteger openFileCount;
+  /** Taken while closing the least recently written files over the limit. */
+  private final Object evictionLock;
+  /** For every merged file, the shard files that contribute to it. */
+  private final Map<Path, List<Path>> shards;
+  /** Shard number of each exporting thread. */
+  private final ThreadLocal<Integer> shardNumber;
+  private final AtomicInteger shardCount;
+  private volatile boolean sharded;
+  /** The maximum number of open files, or 0 if the settings have not been read yet. */
+  private volatile int maxOpenFiles;
+
+  private BulkDataWriter() {
+    files = new ConcurrentHashMap<Path, BulkDataFile>();
+    openFileCount = new AtomicInteger();
+    evictionLock = new Object();
+    shards = new ConcurrentHashMap<Path, List<Path>>();
+    shardCount = new AtomicInteger();
+    shardNumber = ThreadLocal.withInitial(() -> shardCount.getAndIncrement());
+  }
+
+  /**
+   * Thread safe singleton pattern adopted from
+   * https://stackoverflow.com/questions/7048198/thread-safe-singletons-in-java
+   */
+  private static class SingletonHolder {
+    /**
+     * Singleton instance of the BulkDataWriter.
+     */
+    private static final BulkDataWriter instance = new BulkDataWriter();
+  }
+
+  /**
+   * Get the current instance of the BulkDataWriter.
+   *
+   * @return the current instance of the BulkDataWriter.
+   */
+  public static BulkDataWriter getInstance() {
+    return SingletonHolder.instance;
+  }
+
+  /**
+   * Append resources of one type to the bulk data file for that type.
+   *
+   * @param directory    The folder holding the bulk data files.
+   * @param resourceType The resource type, used as the file name.
+   * @param lines        The JSON encoded resources, one per line.
+   * @throws IOException if any IO error occurs.
+   */
+  public void append(Path directory, String resourceType, List<String> lines)
+      throws IOException {
+    int maxOpenFiles = this.maxOpenFiles;
+    if (maxOpenFiles == 0) {
+      maxOpenFiles = readSettings();
+    }
+    Path file = directory.resolve(resourceType + EXTENSION);
+    BulkDataFile bulkDataFile;
+    if (sharded) {
+      // only the current thread ever writes to its shard, so the lock is never contended
+      Path shard = directory.resolve(
+          String.format("%s.%04d%s", resourceType, shardNumber.get(), EXTENSION));
+      bulkDataFile = files.get(shard);
+      if (bulkDataFile == null) {
+        bulkDataFile = new BulkDataFile(shard);
+        files.put(shard, bulkDataFile);
+        shards.computeIfAbsent(file, f -> Collections.synchronizedList(new ArrayList<Path>()))
+            .add(shard);
+      }
+    } else {
+      bulkDataFile = files.computeIfAbsent(file, f -> new BulkDataFile(f));
+    }
+    // keep the shared files complete after every patient; shards are only read once closed
+    if (bulkDataFile.write(lines, !sharded)) {
+      openFileCount.incrementAndGet();
+    }
+    // close files outside of the lock on the file just written, so that two threads evicting
+    // each other's files can never deadlock
+    if (openFileCount.get() > maxOpenFiles) {
+      closeLeastRecentlyWritten(maxOpenFiles);
+    }
+  }
+
+  /**
+   * Read the settings that apply until the writer is closed.
+   *
+   * @return The maximum number of open files.
+   */
+  private int readSettings() {
+    sharded = Boolean.parseBoolean(Config.get("exporter.fhir.bulk_data.sharded", "false"));
+    // written last, so that a thread seeing this value also sees the other settings
+    maxOpenFiles = Math.max(1,
+        Integer.parseInt(Config.get("exporter.fhir.bulk_data.max_open_files", "256")));
+    return maxOpenFiles;
+  }
+
+  /**
+   * Close the least recently written files, leaving room for a quarter of the limit to be
+   * opened again before the next time the open files have to be searched.
+   *
+   * @param maxOpenFiles The maximum number of open files.
+   * @throws IOException if any IO error occurs.
+   */
+  private void closeLeastRecentlyWritten(int maxOpenFiles) throws IOException {
+    synchronized (evictionLock) {
+      if (openFileCount.get() <= maxOpenFiles) {
+        // another thread has closed files in the meantime
+        return;
+      }
+      List<BulkDataFile> open = new ArrayList<BulkDataFile>();
+      for (BulkDataFile file : files.values()) {
+        if (file.isOpen()) {
+          open.add(file);
+        }
+      }
+      int toClose = open.size() - (maxOpenFiles - maxOpenFiles / 4);
+      if (toClose <= 0) {
+        return;
+      }
+      // take a copy of the times, since they may change while we look at them
+      long[] lastWritten = new long[open.size()];
+      for (int i = 0; i < lastWritten.length; i++) {
+        lastWritten[i] = open.get(i).lastWritten;
+      }
+      long[] sorted = lastWritten.clone();
+      Arrays.sort(sorted);
+      long newestToClose = sorted[toClose - 1];
+      for (int i = 0; i < lastWritten.length; i++) {
+        if (lastWritten[i] <= newestToClose && open.get(i).close()) {
+          openFileCount.decrementAndGet();
+        }
+      }
+    }
+  }
+
+  /**
+   * Flush and close all open files. If shards were written, they are merged into a single file
+   * per resource type, unless "exporter.fhir.bulk_data.merge_shards" is false. This method
+   * should be called once after all the patient records have been exported.
+   *
+   * @throws IOException if any IO error occurs.
+   */
+  public void close() throws IOException {
+    for (BulkDataFile file : files.values()) {
+      if (file.close()) {
+        openFileCount.decrementAndGet();
+      }
+    }
+    files.clear();
+    maxOpenFiles = 0;
+
+    if (Boolean.parseBoolean(Config.get("exporter.fhir.bulk_data.merge_shards", "true"))) {
+      // sort so that the merged files are always assembled in the same order
+      Map<Path, List<Path>> sorted = new TreeMap<Path, List<Path>>(shards);
+      for (Map.Entry<Path, List<Path>> entry : sorted.entrySet()) {
+        List<Path> parts = entry.getValue();
+        parts.sort(null);
+        try (OutputStream out = Files.newOutputStream(entry.getKey(),
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+          for (Path part : parts) {
+            Files.copy(part, out);
+            Files.delete(part);
+          }
+        }
+      }
+    }
+    shards.clear();
+  }
+
+  /**
+   * A single bulk data file, which may be closed and reopened for appending any number of times.
+   * All writes to the file take a lock on this object only.
+   */
+  private static class BulkDataFile {
+    private final Path path;
+    /** Read without the lock to find the open files. */
+    private volatile Writer writer;
+    /** The value of System.nanoTime() at the last write. */
+    private volatile long lastWritten;
+
+    private BulkDataFile(Path path) {
+      this.path = path;
+    }
+
+    /**
+     * Append lines to the file, opening it if required.
+     * If flush is true, the file is complete afterwards, as if it had been closed.
+     *
+     * @return true if the file was opened.
+     */
+    private synchronized boolean write(List<String> lines, boolean flush) throws IOException {
+      boolean opened = writer == null;
+      if (opened) {
+        writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      }
+      lastWritten = System.nanoTime();
+      for (String line : lines) {
+        writer.write(line);
+        writer.write(NEWLINE);
+      }
+      if (flush) {
+        writer.flush();
+      }
+      return opened;
+    }
+
+    private boolean isOpen() {
+      return writer != null;
+    }
+
+    /**
+     * Close the file if it is open. The next write reopens it.
+     *
+     * @return true if the file was open.
+     */
+    private synchronized boolean close() throws IOException {
+      if (writer == null) {
+        return false;
+      }
+      writer.close();
+      writer = null;
+      return true;
+    }
+  }
+}
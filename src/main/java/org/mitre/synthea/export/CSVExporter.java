@@ -3,7 +3,6 @@ package org.mitre.synthea.export;
 import static org.mitre.synthea.export.ExportHelper.dateFromTimestamp;
 import static org.mitre.synthea.export.ExportHelper.iso8601Timestamp;
 
-import com.google.common.collect.Table;
 import com.google.gson.JsonObject;
 
 import java.io.File;
@@ -20,7 +19,6 @@ import java.util.GregorianCalendar;
 import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.helpers.Utilities;
@@ -296,9 +294,7 @@ public class CSVExporter {
   public void exportOrganizationsAndProviders() throws IOException {
     for (Provider org : Provider.getProviderList()) {
       // Check utilization for hospital before we export
-      Table<Integer, String, AtomicInteger> utilization = org.getUtilization();
-      int totalEncounters =
-          utilization.column(Provider.ENCOUNTERS).values().stream().mapToInt(ai -> ai.get()).sum();
+      int totalEncounters = org.getEncounterCount();
       if (totalEncounters > 0) {
         organization(org, totalEncounters);
         Map<String, ArrayList<Clinician>> providers = org.clinicianMap;
@@ -1,6 +1,5 @@
 package org.mitre.synthea.export;
 
-import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 
 import java.io.File;
@@ -12,10 +11,17 @@ import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
@@ -44,6 +50,37 @@ public abstract class Exporter {
   private static final List<Pair<Person, Long>> deferredExports = 
           Collections.synchronizedList(new LinkedList<>());
 
+  // Bulk data export encodes every resource individually. The FHIR contexts are shared with the
+  // FHIR exporters, and since parsers are not thread-safe each thread reuses its own.
+  private static final ThreadLocal<IParser> STU3_BULK_PARSER = ThreadLocal.withInitial(
+      () -> FhirStu3.getContext().newJsonParser().setPrettyPrint(false));
+  private static final ThreadLocal<IParser> DSTU2_BULK_PARSER = ThreadLocal.withInitial(
+      () -> FhirDstu2.getContext().newJsonParser().setPrettyPrint(false));
+  private static final ThreadLocal<IParser> R4_BULK_PARSER = ThreadLocal.withInitial(
+      () -> FhirR4.getContext().newJsonParser().setPrettyPrint(false));
+
+  /**
+   * Threads that export the formats of a patient at the same time when exporter.parallel_formats
+   * is true, rather than the common ForkJoinPool shared with the rest of the JVM. Created when
+   * first used, with exporter.parallel_formats.threads threads.
+   */
+  private static class FormatThreadPool {
+    private static final ExecutorService instance = create();
+
+    private static ExecutorService create() {
+      int threads = Integer.parseInt(Config.get("exporter.parallel_formats.threads", "0"));
+      if (threads <= 0) {
+        threads = Runtime.getRuntime().availableProcessors();
+      }
+      AtomicInteger threadNumber = new AtomicInteger();
+      return Executors.newFixedThreadPool(threads, runnable -> {
+        Thread thread = new Thread(runnable, "format-exporter-" + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+  }
+
   /**
    * Runtime configuration of the record exporter.
    */
@@ -108,10 +145,35 @@ public abstract class Exporter {
     }
   }
   
+  /**
+   * Exports the health record of a person, in one format.
+   */
+  @FunctionalInterface
+  private interface RecordExporter {
+    /**
+     * Export the health record of a person.
+     * @param person   Patient to export, with Patient.record being set.
+     * @param fileTag  An identifier to tag the file with.
+     * @param stopTime Time at which the simulation stopped
+     * @throws IOException if the record can not be written
+     */
+    void export(Person person, String fileTag, long stopTime) throws IOException;
+  }
+
   /**
    * Export a single patient, into all the formats supported. (Formats may be enabled or disabled by
    * configuration)
    *
+   * <p>The patient is not changed: the records are filtered in a view of the patient (see
+   * {@link Person#exportView()}), which is created once and then read by every format.
+   * If exporter.parallel_formats is true, the formats are exported at the same time, each from
+   * its own copy of the view, since some exporters write to the entries they export (such as
+   * the FHIR exporters, which set the fullUrl of each entry). The costs of all the entries are
+   * then determined before the copies are made, so that every format has the same costs.
+   * Each copy has its own random number generator, starting from the state of the view, so any
+   * other random value drawn while exporting differs from a sequential export, in which the
+   * formats draw from one generator one after another.
+   *
    * @param person   Patient to export
    * @param stopTime Time at which the simulation stopped
    * @param options Runtime exporter options
@@ -121,21 +183,82 @@ public abstract class Exporter {
       deferredExports.add(new ImmutablePair<Person, Long>(person, stopTime));
     } else {
       int yearsOfHistory = Integer.parseInt(Config.get("exporter.years_of_history"));
+      Person view;
       if (yearsOfHistory > 0) {
-        person = filterForExport(person, yearsOfHistory, stopTime);
+        view = filterForExport(person, yearsOfHistory, stopTime);
+      } else {
+        view = person.exportView();
       }
-      if (!person.alive(stopTime)) {
-        filterAfterDeath(person);
+      if (!view.alive(stopTime)) {
+        filterAfterDeath(view);
       }
-      if (person.hasMultipleRecords) {
-        int i = 0;
-        for (String key : person.records.keySet()) {
-          person.record = person.records.get(key);
-          exportRecord(person, Integer.toString(i), stopTime, options);
-          i++;
+      if (options.terminologyService) {
+        // Resolve any coded values within the records that are specified using a ValueSet URI.
+        for (HealthRecord record : records(view)) {
+          view.record = record;
+          new ValueSetCodeResolver(view).resolve();
+        }
+      }
+      List<RecordExporter> exporters = recordExporters(options);
+      if (exporters.size() > 1
+          && Boolean.parseBoolean(Config.get("exporter.parallel_formats", "false"))) {
+        for (HealthRecord record : records(view)) {
+          record.determineCosts();
+        }
+        List<Future<?>> formats = new ArrayList<Future<?>>();
+        for (RecordExporter exporter : exporters) {
+          Person copy = view.exportView();
+          formats.add(FormatThreadPool.instance.submit(
+              () -> exportRecords(copy, exporter, stopTime)));
+        }
+        for (Future<?> format : formats) {
+          try {
+            format.get();
+          } catch (InterruptedException e) {
+            for (Future<?> unfinished : formats) {
+              unfinished.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            return;
+          } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+          }
         }
       } else {
-        exportRecord(person, "", stopTime, options);
+        for (RecordExporter exporter : exporters) {
+          exportRecords(view, exporter, stopTime);
+        }
+      }
+    }
+  }
+
+  /**
+   * The health records of a person that are exported: one per provider if the person has
+   * multiple records, otherwise their active record.
+   */
+  private static List<HealthRecord> records(Person person) {
+    if (person.hasMultipleRecords) {
+      return new ArrayList<HealthRecord>(person.records.values());
+    } else {
+      return Collections.singletonList(person.record);
+    }
+  }
+
+  /**
+   * Export each of the health records of a person in one format.
+   *
+   * @param person   Patient to export
+   * @param exporter Exporter of the format
+   * @param stopTime Time at which the simulation stopped
+   */
+  private static void exportRecords(Person person, RecordExporter exporter, long stopTime) {
+    List<HealthRecord> records = records(person);
+    for (int i = 0; i < records.size(); i++) {
+      person.record = records.get(i);
+      try {
+        exporter.export(person, person.hasMultipleRecords ? Integer.toString(i) : "", stopTime);
+      } catch (IOException e) {
+        e.printStackTrace();
       }
     }
   }
@@ -152,154 +275,139 @@ public abstract class Exporter {
   }
 
   /**
-   * Export a single patient record, into all the formats supported.
-   * (Formats may be enabled or disabled by configuration)
+   * Get the exporters of the formats that are enabled by configuration, in the order in which
+   * they are run when they are not run at the same time.
    *
-   * @param person   Patient to export, with Patient.record being set.
-   * @param fileTag  An identifier to tag the file with.
-   * @param stopTime Time at which the simulation stopped
    * @param options Generator's record queue (may be null)
+   * @return the exporters of the enabled formats
    */
-  private static void exportRecord(Person person, String fileTag, long stopTime,
-          ExporterRuntimeOptions options) {
-    if (options.terminologyService) {
-      // Resolve any coded values within the record that are specified using a ValueSet URI.
-      ValueSetCodeResolver valueSetCodeResolver = new ValueSetCodeResolver(person);
-      valueSetCodeResolver.resolve();
-    }
-
+  private static List<RecordExporter> recordExporters(ExporterRuntimeOptions options) {
+    List<RecordExporter> exporters = new ArrayList<RecordExporter>();
     if (Boolean.parseBoolean(Config.get("exporter.fhir_stu3.export"))) {
-      File outDirectory = getOutputFolder("fhir_stu3", person);
-      if (Boolean.parseBoolean(Config.get("exporter.fhir.bulk_data"))) {
-        org.hl7.fhir.dstu3.model.Bundle bundle = FhirStu3.convertToFHIR(person, stopTime);
-        IParser parser = FhirContext.forDstu3().newJsonParser().setPrettyPrint(false);
-        for (org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-          String filename = entry.getResource().getResourceType().toString() + ".ndjson";
-          Path outFilePath = outDirectory.toPath().resolve(filename);
-          String entryJson = parser.encodeResourceToString(entry.getResource());
-          appendToFile(outFilePath, entryJson);
+      exporters.add((person, fileTag, stopTime) -> {
+        File outDirectory = getOutputFolder("fhir_stu3", person);
+        if (Boolean.parseBoolean(Config.get("exporter.fhir.bulk_data"))) {
+          org.hl7.fhir.dstu3.model.Bundle bundle = FhirStu3.convertToFHIR(person, stopTime);
+          IParser parser = STU3_BULK_PARSER.get();
+          Map<String, List<String>> resources = new LinkedHashMap<String, List<String>>();
+          for (org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            String resourceType = entry.getResource().getResourceType().toString();
+            String entryJson = parser.encodeResourceToString(entry.getResource());
+            resources.computeIfAbsent(resourceType, t -> new ArrayList<String>()).add(entryJson);
+          }
+          appendToBulkFiles(outDirectory.toPath(), resources);
+        } else {
+          String bundleJson = FhirStu3.convertToFHIRJson(person, stopTime);
+          Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "json"));
+          writeNewFile(outFilePath, bundleJson);
         }
-      } else {
-        String bundleJson = FhirStu3.convertToFHIRJson(person, stopTime);
-        Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "json"));
-        writeNewFile(outFilePath, bundleJson);
-      }
+      });
     }
     if (Boolean.parseBoolean(Config.get("exporter.fhir_dstu2.export"))) {
-      File outDirectory = getOutputFolder("fhir_dstu2", person);
-      if (Boolean.parseBoolean(Config.get("exporter.fhir.bulk_data"))) {
-        ca.uhn.fhir.model.dstu2.resource.Bundle bundle = FhirDstu2.convertToFHIR(person, stopTime);
-        IParser parser = FhirContext.forDstu2().newJsonParser().setPrettyPrint(false);
-        for (ca.uhn.fhir.model.dstu2.resource.Bundle.Entry entry : bundle.getEntry()) {
-          String filename = entry.getResource().getResourceName() + ".ndjson";
-          Path outFilePath = outDirectory.toPath().resolve(filename);
-          String entryJson = parser.encodeResourceToString(entry.getResource());
-          appendToFile(outFilePath, entryJson);
+      exporters.add((person, fileTag, stopTime) -> {
+        File outDirectory = getOutputFolder("fhir_dstu2", person);
+        if (Boolean.parseBoolean(Config.get("exporter.fhir.bulk_data"))) {
+          ca.uhn.fhir.model.dstu2.resource.Bundle bundle =
+              FhirDstu2.convertToFHIR(person, stopTime);
+          IParser parser = DSTU2_BULK_PARSER.get();
+          Map<String, List<String>> resources = new LinkedHashMap<String, List<String>>();
+          for (ca.uhn.fhir.model.dstu2.resource.Bundle.Entry entry : bundle.getEntry()) {
+            String resourceType = entry.getResource().getResourceName();
+            String entryJson = parser.encodeResourceToString(entry.getResource());
+            resources.computeIfAbsent(resourceType, t -> new ArrayList<String>()).add(entryJson);
+          }
+          appendToBulkFiles(outDirectory.toPath(), resources);
+        } else {
+          String bundleJson = FhirDstu2.convertToFHIRJson(person, stopTime);
+          Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "json"));
+          writeNewFile(outFilePath, bundleJson);
         }
-      } else {
-        String bundleJson = FhirDstu2.convertToFHIRJson(person, stopTime);
-        Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "json"));
-        writeNewFile(outFilePath, bundleJson);
-      }
+      });
     }
     if (Boolean.parseBoolean(Config.get("exporter.fhir.export"))) {
-      File outDirectory = getOutputFolder("fhir", person);
-      if (Boolean.parseBoolean(Config.get("exporter.fhir.bulk_data"))) {
-        org.hl7.fhir.r4.model.Bundle bundle = FhirR4.convertToFHIR(person, stopTime);
-        IParser parser = FhirContext.forR4().newJsonParser().setPrettyPrint(false);
-        for (org.hl7.fhir.r4.model.Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-          String filename = entry.getResource().getResourceType().toString() + ".ndjson";
-          Path outFilePath = outDirectory.toPath().resolve(filename);
-          String entryJson = parser.encodeResourceToString(entry.getResource());
-          appendToFile(outFilePath, entryJson);
+      exporters.add((person, fileTag, stopTime) -> {
+        File outDirectory = getOutputFolder("fhir", person);
+        if (Boolean.parseBoolean(Config.get("exporter.fhir.bulk_data"))) {
+          org.hl7.fhir.r4.model.Bundle bundle = FhirR4.convertToFHIR(person, stopTime);
+          IParser parser = R4_BULK_PARSER.get();
+          Map<String, List<String>> resources = new LinkedHashMap<String, List<String>>();
+          for (org.hl7.fhir.r4.model.Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            String resourceType = entry.getResource().getResourceType().toString();
+            String entryJson = parser.encodeResourceToString(entry.getResource());
+            resources.computeIfAbsent(resourceType, t -> new ArrayList<String>()).add(entryJson);
+          }
+          appendToBulkFiles(outDirectory.toPath(), resources);
+        } else {
+          String bundleJson = FhirR4.convertToFHIRJson(person, stopTime);
+          Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "json"));
+          writeNewFile(outFilePath, bundleJson);
         }
-      } else {
-        String bundleJson = FhirR4.convertToFHIRJson(person, stopTime);
-        Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "json"));
-        writeNewFile(outFilePath, bundleJson);
-      }
-      FhirGroupExporterR4.addPatient((String) person.attributes.get(Person.ID));
+        FhirGroupExporterR4.addPatient((String) person.attributes.get(Person.ID));
+      });
     }
     if (Boolean.parseBoolean(Config.get("exporter.ccda.export"))) {
-      String ccdaXml = CCDAExporter.export(person, stopTime);
-      File outDirectory = getOutputFolder("ccda", person);
-      Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "xml"));
-      writeNewFile(outFilePath, ccdaXml);
+      exporters.add((person, fileTag, stopTime) -> {
+        String ccdaXml = CCDAExporter.export(person, stopTime);
+        File outDirectory = getOutputFolder("ccda", person);
+        Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "xml"));
+        writeNewFile(outFilePath, ccdaXml);
+      });
     }
     if (Boolean.parseBoolean(Config.get("exporter.csv.export"))) {
-      try {
-        CSVExporter.getInstance().export(person, stopTime);
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
+      exporters.add((person, fileTag, stopTime) ->
+          CSVExporter.getInstance().export(person, stopTime));
     }
     if (Boolean.parseBoolean(Config.get("exporter.cpcds.export"))) {
-      try {
-        CPCDSExporter.getInstance().export(person, stopTime);
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
+      exporters.add((person, fileTag, stopTime) ->
+          CPCDSExporter.getInstance().export(person, stopTime));
     }
     if (Boolean.parseBoolean(Config.get("exporter.text.export"))) {
-      try {
-        TextExporter.exportAll(person, fileTag, stopTime);
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
+      exporters.add(TextExporter::exportAll);
     }
     if (Boolean.parseBoolean(Config.get("exporter.text.per_encounter_export"))) {
-      try {
-        TextExporter.exportEncounter(person, stopTime);
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
+      exporters.add((person, fileTag, stopTime) -> TextExporter.exportEncounter(person, stopTime));
     }
     if (Boolean.parseBoolean(Config.get("exporter.symptoms.csv.export"))) {
-      try {
-        SymptomCSVExporter.getInstance().export(person, stopTime);
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
+      exporters.add((person, fileTag, stopTime) ->
+          SymptomCSVExporter.getInstance().export(person, stopTime));
     }
     if (Boolean.parseBoolean(Config.get("exporter.symptoms.text.export"))) {
-      try {
-        SymptomTextExporter.exportAll(person, fileTag, stopTime);
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
+      exporters.add(SymptomTextExporter::exportAll);
     }
     if (Boolean.parseBoolean(Config.get("exporter.cdw.export"))) {
-      try {
-        CDWExporter.getInstance().export(person, stopTime);
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
+      exporters.add((person, fileTag, stopTime) ->
+          CDWExporter.getInstance().export(person, stopTime));
     }
     if (Boolean.parseBoolean(Config.get("exporter.clinical_note.export"))) {
-      File outDirectory = getOutputFolder("notes", person);
-      Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "txt"));
-      String consolidatedNotes = ClinicalNoteExporter.export(person);
-      writeNewFile(outFilePath, consolidatedNotes);
+      exporters.add((person, fileTag, stopTime) -> {
+        File outDirectory = getOutputFolder("notes", person);
+        Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "txt"));
+        String consolidatedNotes = ClinicalNoteExporter.export(person);
+        writeNewFile(outFilePath, consolidatedNotes);
+      });
     }
     if (options.isQueueEnabled()) {
-      try {
-        switch (options.queuedFhirVersion()) {
-          case DSTU2:
-            options.recordQueue.put(FhirDstu2.convertToFHIRJson(person, stopTime));
-            break;
-          case STU3:
-            options.recordQueue.put(FhirStu3.convertToFHIRJson(person, stopTime));
-            break;
-          default:
-            options.recordQueue.put(FhirR4.convertToFHIRJson(person, stopTime));
-            break;
+      exporters.add((person, fileTag, stopTime) -> {
+        try {
+          switch (options.queuedFhirVersion()) {
+            case DSTU2:
+              options.recordQueue.put(FhirDstu2.convertToFHIRJson(person, stopTime));
+              break;
+            case STU3:
+              options.recordQueue.put(FhirStu3.convertToFHIRJson(person, stopTime));
+              break;
+            default:
+              options.recordQueue.put(FhirR4.convertToFHIRJson(person, stopTime));
+              break;
+          }
+        } catch (InterruptedException ie) {
+          // ignore
+        } catch (Exception e) {
+          e.printStackTrace();
         }
-      } catch (InterruptedException ie) {
-        // ignore
-      } catch (Exception e) {
-        e.printStackTrace();
-      }
+      });
     }
+    return exporters;
   }
 
   /**
@@ -316,23 +424,18 @@ public abstract class Exporter {
   }
 
   /**
-   * Append contents to the end of a file.
-   * @param file Path to the new file.
-   * @param contents The contents of the file.
+   * Append encoded resources to the bulk data file for each resource type.
+   * @param directory Folder holding the bulk data files.
+   * @param resources Encoded resources, grouped by resource type.
    */
-  private static synchronized void appendToFile(Path file, String contents) {
-    try {
-      if (Files.notExists(file)) {
-        Files.createFile(file);
+  private static void appendToBulkFiles(Path directory, Map<String, List<String>> resources) {
+    BulkDataWriter writer = BulkDataWriter.getInstance();
+    for (Map.Entry<String, List<String>> entry : resources.entrySet()) {
+      try {
+        writer.append(directory, entry.getKey(), entry.getValue());
+      } catch (IOException e) {
+        e.printStackTrace();
       }
-    } catch (Exception e) {
-      // Ignore... multi-threaded race condition to create a file that didn't exist,
-      // but does now because one of the other exporter threads beat us to it.
-    }
-    try {
-      Files.write(file, Collections.singleton(contents), StandardOpenOption.APPEND);
-    } catch (IOException e) {
-      e.printStackTrace();
     }
   }
 
@@ -362,6 +465,13 @@ public abstract class Exporter {
       }
     }
     
+    // close the bulk data files (and merge any shards) now that all patients are exported
+    try {
+      BulkDataWriter.getInstance().close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+
     String bulk = Config.get("exporter.fhir.bulk_data");
 
     // Before we force bulk data to be off...
@@ -451,16 +561,16 @@ public abstract class Exporter {
    * any history that occurs after the specified end_time -- typically
    * this is the current time/System.currentTimeMillis().
    *
+   * <p>The original Person is not changed: the history is filtered in a view of the Person with
+   * copies of the health records (see {@link Person#exportView()}).
+   *
    * @param original    The Person to filter.
    * @param yearsToKeep The last __ years to keep.
    * @param endTime     The time the history ends.
-   * @return Modified Person with history expunged.
+   * @return View of the Person with history expunged.
    */
   public static Person filterForExport(Person original, int yearsToKeep, long endTime) {
-    // TODO: clone the patient so that we export only the last _ years
-    // but the rest still exists, just in case
-    Person filtered = original; //.clone();
-    //filtered.record = original.record.clone();
+    Person filtered = original.exportView();
 
     if (filtered.hasMultipleRecords) {
       for (String key : filtered.records.keySet()) {
@@ -541,6 +651,7 @@ public abstract class Exporter {
 
     // finally filter out any empty encounters
     filterEntries(record.encounters, Collections.emptyList(), cutoffDate, endTime, keepEncounter);
+    record.resetObservationIndex();
 
     return record;
   }
@@ -620,6 +731,7 @@ public abstract class Exporter {
             iter.remove();
           }
         }
+        record.resetObservationIndex();
       }
     } else {
       Iterator<Encounter> iter = person.record.encounters.iterator();
@@ -630,6 +742,7 @@ public abstract class Exporter {
           iter.remove();
         }
       }
+      person.record.resetObservationIndex();
     }
   }
 
@@ -330,6 +330,16 @@ public class FhirR4 {
     return bundle;
   }
 
+  /**
+   * Get the FHIR context shared by this exporter. The context is thread-safe and expensive to
+   * create, so other exporters writing R4 resources should reuse it.
+   *
+   * @return the shared R4 FhirContext
+   */
+  public static FhirContext getContext() {
+    return FHIR_CTX;
+  }
+
   /**
    * Convert the given Person into a JSON String, containing a FHIR Bundle of the Person and the
    * associated entries from their health record.
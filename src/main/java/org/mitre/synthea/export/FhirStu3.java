@@ -298,6 +298,16 @@ public class FhirStu3 {
     return bundle;
   }
 
+  /**
+   * Get the FHIR context shared by this exporter. The context is thread-safe and expensive to
+   * create, so other exporters writing STU3 resources should reuse it.
+   *
+   * @return the shared STU3 FhirContext
+   */
+  public static FhirContext getContext() {
+    return FHIR_CTX;
+  }
+
   /**
    * Convert the given Person into a JSON String, containing a FHIR Bundle of the Person and the
    * associated entries from their health record.
@@ -2,8 +2,10 @@ package org.mitre.synthea.helpers;
 
 import java.io.IOException;
 import java.io.Writer;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -11,6 +13,12 @@ import java.util.concurrent.atomic.AtomicInteger;
  * Fact Tables. If you have a "table" where each row is a fact or
  * lookup table where a value should be referenced by an ID, you
  * can add these keys and facts to this table and get back the ID.
+ *
+ * <p>Fact tables are shared by all exporting threads, so each table is a concurrent
+ * dictionary: looking up a key that is already in the table takes no locks, and adding a
+ * key only contends with threads adding the same key. Each key is assigned exactly one ID,
+ * the next in the sequence when the key is first added, so IDs are contiguous and follow the
+ * order in which keys are first added.
  */
 public class FactTable {
   /**
@@ -20,22 +28,33 @@ public class FactTable {
   /** Table column headers. Comma-separated. */
   private String header;
   /** This is the ID sequence generator. */
-  private AtomicInteger id;
-  /** Lookup the ID for a key. */
-  private Map<String,Integer> keys;
-  /** Lookup the fact by ID. */
-  private Map<Integer,String> facts;
-  /** Synchronization lock. */
-  private static final Object LOCK = new Object();
-  
+  private final AtomicInteger id;
+  /** Lookup the ID and fact for a key. */
+  private final Map<String,Fact> keys;
+  /** Lookup the fact by ID, in ID order. */
+  private final ConcurrentNavigableMap<Integer,Fact> facts;
+
+  /**
+   * The ID and fact of a key.
+   */
+  private static final class Fact {
+    private final int id;
+    private final String fact;
+
+    private Fact(int id, String fact) {
+      this.id = id;
+      this.fact = fact;
+    }
+  }
+
   /**
    * Create a FactTable with an ID that starts at 1
    * and increments with each new key/fact.
    */
   public FactTable() {
     id = new AtomicInteger(1);
-    keys = new HashMap<String,Integer>();
-    facts = new HashMap<Integer,String>();
+    keys = new ConcurrentHashMap<String,Fact>();
+    facts = new ConcurrentSkipListMap<Integer,Fact>();
   }
 
   /**
@@ -43,11 +62,9 @@ public class FactTable {
    * @param id The value of the next ID.
    */
   public void setNextId(int id) {
-    synchronized (LOCK) {
-      this.id = new AtomicInteger(id);
-    }
+    this.id.set(id);
   }
-  
+
   /**
    * Set the column headers of the fact table.
    * @param header Column headers of the fact table.
@@ -55,16 +72,14 @@ public class FactTable {
   public void setHeader(String header) {
     this.header = header;
   }
-  
+
   /**
    * Get the ID for a fact by a key.
    * @param key The key for a fact. For example, 'M' or 'F'.
    * @return The ID for the fact. For example, 1 or 2.
    */
   public int getFactId(String key) {
-    synchronized (LOCK) {
-      return keys.get(key);
-    }
+    return keys.get(key).id;
   }
 
   /**
@@ -73,10 +88,8 @@ public class FactTable {
    * @return The fact. For example, 'Male' or 'Female'.
    */
   public String getFactByKey(String key) {
-    synchronized (LOCK) {
-      Integer id = keys.get(key);
-      return facts.get(id);
-    }
+    Fact fact = keys.get(key);
+    return (fact == null) ? null : fact.fact;
   }
 
   /**
@@ -85,9 +98,8 @@ public class FactTable {
    * @return The fact. For example, 'Male' or 'Female'.
    */
   public String getFactById(Integer id) {
-    synchronized (LOCK) {
-      return facts.get(id);
-    }
+    Fact fact = facts.get(id);
+    return (fact == null) ? null : fact.fact;
   }
 
   /**
@@ -95,43 +107,43 @@ public class FactTable {
    * and returns the ID. If the key already exists,
    * the appropriate ID is returned without modifying
    * the table.
-   * 
+   *
    * @param key The key for a fact. For example, 'M' or 'F'.
    * @param fact The fact. For example, 'Male' or 'Female'.
    * @return The ID for the fact. For example, 1 or 2.
    */
   public int addFact(String key, String fact) {
-    synchronized (LOCK) {
-      if (keys.containsKey(key)) {
-        return keys.get(key);
-      }
-
-      int next = id.getAndIncrement();
-      keys.put(key, next);
-      facts.put(next, fact);
-      return next;
+    Fact existing = keys.get(key);
+    if (existing != null) {
+      return existing.id;
     }
+    // the ID is only taken from the sequence by the one thread that adds the key, so no IDs
+    // are skipped, and the fact is in the ID lookup before any thread can see the key
+    return keys.computeIfAbsent(key, k -> {
+      Fact added = new Fact(id.getAndIncrement(), fact);
+      facts.put(added.id, added);
+      return added;
+    }).id;
   }
-  
+
   /**
-   * Write the contents of the FactTable to a file.
+   * Write the contents of the FactTable to a file, in ID order. Facts may still be added
+   * while the table is written; they are written if they are added before the writer passes
+   * their ID.
    * @param writer The open Writer to use to record the FactTable.
    * @throws IOException On errors.
    */
   public void write(Writer writer) throws IOException {
-    synchronized (LOCK) {
-      writer.write(header);
-      writer.write(NEWLINE);
-      for (Integer key : facts.keySet()) {
-        writer.write(key.toString());
-        writer.write(',');
-        String fact = facts.get(key);
-        if (fact != null) {
-          writer.write(facts.get(key));
-        }
-        writer.write(NEWLINE);
+    writer.write(header);
+    writer.write(NEWLINE);
+    for (Fact fact : facts.values()) {
+      writer.write(Integer.toString(fact.id));
+      writer.write(',');
+      if (fact.fact != null) {
+        writer.write(fact.fact);
       }
-      writer.flush();
+      writer.write(NEWLINE);
     }
+    writer.flush();
   }
 }
@@ -1,17 +1,26 @@
 package org.mitre.synthea.helpers;
 
-import com.google.common.collect.HashBasedTable;
-import com.google.common.collect.Table;
-import com.google.common.collect.Tables;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.mitre.synthea.engine.Module;
@@ -25,15 +34,23 @@ import org.mitre.synthea.world.agents.Person;
  * - How many people hit that state
  * - What states they transitioned to
  * - How long they were in that state (ex, Guard, Delay)
+ *
+ * <p>Metrics are counted in LongAdder cells, so threads recording persons at the same time do
+ * not contend with each other. The counts are summed into {@link Metric} objects when they are
+ * read, and may also be written to a JSON file periodically while the simulation runs.
  */
 public class TransitionMetrics {
   /**
-   * Internal table of (Module,State) -> Metric. 
-   * Note that a table may not be the most appropriate data structure,
-   * but it's a lot cleaner than a Map of Module -> Map of State -> Metric.
+   * Counters for each state of each module, by module name and then by state name.
    */
-  private Table<String, String, Metric> metrics = 
-      Tables.synchronizedTable(HashBasedTable.create());
+  private final Map<String, Map<String, Cells>> metrics =
+      new ConcurrentHashMap<String, Map<String, Cells>>();
+
+  /** Writes snapshots of the metrics while the simulation runs, if enabled. */
+  private ScheduledExecutorService snapshots;
+  private File snapshotFile;
+  /** Held while a snapshot file is written. */
+  private final Object snapshotLock = new Object();
 
   /**
    * Record all appropriate state transition information from the given person.
@@ -47,6 +64,7 @@ public class TransitionMetrics {
    */
   @SuppressWarnings("unchecked")
   public void recordStats(Person person, long simulationEnd, Collection<Module> modules) {
+    Set<String> distinct = new HashSet<String>();
     for (Module m : modules) {
       if (!m.getClass().equals(Module.class)) {
         // java module, not GMF. no states to show
@@ -57,27 +75,29 @@ public class TransitionMetrics {
       if (history == null) {
         continue;
       }
-
-      // count basic "counter" stats for this state
-      history.forEach(s -> countStateStats(s, getMetric(m.name, s.name), simulationEnd));
-
-      // count this person only once for each distinct state they hit
-      history.stream().map(s -> s.name).distinct()
-          .forEach(sName -> getMetric(m.name, sName).population.incrementAndGet());
-
-      getMetric(m.name, history.get(0).name).current.incrementAndGet();
+      Map<String, Cells> moduleCells =
+          metrics.computeIfAbsent(m.name, k -> new ConcurrentHashMap<String, Cells>());
 
       // loop over the states backward (0 = current, n = initial)
       // and track from->to stats in pair
-      if (history.size() >= 2) {
-        for (int fromIndex = history.size() - 1; fromIndex > 0; fromIndex--) {
-          int toIndex = fromIndex - 1;
-
-          State from = history.get(fromIndex);
-          State to = history.get(toIndex);
-
-          getMetric(m.name, from.name).incrementDestination(to.name);
+      distinct.clear();
+      Cells from = null;
+      for (int index = history.size() - 1; index >= 0; index--) {
+        State state = history.get(index);
+        Cells cells = moduleCells.computeIfAbsent(state.name, k -> new Cells());
+        // count basic "counter" stats for this state
+        countStateStats(state, cells, simulationEnd);
+        // count this person only once for each distinct state they hit
+        if (distinct.add(state.name)) {
+          cells.population.increment();
         }
+        if (from != null) {
+          from.incrementDestination(state.name);
+        }
+        from = cells;
+      }
+      if (from != null) {
+        from.current.increment();
       }
     }
   }
@@ -87,29 +107,19 @@ public class TransitionMetrics {
    * 
    * @param moduleName Name of the module
    * @param stateName Name of the state
-   * @return Metric object
+   * @return Metric object, with the totals recorded so far
    */
   public Metric getMetric(String moduleName, String stateName) {
-    Metric metric = metrics.get(moduleName, stateName);
-
-    if (metric == null) {
-      synchronized (metrics) {
-        metric = metrics.get(moduleName, stateName);
-        if (metric == null) {
-          metric = new Metric();
-          metrics.put(moduleName, stateName, metric);
-        }
-      }
-    }
-
-    return metric;
+    Map<String, Cells> moduleCells = metrics.get(moduleName);
+    Cells cells = (moduleCells == null) ? null : moduleCells.get(stateName);
+    return (cells == null) ? new Metric() : cells.sum();
   }
 
-  private void countStateStats(State state, Metric stateStats, long endDate) {
+  private void countStateStats(State state, Cells stateStats, long endDate) {
     if (state == null || state.entered == null) {
       return;
     }
-    stateStats.entered.incrementAndGet();
+    stateStats.entered.increment();
     long exitTime = (state.exited == null) ? endDate : state.exited; 
     // if they were in the last state when they died or time expired
     long startTime = state.entered;
@@ -117,7 +127,93 @@ public class TransitionMetrics {
     // "when the lifecycle module kills people before the initial state"
     // but i dont think that will break anything here if it happens
 
-    stateStats.duration.addAndGet(exitTime - startTime);
+    stateStats.duration.add(exitTime - startTime);
+  }
+
+  /**
+   * Start writing snapshots of the metrics gathered so far to the given file, replacing the
+   * previous snapshot each time, so that long simulations can be watched as they run.
+   *
+   * @param file The JSON file to write snapshots to
+   * @param intervalSeconds The number of seconds between snapshots
+   */
+  public synchronized void startSnapshots(File file, long intervalSeconds) {
+    stopSnapshots();
+    snapshotFile = file;
+    snapshots = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "transition-metrics-snapshots");
+      thread.setDaemon(true);
+      return thread;
+    });
+    snapshots.scheduleAtFixedRate(() -> writeSnapshot(file),
+        intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Stop writing snapshots, if they were started, and write a final snapshot.
+   */
+  public synchronized void stopSnapshots() {
+    if (snapshots != null) {
+      // let a snapshot that is being written finish, rather than interrupting it, so that it
+      // does not leave a truncated file or replace the final snapshot
+      snapshots.shutdown();
+      boolean interrupted = false;
+      try {
+        if (!snapshots.awaitTermination(1, TimeUnit.MINUTES)) {
+          System.out.println("Timed out waiting for a transition metrics snapshot.");
+        }
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+      snapshots = null;
+      writeSnapshot(snapshotFile);
+      if (interrupted) {
+        // only after writing, since writing a file fails on an interrupted thread
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Write the metrics gathered so far to a JSON file. The file is replaced in one step, so a
+   * reader never sees a partially written snapshot.
+   *
+   * @param file The file to write to
+   */
+  public void writeSnapshot(File file) {
+    JsonObject snapshot = new JsonObject();
+    List<String> moduleNames = new ArrayList<String>(metrics.keySet());
+    Collections.sort(moduleNames);
+    for (String moduleName : moduleNames) {
+      JsonObject module = new JsonObject();
+      List<String> stateNames = new ArrayList<String>(metrics.get(moduleName).keySet());
+      Collections.sort(stateNames);
+      for (String stateName : stateNames) {
+        Metric metric = getMetric(moduleName, stateName);
+        JsonObject state = new JsonObject();
+        state.addProperty("entered", metric.entered);
+        state.addProperty("population", metric.population);
+        state.addProperty("current", metric.current);
+        state.addProperty("duration", metric.duration);
+        JsonObject destinations = new JsonObject();
+        metric.destinations.forEach((toState, count) -> destinations.addProperty(toState, count));
+        state.add("destinations", destinations);
+        module.add(stateName, state);
+      }
+      snapshot.add(moduleName, module);
+    }
+    byte[] json = new GsonBuilder().setPrettyPrinting().create().toJson(snapshot)
+        .getBytes(StandardCharsets.UTF_8);
+    // snapshots share the temporary file, so only one is written at a time
+    synchronized (snapshotLock) {
+      try {
+        File tempFile = new File(file.getPath() + ".tmp");
+        Files.write(tempFile.toPath(), json);
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
   }
   
   /**
@@ -136,16 +232,17 @@ public class TransitionMetrics {
       }
       System.out.println(m.name.toUpperCase());
 
-      Map<String, Metric> moduleMetrics = metrics.row(m.name);
+      Map<String, Cells> moduleMetrics =
+          metrics.getOrDefault(m.name, Collections.emptyMap());
       List<String> keys = new ArrayList<String>(moduleMetrics.keySet());
       Collections.sort(keys);
 
       for (String stateName : keys) {
         Metric stats = getMetric(m.name, stateName);
-        int entered = stats.entered.get();
-        int population = stats.population.get();
-        long duration = stats.duration.get();
-        int current = stats.current.get();
+        long entered = stats.entered;
+        long population = stats.population;
+        long duration = stats.duration;
+        long current = stats.current;
 
         System.out.println(stateName + ":");
         System.out.println(" Total times entered: " + stats.entered);
@@ -170,10 +267,10 @@ public class TransitionMetrics {
 
         if (!stats.destinations.isEmpty()) {
           System.out.println(" Transitioned to:");
-          long total = stats.destinations.values().stream().mapToLong(ai -> ai.longValue()).sum();
+          long total = stats.destinations.values().stream().mapToLong(l -> l).sum();
           stats.destinations.forEach((toState, count) -> 
                 System.out.println(" --> " + toState + " : " + count + " = " 
-                                    + decimal(count.get(), total) + "%"));
+                                    + decimal(count, total) + "%"));
         }
         System.out.println();
       }
@@ -240,54 +337,78 @@ public class TransitionMetrics {
   }
 
   /**
-   * Helper class to track the metrics of a single State.
+   * The metrics of a single State, as totals at the time they were read.
    */
   public static class Metric {
     /**
      * Number of times the state was entered.
      */
-    public final AtomicInteger entered = new AtomicInteger(0); 
+    public final long entered;
     
     /**
      * Total length of time (ms) people were in this state.
      */
-    public final AtomicLong duration = new AtomicLong(0L);
+    public final long duration;
     
     /**
      * Number of people that ever his this state.
      */
-    public final AtomicInteger population = new AtomicInteger(0);
+    public final long population;
     
     /**
      * Number of people that are "currently" in that state.
      */
-    public final AtomicInteger current = new AtomicInteger(0);
+    public final long current;
     
     /**
      * Tracker for what states this state transitions to.
      * Key: state that this state transitioned to.
      * Value: number of times
      */
-    public final Map<String, AtomicInteger> destinations = new ConcurrentHashMap<>();
+    public final Map<String, Long> destinations;
+
+    private Metric() {
+      this(0L, 0L, 0L, 0L, Collections.emptyMap());
+    }
+
+    private Metric(long entered, long duration, long population, long current,
+        Map<String, Long> destinations) {
+      this.entered = entered;
+      this.duration = duration;
+      this.population = population;
+      this.current = current;
+      this.destinations = Collections.unmodifiableMap(destinations);
+    }
+  }
+
+  /**
+   * The counters of a single State.
+   */
+  private static class Cells {
+    private final LongAdder entered = new LongAdder();
+    private final LongAdder duration = new LongAdder();
+    private final LongAdder population = new LongAdder();
+    private final LongAdder current = new LongAdder();
+    private final Map<String, LongAdder> destinations = new ConcurrentHashMap<String, LongAdder>();
 
     /**
      * Helper function to increment the count for a destination state.
      * 
      * @param destination Target state that was transitioned to
      */
-    void incrementDestination(String destination) {
-      
-      AtomicInteger count = destinations.get(destination);
+    private void incrementDestination(String destination) {
+      LongAdder count = destinations.get(destination);
       if (count == null) {
-        synchronized (destinations) {
-          count = destinations.get(destination);
-          if (count == null) {
-            count = new AtomicInteger(0);
-            destinations.put(destination, count);
-          }
-        }
+        count = destinations.computeIfAbsent(destination, k -> new LongAdder());
       }
-      count.incrementAndGet();
+      count.increment();
+    }
+
+    private Metric sum() {
+      Map<String, Long> destinationCounts = new TreeMap<String, Long>();
+      destinations.forEach((toState, count) -> destinationCounts.put(toState, count.sum()));
+      return new Metric(entered.sum(), duration.sum(), population.sum(), current.sum(),
+          destinationCounts);
     }
   }
 }
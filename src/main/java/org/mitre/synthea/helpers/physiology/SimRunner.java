@@ -16,7 +16,6 @@ import org.simulator.math.odes.MultiTable;
 public class SimRunner {
   private PhysiologyGeneratorConfig config;
   private Person person;
-  private PhysiologySimulator simulator;
   private Map<String,String> paramTypes = new HashMap<String, String>();
   private Map<String,Double> prevInputs = new HashMap<String, Double>();
   private Map<VitalSign,Double> vitalSignResults = new HashMap<VitalSign,Double>();
@@ -30,12 +29,7 @@ public class SimRunner {
   public SimRunner(PhysiologyGeneratorConfig config, Person person) {
     this.config = config;
     this.person = person;
-    simulator = new PhysiologySimulator(
-        config.getModel(),
-        config.getSolver(),
-        config.getStepSize(),
-        config.getSimDuration()
-    );
+    PhysiologySimulator simulator = borrowSimulator();
     
     // All Patient parameters are set to the default Decimal type
     // TODO: May need to find a way to handle alternative types in the future
@@ -49,10 +43,26 @@ public class SimRunner {
       paramTypes.put(param, "List<Decimal>");
     }
 
+    PhysiologySimulator.release(simulator);
+
     for (IoMapper mapper : config.getOutputs()) {
       mapper.initialize(paramTypes);
     }
   }
+
+  /**
+   * Borrows a simulator for this configuration from the shared pool. It must be released
+   * when the caller is done with it.
+   * @return simulator instance
+   */
+  private PhysiologySimulator borrowSimulator() {
+    return PhysiologySimulator.borrow(
+        config.getModel(),
+        config.getSolver(),
+        config.getStepSize(),
+        config.getSimDuration()
+    );
+  }
   
   /**
    * Retrieves the simulation configuration.
@@ -76,9 +86,11 @@ public class SimRunner {
    * parameters are within threshold ranges.
    */
   public void compareDefaultInputs() {
+    PhysiologySimulator simulator = borrowSimulator();
     for (IoMapper mapper : config.getInputs()) {
       prevInputs.put(mapper.getTo(), simulator.getParamDefault(mapper.getTo()));
     }
+    PhysiologySimulator.release(simulator);
   }
   
   /**
@@ -143,6 +155,7 @@ public class SimRunner {
    * @return simulation results
    */
   private MultiTable runSim(long time, Map<String,Double> modelInputs) {
+    PhysiologySimulator simulator = borrowSimulator();
     try {
       MultiTable results = simulator.run(modelInputs);
       return results;
@@ -151,6 +164,8 @@ public class SimRunner {
           Level.SEVERE, "Unable to solve simulation \""
           + config.getModel() + "\" at time step " + time + " for person "
           + person.attributes.get(Person.ID), ex);
+    } finally {
+      PhysiologySimulator.release(simulator);
     }
     return null;
   }
@@ -0,0 +1,229 @@
+package org.mitre.synthea.world.agents;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Calculates the calendar age of a person born at a given time, with the same results as
+ * <code>Period.between(birthdate, date)</code> on the local dates, but using only arithmetic on
+ * primitives so that no objects are created for each age that is calculated.
+ *
+ * <p>The birth date is converted to a local date once, when the calculator is created. Times are
+ * converted to local dates using a table of the UTC offset changes of the time zone, which is
+ * built once per time zone and covers the years 1800 to 2200. Times outside of that range fall
+ * back to the java.time classes.
+ */
+final class AgeCalculator {
+  private static final long MILLIS_PER_DAY = 86400000L;
+  private static final Map<ZoneId, OffsetTable> OFFSET_TABLES =
+      new ConcurrentHashMap<ZoneId, OffsetTable>();
+
+  /** The birthdate, in milliseconds since the epoch. */
+  final long birthdate;
+  private final OffsetTable offsets;
+  private final long birthEpochDay;
+  private final int birthYear;
+  private final int birthMonth;
+  private final int birthDay;
+
+  /**
+   * Create a calculator for a person born at the given time.
+   * @param birthdate the birthdate in milliseconds since the epoch
+   * @param timeZone the time zone used to convert times to local dates
+   */
+  AgeCalculator(long birthdate, ZoneId timeZone) {
+    this.birthdate = birthdate;
+    this.offsets = OFFSET_TABLES.computeIfAbsent(timeZone, OffsetTable::new);
+    this.birthEpochDay = offsets.toEpochDay(birthdate);
+    LocalDate date = LocalDate.ofEpochDay(birthEpochDay);
+    this.birthYear = date.getYear();
+    this.birthMonth = date.getMonthValue();
+    this.birthDay = date.getDayOfMonth();
+  }
+
+  /**
+   * Get the age in whole years at the given time.
+   * @param time the time in milliseconds since the epoch
+   * @return the age in years, or zero if the time is before the birthdate
+   */
+  int years(long time) {
+    return months(time) / 12;
+  }
+
+  /**
+   * Get the age in whole months at the given time.
+   * @param time the time in milliseconds since the epoch
+   * @return the age in months, or zero if the time is before the birthdate
+   */
+  int months(long time) {
+    long epochDay = offsets.toEpochDay(time);
+    if (epochDay <= birthEpochDay) {
+      return 0;
+    }
+    return completedMonths(epochDay, civil(epochDay));
+  }
+
+  /**
+   * Get the age in decimal years at the given time, calculated as the years, months and days of
+   * the calendar age, with the months as twelfths of a year and the days as 1/365.2425 of a year.
+   * @param time the time in milliseconds since the epoch
+   * @return the age in decimal years, or zero if the time is before the birthdate
+   */
+  double decimalYears(long time) {
+    long epochDay = offsets.toEpochDay(time);
+    if (epochDay <= birthEpochDay) {
+      return 0;
+    }
+    long civil = civil(epochDay);
+    int totalMonths = completedMonths(epochDay, civil);
+    int days = day(civil) - birthDay;
+    if (days < 0) {
+      // the days since the last monthly anniversary, which may have been moved back to the end
+      // of a shorter month, as LocalDate.plusMonths does
+      int months = birthYear * 12 + (birthMonth - 1) + totalMonths;
+      int year = Math.floorDiv(months, 12);
+      int month = Math.floorMod(months, 12) + 1;
+      int day = Math.min(birthDay, lengthOfMonth(year, month));
+      days = (int) (epochDay - epochDay(year, month, day));
+    }
+    // the same operations in the same order as Person.ageInDecimalYears, to get the same result
+    return (totalMonths / 12) + (totalMonths % 12) / 12.0 + days / 365.2425;
+  }
+
+  /**
+   * The number of whole months from the birthdate to the given date, as Period.between
+   * calculates them: the difference in months, less one if the day of the month has not yet
+   * reached the day of the month of the birthdate.
+   */
+  private int completedMonths(long epochDay, long civil) {
+    int totalMonths = (year(civil) - birthYear) * 12 + (month(civil) - birthMonth);
+    if (totalMonths > 0 && day(civil) < birthDay) {
+      totalMonths--;
+    }
+    return totalMonths;
+  }
+
+  /**
+   * Convert an epoch day to a year, month and day, packed into a long so that nothing has to be
+   * allocated. See http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+   */
+  private static long civil(long epochDay) {
+    long z = epochDay + 719468;
+    long era = Math.floorDiv(z, 146097);
+    long doe = z - era * 146097;
+    long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+    long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+    long mp = (5 * doy + 2) / 153;
+    long day = doy - (153 * mp + 2) / 5 + 1;
+    long month = mp < 10 ? mp + 3 : mp - 9;
+    long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+    return (year << 9) | (month << 5) | day;
+  }
+
+  private static int year(long civil) {
+    return (int) (civil >> 9);
+  }
+
+  private static int month(long civil) {
+    return (int) ((civil >> 5) & 0xF);
+  }
+
+  private static int day(long civil) {
+    return (int) (civil & 0x1F);
+  }
+
+  /**
+   * Convert a year, month and day to an epoch day.
+   * See http://howardhinnant.github.io/date_algorithms.html#days_from_civil
+   */
+  private static long epochDay(int year, int month, int day) {
+    long y = (month <= 2) ? year - 1 : year;
+    long era = Math.floorDiv(y, 400);
+    long yoe = y - era * 400;
+    long doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+    return era * 146097 + doe - 719468;
+  }
+
+  private static int lengthOfMonth(int year, int month) {
+    switch (month) {
+      case 2:
+        boolean leap = (year % 4 == 0) && (year % 100 != 0 || year % 400 == 0);
+        return leap ? 29 : 28;
+      case 4:
+      case 6:
+      case 9:
+      case 11:
+        return 30;
+      default:
+        return 31;
+    }
+  }
+
+  /**
+   * The UTC offsets of a time zone, as the times at which the offset changes and the offset from
+   * each of those times on.
+   */
+  private static final class OffsetTable {
+    private static final long START = LocalDate.of(1800, 1, 1)
+        .atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+    private static final long END = LocalDate.of(2200, 1, 1)
+        .atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+
+    private final ZoneId zone;
+    private final long[] transitions;
+    private final long[] offsets;
+
+    private OffsetTable(ZoneId zone) {
+      this.zone = zone;
+      ZoneRules rules = zone.getRules();
+      List<Long> times = new ArrayList<Long>();
+      List<Long> offsetMillis = new ArrayList<Long>();
+      Instant instant = Instant.ofEpochMilli(START);
+      times.add(START);
+      offsetMillis.add(rules.getOffset(instant).getTotalSeconds() * 1000L);
+      ZoneOffsetTransition transition = rules.nextTransition(instant);
+      while (transition != null && transition.toEpochSecond() * 1000L < END) {
+        times.add(transition.toEpochSecond() * 1000L);
+        offsetMillis.add(transition.getOffsetAfter().getTotalSeconds() * 1000L);
+        transition = rules.nextTransition(transition.getInstant());
+      }
+      transitions = new long[times.size()];
+      offsets = new long[times.size()];
+      for (int i = 0; i < transitions.length; i++) {
+        transitions[i] = times.get(i);
+        offsets[i] = offsetMillis.get(i);
+      }
+    }
+
+    /**
+     * Get the local epoch day of the given time in this time zone.
+     * @param time the time in milliseconds since the epoch
+     * @return the number of days since 1970-01-01 of the local date
+     */
+    private long toEpochDay(long time) {
+      if (time < START || time >= END) {
+        return Instant.ofEpochMilli(time).atZone(zone).toLocalDate().toEpochDay();
+      }
+      int low = 0;
+      int high = transitions.length - 1;
+      while (low < high) {
+        int mid = (low + high + 1) >>> 1;
+        if (transitions[mid] <= time) {
+          low = mid;
+        } else {
+          high = mid - 1;
+        }
+      }
+      return Math.floorDiv(time + offsets[low], MILLIS_PER_DAY);
+    }
+  }
+}
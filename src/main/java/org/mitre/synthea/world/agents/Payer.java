@@ -1,6 +1,5 @@
 package org.mitre.synthea.world.agents;
 
-import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.Table;
 import com.google.gson.internal.LinkedTreeMap;
 
@@ -18,7 +17,9 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
 import java.util.stream.Collectors;
 
 import org.mitre.synthea.helpers.Config;
@@ -52,6 +53,9 @@ public class Payer implements Serializable {
   /* Payer Finder. */
   private static IPayerFinder payerFinder;
   // Payer selction algorithm choices:
+  /** Utilization columns of all payers. */
+  private static final UtilizationCounters.Columns COLUMNS = new UtilizationCounters.Columns();
+
   private static final String RANDOM = "random";
   private static final String BESTRATE = "best_rate";
 
@@ -70,14 +74,14 @@ public class Payer implements Serializable {
   private Set<String> servicesCovered;
 
   /* Payer Statistics. */
-  private double revenue;
-  private double costsCovered;
-  private double costsUncovered;
-  private double totalQOLS; // Total customer quality of life scores.
+  private DoubleAdder revenue;
+  private DoubleAdder costsCovered;
+  private DoubleAdder costsUncovered;
+  private DoubleAdder totalQOLS; // Total customer quality of life scores.
   // Unique utilizers of Payer, by Person ID, with number of utilizations per Person.
   private final Map<String, AtomicInteger> customerUtilization;
   // row: year, column: type, value: count.
-  private transient Table<Integer, String, AtomicInteger> entryUtilization;
+  private transient UtilizationCounters entryUtilization;
   
   /**
    * Simple bean used to add Java Serialization support to 
@@ -104,8 +108,9 @@ public class Payer implements Serializable {
     oos.defaultWriteObject();
     ArrayList<UtilizationBean> entryUtilizationElements = null;
     if (entryUtilization != null) {
-      entryUtilizationElements = new ArrayList<>(entryUtilization.size());
-      for (Table.Cell<Integer, String, AtomicInteger> cell: entryUtilization.cellSet()) {
+      Table<Integer, String, AtomicInteger> table = entryUtilization.toTable();
+      entryUtilizationElements = new ArrayList<>(table.size());
+      for (Table.Cell<Integer, String, AtomicInteger> cell: table.cellSet()) {
         entryUtilizationElements.add(
                 new UtilizationBean(cell.getRowKey(), cell.getColumnKey(), cell.getValue()));
       }
@@ -122,9 +127,9 @@ public class Payer implements Serializable {
     ArrayList<UtilizationBean> entryUtilizationElements = 
             (ArrayList<UtilizationBean>)ois.readObject();
     if (entryUtilizationElements != null) {
-      this.entryUtilization = HashBasedTable.create();
+      this.entryUtilization = new UtilizationCounters(COLUMNS);
       for (UtilizationBean u: entryUtilizationElements) {
-        this.entryUtilization.put(u.year, u.type, u.count);
+        this.entryUtilization.add(u.year, COLUMNS.id(u.type), u.count.get());
       }
     }
   }
@@ -139,12 +144,12 @@ public class Payer implements Serializable {
     this.name = name;
     this.uuid = UUID.nameUUIDFromBytes((id + this.name).getBytes()).toString();
     this.attributes = new LinkedTreeMap<>();
-    this.entryUtilization = HashBasedTable.create();
-    this.customerUtilization = new HashMap<String, AtomicInteger>();
-    this.costsCovered = 0.0;
-    this.costsUncovered = 0.0;
-    this.revenue = 0.0;
-    this.totalQOLS = 0.0;
+    this.entryUtilization = new UtilizationCounters(COLUMNS);
+    this.customerUtilization = new ConcurrentHashMap<String, AtomicInteger>();
+    this.costsCovered = new DoubleAdder();
+    this.costsUncovered = new DoubleAdder();
+    this.revenue = new DoubleAdder();
+    this.totalQOLS = new DoubleAdder();
   }
 
   /**
@@ -483,7 +488,7 @@ public class Payer implements Serializable {
    * @return the monthly premium amount.
    */
   public double payMonthlyPremium() {
-    this.revenue += this.monthlyPremium;
+    this.revenue.add(this.monthlyPremium);
     return this.monthlyPremium;
   }
 
@@ -492,11 +497,9 @@ public class Payer implements Serializable {
    * 
    * @param person the person to add to the payer.
    */
-  public synchronized void incrementCustomers(Person person) {
-    if (!customerUtilization.containsKey(person.attributes.get(Person.ID))) {
-      customerUtilization.put((String) person.attributes.get(Person.ID), new AtomicInteger(0));
-    }
-    customerUtilization.get(person.attributes.get(Person.ID)).incrementAndGet();
+  public void incrementCustomers(Person person) {
+    customerUtilization.computeIfAbsent((String) person.attributes.get(Person.ID),
+        id -> new AtomicInteger(0)).incrementAndGet();
   }
 
   /**
@@ -505,11 +508,7 @@ public class Payer implements Serializable {
    * @param entry the entry covered.
    */
   public void incrementCoveredEntries(Entry entry) {
-
-    String entryType = getEntryType(entry);
-
-    incrementEntries(Utilities.getYear(entry.start), "covered-" + entryType);
-    incrementEntries(Utilities.getYear(entry.start), "covered-" + entryType + "-" + entry.type);
+    incrementEntries(entry, true);
   }
   
   /**
@@ -518,50 +517,81 @@ public class Payer implements Serializable {
    * @param entry the entry covered.
    */
   public void incrementUncoveredEntries(Entry entry) {
+    incrementEntries(entry, false);
+  }
+
+  /**
+   * Increments utilization of the year of the given entry, for the kind of entry and for the
+   * kind of entry and its type.
+   *
+   * @param entry the entry to count.
+   * @param covered whether the entry was covered.
+   */
+  private void incrementEntries(Entry entry, boolean covered) {
+    EntryCategory category = EntryCategory.of(entry);
+    int year = Utilities.getYear(entry.start);
+    entryUtilization.increment(year, category.column(covered));
+    entryUtilization.increment(year, category.typeColumn(covered, String.valueOf(entry.type)));
+  }
+
+  /**
+   * The kinds of entries (Immunization/Encounter/Procedure/Medication) that payers count, with
+   * the ids of their utilization columns. The column names are the key of the kind of entry,
+   * prefixed with "covered-" or "uncovered-", and optionally followed by "-" and the entry type.
+   */
+  private enum EntryCategory {
+    ENCOUNTERS(HealthRecord.ENCOUNTERS),
+    MEDICATIONS(HealthRecord.MEDICATIONS),
+    PROCEDURES(HealthRecord.PROCEDURES),
+    IMMUNIZATIONS(HealthRecord.IMMUNIZATIONS),
+    // Not an entry with a cost.
+    NO_COST("no_cost");
+
+    private final String coveredKey;
+    private final String uncoveredKey;
+    private final int coveredColumn;
+    private final int uncoveredColumn;
+    private final Map<String, Integer> coveredTypeColumns;
+    private final Map<String, Integer> uncoveredTypeColumns;
+
+    EntryCategory(String key) {
+      this.coveredKey = "covered-" + key;
+      this.uncoveredKey = "uncovered-" + key;
+      this.coveredColumn = COLUMNS.id(coveredKey);
+      this.uncoveredColumn = COLUMNS.id(uncoveredKey);
+      this.coveredTypeColumns = new ConcurrentHashMap<String, Integer>();
+      this.uncoveredTypeColumns = new ConcurrentHashMap<String, Integer>();
+    }
 
-    String entryType = getEntryType(entry);
-
-    incrementEntries(Utilities.getYear(entry.start), "uncovered-" + entryType);
-    incrementEntries(Utilities.getYear(entry.start), "uncovered-" + entryType
-        + "-" + entry.type);
-  }
+    // Perhaps move to HealthRecord.java
+    private static EntryCategory of(Entry entry) {
+      if (entry instanceof Encounter) {
+        return ENCOUNTERS;
+      } else if (entry instanceof Medication) {
+        return MEDICATIONS;
+      } else if (entry instanceof Procedure) {
+        return PROCEDURES;
+      } else if (entry instanceof Immunization) {
+        return IMMUNIZATIONS;
+      } else {
+        return NO_COST;
+      }
+    }
 
-  // Perhaps move to HealthRecord.java
-  /**
-   * Determines what entry type (Immunization/Encounter/Procedure/Medication) of the given entry.
-   * 
-   * @param entry the entry to parse.
-   */
-  private String getEntryType(Entry entry) {
-
-    String entryType;
-
-    if (entry instanceof Encounter) {
-      entryType = HealthRecord.ENCOUNTERS;
-    } else if (entry instanceof Medication) {
-      entryType = HealthRecord.MEDICATIONS;
-    } else if (entry instanceof Procedure) {
-      entryType = HealthRecord.PROCEDURES;
-    } else if (entry instanceof Immunization) {
-      entryType = HealthRecord.IMMUNIZATIONS;
-    } else {
-      // Not an entry with a cost.
-      entryType = "no_cost";
+    private int column(boolean covered) {
+      return covered ? coveredColumn : uncoveredColumn;
     }
-    return entryType;
-  }
 
-  /**
-   * Increments encounter utiilization for a given year and encounter type.
-   * 
-   * @param year the year of the encounter to add
-   * @param key the key (the encounter type and whether it was covered/uncovered)
-   */
-  private synchronized void incrementEntries(Integer year, String key) {
-    if (!entryUtilization.contains(year, key)) {
-      entryUtilization.put(year, key, new AtomicInteger(0));
+    private int typeColumn(boolean covered, String type) {
+      Map<String, Integer> columns = covered ? coveredTypeColumns : uncoveredTypeColumns;
+      // the column name is only built the first time each type is seen
+      Integer column = columns.get(type);
+      if (column == null) {
+        String key = (covered ? coveredKey : uncoveredKey) + "-" + type;
+        column = columns.computeIfAbsent(type, t -> COLUMNS.id(key));
+      }
+      return column;
     }
-    entryUtilization.get(year, key).incrementAndGet();
   }
 
   /**
@@ -570,7 +600,7 @@ public class Payer implements Serializable {
    * @param costToPayer the cost of the current encounter, after the patient's copay.
    */
   public void addCoveredCost(double costToPayer) {
-    this.costsCovered += costToPayer;
+    this.costsCovered.add(costToPayer);
   }
 
   /**
@@ -579,7 +609,7 @@ public class Payer implements Serializable {
    * @param costToPatient the costs that the payer did not cover.
    */
   public void addUncoveredCost(double costToPatient) {
-    this.costsUncovered += costToPatient;
+    this.costsUncovered.add(costToPatient);
   }
 
   /**
@@ -590,7 +620,7 @@ public class Payer implements Serializable {
    * @param qols the Quality of Life Score to be added.
    */
   public void addQols(double qols) {
-    this.totalQOLS += qols;
+    this.totalQOLS.add(qols);
   }
 
   /**
@@ -598,7 +628,7 @@ public class Payer implements Serializable {
    * Consists of monthly premium payments.
    */
   public double getRevenue() {
-    return this.revenue;
+    return this.revenue.sum();
   }
 
   /**
@@ -626,78 +656,70 @@ public class Payer implements Serializable {
    * Returns the number of encounters this payer paid for.
    */
   public int getEncountersCoveredCount() {
-    return entryUtilization.column("covered-"
-        + HealthRecord.ENCOUNTERS).values().stream().mapToInt(ai -> ai.get()).sum();
+    return (int) entryUtilization.total(EntryCategory.ENCOUNTERS.column(true));
   }
 
   /**
    * Returns the number of encounters this payer did not cover for their customers.
    */
   public int getEncountersUncoveredCount() {
-    return entryUtilization.column("uncovered-"
-        + HealthRecord.ENCOUNTERS).values().stream().mapToInt(ai -> ai.get()).sum();
+    return (int) entryUtilization.total(EntryCategory.ENCOUNTERS.column(false));
   }
 
   /**
    * Returns the number of medications this payer paid for.
    */
   public int getMedicationsCoveredCount() {
-    return entryUtilization.column("covered-"
-        + HealthRecord.MEDICATIONS).values().stream().mapToInt(ai -> ai.get()).sum();
+    return (int) entryUtilization.total(EntryCategory.MEDICATIONS.column(true));
   }
 
   /**
    * Returns the number of medications this payer did not cover for their customers.
    */
   public int getMedicationsUncoveredCount() {
-    return entryUtilization.column("uncovered-"
-        + HealthRecord.MEDICATIONS).values().stream().mapToInt(ai -> ai.get()).sum();
+    return (int) entryUtilization.total(EntryCategory.MEDICATIONS.column(false));
   }
 
   /**
    * Returns the number of procedures this payer paid for.
    */
   public int getProceduresCoveredCount() {
-    return entryUtilization.column("covered-"
-        + HealthRecord.PROCEDURES).values().stream().mapToInt(ai -> ai.get()).sum();
+    return (int) entryUtilization.total(EntryCategory.PROCEDURES.column(true));
   }
 
   /**
    * Returns the number of procedures this payer did not cover for their customers.
    */
   public int getProceduresUncoveredCount() {
-    return entryUtilization.column("uncovered-"
-        + HealthRecord.PROCEDURES).values().stream().mapToInt(ai -> ai.get()).sum();
+    return (int) entryUtilization.total(EntryCategory.PROCEDURES.column(false));
   }
 
   /**
    * Returns the number of immunizations this payer paid for.
    */
   public int getImmunizationsCoveredCount() {
-    return entryUtilization.column("covered-"
-        + HealthRecord.IMMUNIZATIONS).values().stream().mapToInt(ai -> ai.get()).sum();
+    return (int) entryUtilization.total(EntryCategory.IMMUNIZATIONS.column(true));
   }
 
   /**
    * Returns the number of immunizations this payer did not cover for their customers.
    */
   public int getImmunizationsUncoveredCount() {
-    return entryUtilization.column("uncovered-"
-        + HealthRecord.IMMUNIZATIONS).values().stream().mapToInt(ai -> ai.get()).sum();
+    return (int) entryUtilization.total(EntryCategory.IMMUNIZATIONS.column(false));
   }
 
   /**
    * Returns the amount of money the payer paid to providers.
    */
   public double getAmountCovered() {
-    return this.costsCovered;
+    return this.costsCovered.sum();
   }
 
   /**
    * Returns the amount of money the payer did not cover.
    */
   public double getAmountUncovered() {
-    return this.costsUncovered;
+    return this.costsUncovered.sum();
   }
 
   /**
@@ -705,7 +727,7 @@ public class Payer implements Serializable {
    */
   public double getQolsAverage() {
     int numYears = this.getNumYearsCovered();
-    return this.totalQOLS / numYears;
+    return this.totalQOLS.sum() / numYears;
   }
 
   @Override
@@ -725,14 +747,14 @@ public class Payer implements Serializable {
     hash = 53 * hash + Objects.hashCode(this.ownership);
     hash = 53 * hash + Objects.hashCode(this.statesCovered);
     hash = 53 * hash + Objects.hashCode(this.servicesCovered);
-    hash = 53 * hash + (int) (Double.doubleToLongBits(this.revenue)
-            ^ (Double.doubleToLongBits(this.revenue) >>> 32));
-    hash = 53 * hash + (int) (Double.doubleToLongBits(this.costsCovered)
-            ^ (Double.doubleToLongBits(this.costsCovered) >>> 32));
-    hash = 53 * hash + (int) (Double.doubleToLongBits(this.costsUncovered)
-            ^ (Double.doubleToLongBits(this.costsUncovered) >>> 32));
-    hash = 53 * hash + (int) (Double.doubleToLongBits(this.totalQOLS)
-            ^ (Double.doubleToLongBits(this.totalQOLS) >>> 32));
+    hash = 53 * hash + (int) (Double.doubleToLongBits(this.revenue.sum())
+            ^ (Double.doubleToLongBits(this.revenue.sum()) >>> 32));
+    hash = 53 * hash + (int) (Double.doubleToLongBits(this.costsCovered.sum())
+            ^ (Double.doubleToLongBits(this.costsCovered.sum()) >>> 32));
+    hash = 53 * hash + (int) (Double.doubleToLongBits(this.costsUncovered.sum())
+            ^ (Double.doubleToLongBits(this.costsUncovered.sum()) >>> 32));
+    hash = 53 * hash + (int) (Double.doubleToLongBits(this.totalQOLS.sum())
+            ^ (Double.doubleToLongBits(this.totalQOLS.sum()) >>> 32));
     return hash;
   }
 
@@ -764,20 +786,20 @@ public class Payer implements Serializable {
             != Double.doubleToLongBits(other.monthlyPremium)) {
       return false;
     }
-    if (Double.doubleToLongBits(this.revenue)
-            != Double.doubleToLongBits(other.revenue)) {
+    if (Double.doubleToLongBits(this.revenue.sum())
+            != Double.doubleToLongBits(other.revenue.sum())) {
       return false;
     }
-    if (Double.doubleToLongBits(this.costsCovered)
-            != Double.doubleToLongBits(other.costsCovered)) {
+    if (Double.doubleToLongBits(this.costsCovered.sum())
+            != Double.doubleToLongBits(other.costsCovered.sum())) {
       return false;
     }
-    if (Double.doubleToLongBits(this.costsUncovered)
-            != Double.doubleToLongBits(other.costsUncovered)) {
+    if (Double.doubleToLongBits(this.costsUncovered.sum())
+            != Double.doubleToLongBits(other.costsUncovered.sum())) {
       return false;
     }
-    if (Double.doubleToLongBits(this.totalQOLS)
-            != Double.doubleToLongBits(other.totalQOLS)) {
+    if (Double.doubleToLongBits(this.totalQOLS.sum())
+            != Double.doubleToLongBits(other.totalQOLS.sum())) {
       return false;
     }
     if (!Objects.equals(this.name, other.name)) {
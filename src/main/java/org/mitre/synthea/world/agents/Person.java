@@ -11,16 +11,22 @@ import java.time.ZoneId;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
+import org.apache.commons.lang3.SerializationUtils;
 import org.apache.commons.math3.random.JDKRandomGenerator;
 import org.mitre.synthea.engine.ExpressedConditionRecord;
 import org.mitre.synthea.engine.ExpressedSymptom;
 import org.mitre.synthea.engine.Module;
 import org.mitre.synthea.engine.State;
+import org.mitre.synthea.engine.StateHistory;
+import org.mitre.synthea.engine.SymptomSummary;
 import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.helpers.ConstantValueGenerator;
 import org.mitre.synthea.helpers.Utilities;
@@ -103,6 +109,8 @@ public class Person implements Serializable, QuadTreeElement {
   /** Data structure for storing symptoms faced by a person.
    * Adding the Long keyset to keep track of the time a symptom is set. */
   Map<String, ExpressedSymptom> symptoms;
+  /** Running totals of the symptoms. Created again from the symptoms when first used. */
+  private transient SymptomSummary symptomSummary;
   /** Data structure for storing onset conditions (init_time, end_time).*/
   public ExpressedConditionRecord onsetConditionRecord;
   public Map<String, HealthRecord.Medication> chronicMedications;
@@ -134,6 +142,8 @@ public class Person implements Serializable, QuadTreeElement {
   private Map<Integer, Double> annualHealthExpenses;
   /* Annual Health Coverage. */
   private Map<Integer, Double> annualHealthCoverage;
+  /** Calculates ages from the birthdate. Replaced whenever the birthdate changes. */
+  private transient AgeCalculator ageCalculator;
 
   /**
    * Person constructor.
@@ -167,6 +177,61 @@ public class Person implements Serializable, QuadTreeElement {
     annualHealthCoverage = new HashMap<Integer, Double>();
   }
 
+  /**
+   * Copy constructor, for export views. See {@link #exportView()}.
+   */
+  private Person(Person original) {
+    seed = original.seed;
+    populationSeed = original.populationSeed;
+    lastUpdated = original.lastUpdated;
+    currentModules = original.currentModules;
+    attributes = new ConcurrentHashMap<String, Object>(original.attributes);
+    vitalSigns = original.vitalSigns;
+    symptoms = original.symptoms;
+    symptomSummary = original.getSymptomSummary();
+    onsetConditionRecord = original.onsetConditionRecord;
+    chronicMedications = original.chronicMedications;
+    lossOfCareEnabled = original.lossOfCareEnabled;
+    hasMultipleRecords = original.hasMultipleRecords;
+    history = original.history;
+    payerHistory = original.payerHistory;
+    payerOwnerHistory = original.payerOwnerHistory;
+    annualHealthExpenses = original.annualHealthExpenses;
+    annualHealthCoverage = original.annualHealthCoverage;
+    // the copies of the records determine the costs they read from this copy of the generator
+    random = SerializationUtils.clone(original.random);
+    Map<HealthRecord, HealthRecord> copies = new IdentityHashMap<HealthRecord, HealthRecord>();
+    Function<HealthRecord, HealthRecord> copy = r -> (r == null) ? null
+        : copies.computeIfAbsent(r, c -> c.copy(this));
+    defaultRecord = copy.apply(original.defaultRecord);
+    lossOfCareRecord = copy.apply(original.lossOfCareRecord);
+    if (original.records != null) {
+      records = new LinkedHashMap<String, HealthRecord>();
+      original.records.forEach((key, value) -> records.put(key, copy.apply(value)));
+    }
+    record = copy.apply(original.record);
+  }
+
+  /**
+   * Create a view of this person for export. The view shares the state of this person, except
+   * for its health records, which are copied so that they can be filtered and modified without
+   * changing this person, its attributes, which are copied so that exporters can add to them,
+   * and its random number generator, which is copied in its current state so that exporters
+   * running at the same time do not share one.
+   *
+   * <p>Only the map of attributes is copied, not the values in it. Exporters may add, replace
+   * and remove attributes of the view, but changing an object held in an attribute, such as a
+   * list, changes it for this person as well.
+   *
+   * <p>Entry costs that were not determined during the simulation are determined from the
+   * generator of the view when they are first read, in the same order as they would be from
+   * the generator of this person, which is left unchanged.
+   * @return the view.
+   */
+  public Person exportView() {
+    return new Person(this);
+  }
+
   /**
    * Retuns a random double.
    */
@@ -274,6 +339,22 @@ public class Person implements Serializable, QuadTreeElement {
     return age;
   }
 
+  /**
+   * Get the age calculator for this person's current birthdate.
+   * @return the age calculator, or null if this person has no birthdate
+   */
+  private AgeCalculator ageCalculator() {
+    Object birthdate = attributes.get(BIRTHDATE);
+    if (birthdate == null) {
+      return null;
+    }
+    long time = (long) birthdate;
+    if (ageCalculator == null || ageCalculator.birthdate != time) {
+      ageCalculator = new AgeCalculator(time, timeZone);
+    }
+    return ageCalculator;
+  }
+
   /**
    * Returns a person's age in decimal years. (ex. 7.5 ~ 7 years 6 months old)
    *
@@ -281,16 +362,8 @@ public class Person implements Serializable, QuadTreeElement {
    * @return decimal age in years
    */
   public double ageInDecimalYears(long time) {
-    Period agePeriod = age(time);
-    
-    double years = agePeriod.getYears() + agePeriod.getMonths() / 12.0
-        + agePeriod.getDays() / 365.2425;
-    
-    if (years < 0) {
-      years = 0;
-    }
-    
-    return years;
+    AgeCalculator calculator = ageCalculator();
+    return (calculator == null) ? 0 : calculator.decimalYears(time);
   }
 
   /**
@@ -301,11 +374,8 @@ public class Person implements Serializable, QuadTreeElement {
    *         before they were born.
    */
   public int ageInMonths(long time) {
-    int months = (int) age(time).toTotalMonths();
-    if (months < 0) {
-      months = 0;
-    }
-    return months;
+    AgeCalculator calculator = ageCalculator();
+    return (calculator == null) ? 0 : calculator.months(time);
   }
 
   /**
@@ -316,11 +386,8 @@ public class Person implements Serializable, QuadTreeElement {
    *         before they were born.
    */
   public int ageInYears(long time) {
-    int years = age(time).getYears();
-    if (years < 0) {
-      years = 0;
-    }
-    return years;
+    AgeCalculator calculator = ageCalculator();
+    return (calculator == null) ? 0 : calculator.years(time);
   }
 
   /**
@@ -339,6 +406,16 @@ public class Person implements Serializable, QuadTreeElement {
     return symptoms;
   }
   
+  /**
+   * Get the running totals of the expressed symptoms.
+   */
+  public SymptomSummary getSymptomSummary() {
+    if (symptomSummary == null) {
+      symptomSummary = new SymptomSummary(symptoms);
+    }
+    return symptomSummary;
+  }
+  
   /**
   * Get the onsetonditionRecord.
   */
@@ -351,10 +428,7 @@ public class Person implements Serializable, QuadTreeElement {
    */
   public void setSymptom(String module, String cause, String type, 
       long time, int value, Boolean addressed) {
-    if (!symptoms.containsKey(type)) {
-      symptoms.put(type, new ExpressedSymptom(type));
-    }
-    ExpressedSymptom expressedSymptom = symptoms.get(type);
+    ExpressedSymptom expressedSymptom = getSymptomSummary().getOrCreate(type);
     expressedSymptom.onSet(module, cause, time, value, addressed);
   }
   
@@ -403,22 +477,10 @@ public class Person implements Serializable, QuadTreeElement {
    * Mark the largest valued symptom as addressed.
    */
   public void addressLargestSymptom() {
-    String highestType = "";
-    String highestCause = "";
-    int maxValue = 0;
-    for (String type : symptoms.keySet()) {
-      ExpressedSymptom expressedSymptom = symptoms.get(type);
-      String cause = expressedSymptom.getSourceWithHighValue();
-      if (cause != null) {
-        int value = expressedSymptom.getValueFromSource(cause);
-        if (value > maxValue) {
-          maxValue = value;
-          highestCause = cause;
-          highestType = type;                
-        }
-      }
+    ExpressedSymptom largest = getSymptomSummary().getLargest();
+    if (largest != null) {
+      largest.addressSource(largest.getSourceWithHighValue());
     }
-    symptoms.get(highestType).addressSource(highestCause);
   }
 
   /**
@@ -498,11 +560,7 @@ public class Person implements Serializable, QuadTreeElement {
    *         care-seeking behaviors.
    */
   public int symptomTotal() {
-    int total = 0;
-    for (String type : symptoms.keySet()) {
-      total += getSymptom(type);
-    }
-    return total;
+    return getSymptomSummary().getTotal();
   }
 
   public boolean hadPriorState(String name) {
@@ -516,6 +574,9 @@ public class Person implements Serializable, QuadTreeElement {
     if (history == null) {
       return false;
     }
+    if (history instanceof StateHistory) {
+      return ((StateHistory) history).hadPriorState(name, since, within);
+    }
     for (State state : history) {
       if (within != null && state.exited != null && state.exited <= within) {
         return false;
@@ -1,6 +1,5 @@
 package org.mitre.synthea.world.agents;
 
-import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.Table;
 import com.google.gson.internal.LinkedTreeMap;
 
@@ -19,6 +18,7 @@ import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
 
 import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.helpers.SimpleCSV;
@@ -32,7 +32,6 @@ import org.mitre.synthea.world.concepts.ClinicianSpecialty;
 import org.mitre.synthea.world.concepts.HealthRecord.EncounterType;
 import org.mitre.synthea.world.geography.Demographics;
 import org.mitre.synthea.world.geography.Location;
-import org.mitre.synthea.world.geography.quadtree.QuadTree;
 import org.mitre.synthea.world.geography.quadtree.QuadTreeElement;
 
 public class Provider implements QuadTreeElement, Serializable {
@@ -42,6 +41,20 @@ public class Provider implements QuadTreeElement, Serializable {
   public static final String LABS = "labs";
   public static final String PRESCRIPTIONS = "prescriptions";
 
+  // utilization columns, with the encounter columns indexed by EncounterType ordinal
+  private static final UtilizationCounters.Columns COLUMNS = new UtilizationCounters.Columns();
+  private static final int ENCOUNTERS_COLUMN = COLUMNS.id(ENCOUNTERS);
+  private static final int PROCEDURES_COLUMN = COLUMNS.id(PROCEDURES);
+  private static final int LABS_COLUMN = COLUMNS.id(LABS);
+  private static final int PRESCRIPTIONS_COLUMN = COLUMNS.id(PRESCRIPTIONS);
+  private static final int[] ENCOUNTER_TYPE_COLUMNS = new int[EncounterType.values().length];
+
+  static {
+    for (EncounterType type : EncounterType.values()) {
+      ENCOUNTER_TYPE_COLUMNS[type.ordinal()] = COLUMNS.id(ENCOUNTERS + "-" + type);
+    }
+  }
+
   // Provider Selection Behavior algorithm choices:
   public static final String NEAREST = "nearest";
   public static final String QUALITY = "quality";
@@ -50,7 +63,7 @@ public class Provider implements QuadTreeElement, Serializable {
 
   // ArrayList of all providers imported
   private static ArrayList<Provider> providerList = new ArrayList<Provider>();
-  private static QuadTree providerMap = generateQuadTree();
+  private static volatile ProviderIndex providerIndex;
   private static Set<String> statesLoaded = new HashSet<String>();
   private static int loaded = 0;
 
@@ -73,12 +86,11 @@ public class Provider implements QuadTreeElement, Serializable {
   public String type;
   public String ownership;
   public int quality;
-  private double revenue;
+  private DoubleAdder revenue;
   private Point2D.Double coordinates;
   public ArrayList<EncounterType> servicesProvided;
   public Map<String, ArrayList<Clinician>> clinicianMap;
-  // row: year, column: type, value: count
-  private transient Table<Integer, String, AtomicInteger> utilization;
+  private transient UtilizationCounters utilization;
 
   /**
    * Java Serialization support for the utilization field.
@@ -88,8 +100,9 @@ public class Provider implements QuadTreeElement, Serializable {
     oos.defaultWriteObject();
     ArrayList<Payer.UtilizationBean> entryUtilizationElements = null;
     if (utilization != null) {
-      entryUtilizationElements = new ArrayList<>(utilization.size());
-      for (Table.Cell<Integer, String, AtomicInteger> cell: utilization.cellSet()) {
+      Table<Integer, String, AtomicInteger> table = utilization.toTable();
+      entryUtilizationElements = new ArrayList<>(table.size());
+      for (Table.Cell<Integer, String, AtomicInteger> cell: table.cellSet()) {
         entryUtilizationElements.add(
                 new Payer.UtilizationBean(cell.getRowKey(), cell.getColumnKey(), cell.getValue()));
       }
@@ -106,9 +119,9 @@ public class Provider implements QuadTreeElement, Serializable {
     ArrayList<Payer.UtilizationBean> entryUtilizationElements = 
             (ArrayList<Payer.UtilizationBean>)ois.readObject();
     if (entryUtilizationElements != null) {
-      this.utilization = HashBasedTable.create();
+      this.utilization = new UtilizationCounters(COLUMNS);
       for (Payer.UtilizationBean u: entryUtilizationElements) {
-        this.utilization.put(u.year, u.type, u.count);
+        this.utilization.add(u.year, COLUMNS.id(u.type), u.count.get());
       }
     }
   }
@@ -119,8 +132,8 @@ public class Provider implements QuadTreeElement, Serializable {
   public Provider() {
     uuid = UUID.randomUUID().toString();
     attributes = new LinkedTreeMap<>();
-    revenue = 0.0;
-    utilization = HashBasedTable.create();
+    revenue = new DoubleAdder();
+    utilization = new UtilizationCounters(COLUMNS);
     servicesProvided = new ArrayList<EncounterType>();
     clinicianMap = new HashMap<String, ArrayList<Clinician>>();
     coordinates = new Point2D.Double();
@@ -159,34 +172,48 @@ public class Provider implements QuadTreeElement, Serializable {
   }
 
   public void incrementEncounters(EncounterType service, int year) {
-    increment(year, ENCOUNTERS);
-    increment(year, ENCOUNTERS + "-" + service);
+    increment(year, ENCOUNTERS_COLUMN);
+    increment(year, ENCOUNTER_TYPE_COLUMNS[service.ordinal()]);
   }
 
   public void incrementProcedures(int year) {
-    increment(year, PROCEDURES);
+    increment(year, PROCEDURES_COLUMN);
   }
 
   public void incrementLabs(int year) {
-    increment(year, LABS);
+    increment(year, LABS_COLUMN);
   }
 
   public void incrementPrescriptions(int year) {
-    increment(year, PRESCRIPTIONS);
+    increment(year, PRESCRIPTIONS_COLUMN);
   }
 
-  private synchronized void increment(Integer year, String key) {
+  private void increment(int year, int column) {
     if (utilization != null) { // TODO remove once utilization stats are made serializable
-      if (!utilization.contains(year, key)) {
-        utilization.put(year, key, new AtomicInteger(0));
-      }
-
-      utilization.get(year, key).incrementAndGet();
+      utilization.increment(year, column);
     }
   }
 
+  /**
+   * Get a snapshot of the utilization of this provider. The snapshot does not change as more
+   * utilization is counted.
+   * @return row: year, column: type, value: count
+   */
   public Table<Integer, String, AtomicInteger> getUtilization() {
-    return utilization;
+    if (utilization == null) {
+      return null;
+    }
+    return utilization.toTable();
+  }
+
+  /**
+   * Get the total number of encounters at this provider, over all years.
+   */
+  public int getEncounterCount() {
+    if (utilization == null) {
+      return 0;
+    }
+    return (int) utilization.total(ENCOUNTERS_COLUMN);
   }
 
   /**
@@ -208,29 +235,45 @@ public class Provider implements QuadTreeElement, Serializable {
    * @return whether or not the person can receive care by this provider
    */
   public boolean accepts(Person person, long time) {
+    return accepts(person.attributes.containsKey("veteran"));
+  }
+
+  /**
+   * Will this provider accept veterans, or non-veterans, as patients?.
+   * @param veteran Whether the patient is a veteran
+   * @return whether or not the patient can receive care by this provider
+   */
+  boolean accepts(boolean veteran) {
     // for now assume every provider accepts every patient
     // UNLESS it's a VA facility and the person is not a veteran
     // eventually we may want to expand this (ex. capacity?)
-    if ("VA Facility".equals(this.type) && !person.attributes.containsKey("veteran")) {
+    if (isVaFacility() && !veteran) {
       return false;
     }
     return true;
   }
 
+  /**
+   * Is this provider a VA facility?.
+   */
+  public boolean isVaFacility() {
+    return "VA Facility".equals(this.type);
+  }
+
   /**
    * Adds the given amount to the provider's total revenue.
    * 
    * @param costOfCare the cost of the care to be added to revenue.
    */
   public void addRevenue(double costOfCare) {
-    this.revenue += costOfCare;
+    this.revenue.add(costOfCare);
   }
 
   /**
    * Returns the total revenue of this provider.
    */
   public double getRevenue() {
-    return this.revenue;
+    return this.revenue.sum();
   }
 
   /**
@@ -241,34 +284,26 @@ public class Provider implements QuadTreeElement, Serializable {
    * @return Service provider or null if none is available.
    */
   public static Provider findService(Person person, EncounterType service, long time) {
-    double maxDistance = MAX_PROVIDER_SEARCH_DISTANCE;
-    double degrees = 0.125;
-    List<Provider> options = null;
-    Provider provider = null;
-    while (degrees <= maxDistance) {
-      options = findProvidersByLocation(person, degrees);
-      provider = providerFinder.find(options, person, service, time);
-      if (provider != null) {
-        return provider;
-      }
-      degrees *= 2.0;
-    }
-    return null;
+    return providerFinder.find(getProviderIndex(), person, service, time);
   }
 
   /**
-   * Find a service around a given point.
-   * @param person The patient who requires the service.
-   * @param distance in degrees
-   * @return List of providers within the given distance.
+   * Get the spatial index of the loaded providers, building it if providers have been loaded
+   * since it was last built.
+   * @return the provider index
    */
-  private static List<Provider> findProvidersByLocation(Person person, double distance) {
-    List<QuadTreeElement> results = providerMap.query(person, distance);
-    List<Provider> providers = new ArrayList<Provider>();
-    for (QuadTreeElement item : results) {
-      providers.add((Provider) item);
+  public static ProviderIndex getProviderIndex() {
+    ProviderIndex index = providerIndex;
+    if (index == null) {
+      synchronized (Provider.class) {
+        index = providerIndex;
+        if (index == null) {
+          index = new ProviderIndex(providerList, MAX_PROVIDER_SEARCH_DISTANCE);
+          providerIndex = index;
+        }
+      }
     }
-    return providers;
+    return index;
   }
 
   /**
@@ -277,20 +312,11 @@ public class Provider implements QuadTreeElement, Serializable {
   public static void clear() {
     providerList.clear();
     statesLoaded.clear();
-    providerMap = generateQuadTree();
+    providerIndex = null;
     providerFinder = buildProviderFinder();
     loaded = 0;
   }
 
-  /**
-   * Generate a quad tree with sufficient capacity and depth to load
-   * the biggest states.
-   * @return QuadTree.
-   */
-  private static QuadTree generateQuadTree() {
-    return new QuadTree();
-  }
-  
   /**
    * Load into cache the list of providers for a state.
    * @param location the state being loaded.
@@ -398,13 +424,8 @@ public class Provider implements QuadTreeElement, Serializable {
         }
 
         providerList.add(parsed);
-        boolean inserted = providerMap.insert(parsed);
-        if (!inserted) {
-          throw new RuntimeException("Provider QuadTree Full! Dropping # " + loaded + ": "
-              + parsed.name + " @ " + parsed.city);
-        } else {
-          loaded++;
-        }
+        providerIndex = null;
+        loaded++;
       }
     }
   }
@@ -0,0 +1,475 @@
+package org.mitre.synthea.world.agents;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.world.concepts.HealthRecord.EncounterType;
+
+/**
+ * Spatial index of the loaded providers, used to find the providers near a person. The providers
+ * are partitioned by the service they provide and by whether veterans or non-veterans can use
+ * them, and each partition is kept in a KD-tree, so queries only visit providers that the person
+ * could use and do not have to filter the rest out.
+ *
+ * <p>Queries return providers in the order in which they were loaded, so that the providers
+ * picked with the person's random number generator do not depend on how the trees are built.
+ * Distances are Euclidean distances in degrees, as with
+ * {@link org.mitre.synthea.world.geography.quadtree.QuadTreeElement#distance}.
+ *
+ * <p>People who live near each other search for the same providers, so the results of searches
+ * are cached by square cells of latitude and longitude (see
+ * <code>generate.providers.cache.cell_size</code>). Each cell caches a short list of candidates
+ * that is certain to contain the answer for any point in the cell, and each search only has to
+ * pick from the candidates, so the answers are the same as without the cache.
+ */
+public class ProviderIndex {
+  /** The first distance to search, in degrees; each later search doubles the distance. */
+  public static final double INITIAL_SEARCH_DISTANCE = 0.125;
+  /** Slack in the pruning of subtrees, so that rounding can not lose a provider at the edge. */
+  private static final double EPSILON = 1e-9;
+  /** Distance in the cache key of the candidates of a nearest search. */
+  private static final double NEAREST = -1.0;
+
+  /** Who a partition of the providers is for. */
+  private enum Group {
+    /** All providers that accept veterans. */
+    VETERANS,
+    /** All providers that accept non-veterans. */
+    NON_VETERANS,
+    /** Only VA facilities. */
+    VA_FACILITIES
+  }
+
+  private final List<Provider> providers;
+  private final double maxDistance;
+  /** The tree of each partition, indexed by service (or no service) and group. */
+  private final AtomicReferenceArray<KdTree> trees;
+  /** The width and height of a cell, in degrees. */
+  private final double cellSize;
+  /** The largest distance from any point of a cell to its center. */
+  private final double cellRadius;
+  /** Candidates of each partition and cell, or null if nothing is cached. */
+  private final Cache<CellKey, Candidates> candidates;
+
+  /**
+   * Create an index of the given providers, with the cache configured by
+   * <code>generate.providers.cache.size</code> and <code>generate.providers.cache.cell_size</code>.
+   * The trees for each partition are built the first time that they are queried.
+   * @param providers the providers, in the order in which they were loaded
+   * @param maxDistance the largest distance to search, in degrees
+   */
+  public ProviderIndex(List<Provider> providers, double maxDistance) {
+    this(providers, maxDistance,
+        Long.parseLong(Config.get("generate.providers.cache.size", "10000")),
+        Double.parseDouble(Config.get("generate.providers.cache.cell_size", "0.05")));
+  }
+
+  /**
+   * Create an index of the given providers. The trees for each partition are built the first
+   * time that they are queried.
+   * @param providers the providers, in the order in which they were loaded
+   * @param maxDistance the largest distance to search, in degrees
+   * @param cacheSize the maximum number of cells to cache candidates for, or 0 for no cache
+   * @param cellSize the width and height of a cell, in degrees
+   */
+  public ProviderIndex(List<Provider> providers, double maxDistance, long cacheSize,
+      double cellSize) {
+    this.providers = new ArrayList<Provider>(providers);
+    this.maxDistance = maxDistance;
+    this.trees = new AtomicReferenceArray<KdTree>(
+        (EncounterType.values().length + 1) * Group.values().length);
+    this.cellSize = cellSize;
+    this.cellRadius = cellSize * Math.sqrt(0.5);
+    if (cacheSize > 0 && cellSize > 0) {
+      this.candidates = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+    } else {
+      this.candidates = null;
+    }
+  }
+
+  /**
+   * Get the largest distance to search, in degrees.
+   */
+  public double getMaxDistance() {
+    return maxDistance;
+  }
+
+  /**
+   * Find the providers that are nearest to the person, within the largest of the doubling search
+   * distances that does not exceed the maximum distance.
+   * @param person The patient who requires the service.
+   * @param service The service required, or null for any service.
+   * @param vaOnly Whether only VA facilities should be considered.
+   * @return The providers at the nearest distance, usually only one; empty if there are none.
+   */
+  public List<Provider> nearest(Person person, EncounterType service, boolean vaOnly) {
+    double limit = INITIAL_SEARCH_DISTANCE;
+    while (limit * 2.0 <= maxDistance) {
+      limit *= 2.0;
+    }
+    if (limit > maxDistance) {
+      return Collections.emptyList();
+    }
+    Group group = vaOnly ? Group.VA_FACILITIES : group(person);
+    double x = person.getX();
+    double y = person.getY();
+    if (candidates == null) {
+      return tree(service, group).nearest(x, y, limit);
+    }
+    return candidates(service, group, x, y, NEAREST, limit).nearest(x, y, limit);
+  }
+
+  /**
+   * Find the providers within the given distance of the person, that the person may use.
+   * @param person The patient who requires the service.
+   * @param service The service required, or null for any service.
+   * @param distance The distance in degrees.
+   * @return The providers within the distance, in the order in which they were loaded.
+   */
+  public List<Provider> within(Person person, EncounterType service, double distance) {
+    double x = person.getX();
+    double y = person.getY();
+    if (candidates == null) {
+      return tree(service, group(person)).within(x, y, distance);
+    }
+    return candidates(service, group(person), x, y, distance, distance).within(x, y, distance);
+  }
+
+  /**
+   * Get the candidates of the cell containing the given point, from the cache if possible.
+   * @param distance the distance of a within search, or NEAREST for a nearest search
+   * @param limit the distance that the providers must be within
+   */
+  private Candidates candidates(EncounterType service, Group group, double x, double y,
+      double distance, double limit) {
+    int partition = partitionIndex(service, group);
+    long cellX = (long) Math.floor(x / cellSize);
+    long cellY = (long) Math.floor(y / cellSize);
+    CellKey key = new CellKey(partition, cellX, cellY, distance);
+    Candidates found = candidates.getIfPresent(key);
+    if (found == null) {
+      KdTree tree = tree(service, group);
+      double centerX = (cellX + 0.5) * cellSize;
+      double centerY = (cellY + 0.5) * cellSize;
+      // any provider within the limit of a point in the cell is within this distance of the
+      // center, and so is the nearest provider of any point in the cell: it is no further
+      // from the point than the nearest provider to the center, which is at most the cell
+      // radius further from the point than from the center
+      double radius = limit + cellRadius;
+      if (distance == NEAREST) {
+        radius = Math.min(radius, tree.nearestDistance(centerX, centerY, limit) + 2 * cellRadius);
+      }
+      found = new Candidates(tree.within(centerX, centerY, radius + EPSILON));
+      // racing threads may compute the same candidates, which is harmless
+      candidates.put(key, found);
+    }
+    return found;
+  }
+
+  private static Group group(Person person) {
+    return person.attributes.containsKey("veteran") ? Group.VETERANS : Group.NON_VETERANS;
+  }
+
+  private static int partitionIndex(EncounterType service, Group group) {
+    int serviceIndex = (service == null) ? EncounterType.values().length : service.ordinal();
+    return serviceIndex * Group.values().length + group.ordinal();
+  }
+
+  private KdTree tree(EncounterType service, Group group) {
+    int index = partitionIndex(service, group);
+    KdTree tree = trees.get(index);
+    if (tree == null) {
+      // building a tree twice is harmless, so racing threads may both build it
+      tree = new KdTree(partition(service, group));
+      if (!trees.compareAndSet(index, null, tree)) {
+        tree = trees.get(index);
+      }
+    }
+    return tree;
+  }
+
+  private List<Provider> partition(EncounterType service, Group group) {
+    List<Provider> partition = new ArrayList<Provider>();
+    for (Provider provider : providers) {
+      if (service != null && !provider.hasService(service)) {
+        continue;
+      }
+      boolean eligible;
+      switch (group) {
+        case VA_FACILITIES:
+          eligible = provider.isVaFacility();
+          break;
+        case VETERANS:
+          eligible = provider.accepts(true);
+          break;
+        default:
+          eligible = provider.accepts(false);
+          break;
+      }
+      if (eligible) {
+        partition.add(provider);
+      }
+    }
+    return partition;
+  }
+
+  /**
+   * A KD-tree packed into arrays. The range [low, high) is a subtree whose root is at the
+   * middle of the range, with the providers before it on the lower side of the root on the
+   * split axis, and the providers after it on the upper side. The split axis alternates
+   * between longitude (x) and latitude (y) with the depth.
+   */
+  private static final class KdTree {
+    private final Provider[] providers;
+    private final double[] xs;
+    private final double[] ys;
+    /** The position of each provider in the list the tree was built from. */
+    private final int[] order;
+    /** The index in the tree of each position in the list the tree was built from. */
+    private final int[] index;
+
+    private KdTree(List<Provider> partition) {
+      int size = partition.size();
+      Integer[] positions = new Integer[size];
+      for (int i = 0; i < size; i++) {
+        positions[i] = i;
+      }
+      build(partition, positions, 0, size, 0);
+      providers = new Provider[size];
+      xs = new double[size];
+      ys = new double[size];
+      order = new int[size];
+      index = new int[size];
+      for (int i = 0; i < size; i++) {
+        Provider provider = partition.get(positions[i]);
+        providers[i] = provider;
+        xs[i] = provider.getX();
+        ys[i] = provider.getY();
+        order[i] = positions[i];
+        index[positions[i]] = i;
+      }
+    }
+
+    private static void build(List<Provider> partition, Integer[] positions,
+        int low, int high, int depth) {
+      if (high - low <= 1) {
+        return;
+      }
+      Comparator<Integer> axis = (depth % 2 == 0)
+          ? Comparator.comparingDouble((Integer i) -> partition.get(i).getX())
+          : Comparator.comparingDouble((Integer i) -> partition.get(i).getY());
+      Arrays.sort(positions, low, high, axis.thenComparing(Comparator.naturalOrder()));
+      int middle = (low + high) >>> 1;
+      build(partition, positions, low, middle, depth + 1);
+      build(partition, positions, middle + 1, high, depth + 1);
+    }
+
+    private double distance(int i, double x, double y) {
+      double dx = xs[i] - x;
+      double dy = ys[i] - y;
+      return Math.sqrt((dx * dx) + (dy * dy));
+    }
+
+    private List<Provider> nearest(double x, double y, double limit) {
+      Nearest search = new Nearest(limit);
+      nearest(0, providers.length, 0, x, y, search);
+      return search.count == 0 ? Collections.emptyList() : sorted(search.found, search.count);
+    }
+
+    private void nearest(int low, int high, int depth, double x, double y, Nearest search) {
+      if (low >= high) {
+        return;
+      }
+      int middle = (low + high) >>> 1;
+      search.offer(middle, distance(middle, x, y));
+      double diff = (depth % 2 == 0) ? x - xs[middle] : y - ys[middle];
+      if (diff < 0) {
+        nearest(low, middle, depth + 1, x, y, search);
+        if (-diff <= search.best + EPSILON) {
+          nearest(middle + 1, high, depth + 1, x, y, search);
+        }
+      } else {
+        nearest(middle + 1, high, depth + 1, x, y, search);
+        if (diff <= search.best + EPSILON) {
+          nearest(low, middle, depth + 1, x, y, search);
+        }
+      }
+    }
+
+    /**
+     * Get the distance of the nearest provider, or infinity if there is none within the limit.
+     */
+    private double nearestDistance(double x, double y, double limit) {
+      Nearest search = new Nearest(limit);
+      nearest(0, providers.length, 0, x, y, search);
+      return search.count == 0 ? Double.POSITIVE_INFINITY : search.best;
+    }
+
+    private List<Provider> within(double x, double y, double distance) {
+      Nearest found = new Nearest(distance);
+      within(0, providers.length, 0, x, y, found);
+      return found.count == 0 ? Collections.emptyList() : sorted(found.found, found.count);
+    }
+
+    private void within(int low, int high, int depth, double x, double y, Nearest found) {
+      if (low >= high) {
+        return;
+      }
+      int middle = (low + high) >>> 1;
+      if (distance(middle, x, y) <= found.best) {
+        found.add(middle);
+      }
+      double diff = (depth % 2 == 0) ? x - xs[middle] : y - ys[middle];
+      if (diff <= found.best + EPSILON) {
+        within(low, middle, depth + 1, x, y, found);
+      }
+      if (-diff <= found.best + EPSILON) {
+        within(middle + 1, high, depth + 1, x, y, found);
+      }
+    }
+
+    private List<Provider> sorted(int[] found, int count) {
+      int[] positions = new int[count];
+      for (int i = 0; i < count; i++) {
+        positions[i] = order[found[i]];
+      }
+      Arrays.sort(positions);
+      List<Provider> result = new ArrayList<Provider>(count);
+      for (int position : positions) {
+        result.add(providers[index[position]]);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * The providers that may be the answer to a search from any point in a cell, in the order in
+   * which they were loaded.
+   */
+  private static final class Candidates {
+    private final Provider[] providers;
+    private final double[] xs;
+    private final double[] ys;
+
+    private Candidates(List<Provider> providers) {
+      this.providers = providers.toArray(new Provider[0]);
+      this.xs = new double[this.providers.length];
+      this.ys = new double[this.providers.length];
+      for (int i = 0; i < this.providers.length; i++) {
+        xs[i] = this.providers[i].getX();
+        ys[i] = this.providers[i].getY();
+      }
+    }
+
+    private double distance(int i, double x, double y) {
+      double dx = xs[i] - x;
+      double dy = ys[i] - y;
+      return Math.sqrt((dx * dx) + (dy * dy));
+    }
+
+    private List<Provider> nearest(double x, double y, double limit) {
+      Nearest search = new Nearest(limit);
+      for (int i = 0; i < providers.length; i++) {
+        search.offer(i, distance(i, x, y));
+      }
+      return collect(search);
+    }
+
+    private List<Provider> within(double x, double y, double distance) {
+      Nearest found = new Nearest(distance);
+      for (int i = 0; i < providers.length; i++) {
+        if (distance(i, x, y) <= distance) {
+          found.add(i);
+        }
+      }
+      return collect(found);
+    }
+
+    private List<Provider> collect(Nearest search) {
+      if (search.count == 0) {
+        return Collections.emptyList();
+      }
+      List<Provider> result = new ArrayList<Provider>(search.count);
+      for (int i = 0; i < search.count; i++) {
+        result.add(providers[search.found[i]]);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Cache key of the candidates of a partition and cell, for a search distance.
+   */
+  private static final class CellKey {
+    private final int partition;
+    private final long cellX;
+    private final long cellY;
+    private final double distance;
+
+    private CellKey(int partition, long cellX, long cellY, double distance) {
+      this.partition = partition;
+      this.cellX = cellX;
+      this.cellY = cellY;
+      this.distance = distance;
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = partition;
+      hash = 31 * hash + Long.hashCode(cellX);
+      hash = 31 * hash + Long.hashCode(cellY);
+      hash = 31 * hash + Double.hashCode(distance);
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof CellKey)) {
+        return false;
+      }
+      CellKey other = (CellKey) obj;
+      return partition == other.partition && cellX == other.cellX && cellY == other.cellY
+          && distance == other.distance;
+    }
+  }
+
+  /**
+   * The indexes of the providers found by a search, and the distance that they must be within.
+   * For nearest searches the distance shrinks as nearer providers are found.
+   */
+  private static final class Nearest {
+    private double best;
+    private int[] found = new int[4];
+    private int count;
+
+    private Nearest(double best) {
+      this.best = best;
+    }
+
+    private void offer(int index, double distance) {
+      if (distance > best) {
+        return;
+      }
+      if (distance < best) {
+        best = distance;
+        count = 0;
+      }
+      add(index);
+    }
+
+    private void add(int index) {
+      if (count == found.length) {
+        found = Arrays.copyOf(found, count * 2);
+      }
+      found[count++] = index;
+    }
+  }
+}
@@ -0,0 +1,250 @@
+package org.mitre.synthea.world.agents;
+
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Table;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Utilization counts of a Provider or Payer, by year and by column (the kind of utilization
+ * being counted, such as "encounters"). Many threads increment the counters of the same large
+ * providers and payers, so the counts are kept in LongAdders, which spread concurrent updates
+ * over several cells, in arrays indexed by year and by column id. Incrementing a counter that
+ * already exists takes no locks and creates no objects; a lock is only taken the first time a
+ * year or column is used.
+ *
+ * <p>Column ids are handed out by a {@link Columns} registry, which is normally shared by all
+ * instances of a class so that the ids can be looked up once and kept in constants or maps.
+ */
+final class UtilizationCounters {
+  /** The years covered by the first array of years, before it has to grow. */
+  private static final int INITIAL_YEARS = 16;
+
+  private final Columns columns;
+  /** The counters of each year. Replaced with a larger copy when a year out of range is used. */
+  private volatile Years years;
+
+  /**
+   * Create an empty set of counters.
+   * @param columns the registry of the columns that will be counted
+   */
+  UtilizationCounters(Columns columns) {
+    this.columns = columns;
+    this.years = new Years(0, 0);
+  }
+
+  /**
+   * Increment the counter of a year and column.
+   * @param year the year
+   * @param column the column id
+   */
+  void increment(int year, int column) {
+    year(year).counter(column).increment();
+  }
+
+  /**
+   * Add to the counter of a year and column.
+   * @param year the year
+   * @param column the column id
+   * @param count the amount to add
+   */
+  void add(int year, int column, long count) {
+    year(year).counter(column).add(count);
+  }
+
+  /**
+   * Get the total of a column over all years.
+   * @param column the column id
+   * @return the total count
+   */
+  long total(int column) {
+    long total = 0;
+    Years current = years;
+    for (int i = 0; i < current.length(); i++) {
+      Year year = current.get(i);
+      if (year != null) {
+        total += year.sum(column);
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Get a copy of the current counts, with a cell for each year and column that has been
+   * counted. The copy does not change as the counters are incremented.
+   * @return row: year, column: column name, value: count
+   */
+  Table<Integer, String, AtomicInteger> toTable() {
+    Table<Integer, String, AtomicInteger> table = HashBasedTable.create();
+    Years current = years;
+    for (int i = 0; i < current.length(); i++) {
+      Year year = current.get(i);
+      if (year == null) {
+        continue;
+      }
+      AtomicReferenceArray<LongAdder> counters = year.counters;
+      for (int column = 0; column < counters.length(); column++) {
+        LongAdder counter = counters.get(column);
+        if (counter != null) {
+          table.put(current.first + i, columns.name(column),
+              new AtomicInteger(counter.intValue()));
+        }
+      }
+    }
+    return table;
+  }
+
+  private Year year(int year) {
+    Years current = years;
+    int offset = year - current.first;
+    if (offset >= 0 && offset < current.length()) {
+      Year counters = current.get(offset);
+      if (counters != null) {
+        return counters;
+      }
+    }
+    return addYear(year);
+  }
+
+  /**
+   * Years are only added, and the array only replaced, while holding the lock, so that a year
+   * can not be added to an array that has already been copied.
+   */
+  private synchronized Year addYear(int year) {
+    Years current = years;
+    if (current.length() == 0) {
+      current = new Years(year - INITIAL_YEARS / 2, INITIAL_YEARS);
+      years = current;
+    } else if (year < current.first || year >= current.first + current.length()) {
+      // grow to at least twice the size, in the direction of the new year
+      int last = current.first + current.length();
+      int length = Math.max(current.length() * 2,
+          Math.max(last, year + 1) - Math.min(current.first, year));
+      Years grown = new Years(year < current.first ? last - length : current.first, length);
+      for (int i = 0; i < current.length(); i++) {
+        grown.set(current.first - grown.first + i, current.get(i));
+      }
+      current = grown;
+      years = grown;
+    }
+    Year counters = current.get(year - current.first);
+    if (counters == null) {
+      counters = new Year(columns.size());
+      current.set(year - current.first, counters);
+    }
+    return counters;
+  }
+
+  /**
+   * The counters of a range of years, starting at <code>first</code>.
+   */
+  private static final class Years extends AtomicReferenceArray<Year> {
+    private final int first;
+
+    private Years(int first, int length) {
+      super(length);
+      this.first = first;
+    }
+  }
+
+  /**
+   * The counters of one year, indexed by column id.
+   */
+  private static final class Year {
+    private volatile AtomicReferenceArray<LongAdder> counters;
+
+    private Year(int columns) {
+      this.counters = new AtomicReferenceArray<LongAdder>(Math.max(columns, 1));
+    }
+
+    private LongAdder counter(int column) {
+      AtomicReferenceArray<LongAdder> current = counters;
+      if (column < current.length()) {
+        LongAdder counter = current.get(column);
+        if (counter != null) {
+          return counter;
+        }
+      }
+      return addCounter(column);
+    }
+
+    /**
+     * Counters are only created, and the array only replaced, while holding the lock, so that
+     * a counter can not be added to an array that has already been copied.
+     */
+    private synchronized LongAdder addCounter(int column) {
+      AtomicReferenceArray<LongAdder> current = counters;
+      if (column >= current.length()) {
+        AtomicReferenceArray<LongAdder> grown =
+            new AtomicReferenceArray<LongAdder>(Math.max(column + 1, current.length() * 2));
+        for (int i = 0; i < current.length(); i++) {
+          grown.set(i, current.get(i));
+        }
+        current = grown;
+        counters = grown;
+      }
+      LongAdder counter = current.get(column);
+      if (counter == null) {
+        counter = new LongAdder();
+        current.set(column, counter);
+      }
+      return counter;
+    }
+
+    private long sum(int column) {
+      AtomicReferenceArray<LongAdder> current = counters;
+      if (column < current.length()) {
+        LongAdder counter = current.get(column);
+        if (counter != null) {
+          return counter.sum();
+        }
+      }
+      return 0;
+    }
+  }
+
+  /**
+   * A registry of column names, which gives each name a small, stable id.
+   */
+  static final class Columns {
+    private final Map<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    private final List<String> names = new ArrayList<String>();
+
+    /**
+     * Get the id of a column, adding the column if it is new.
+     * @param name the column name
+     * @return the column id
+     */
+    int id(String name) {
+      Integer id = ids.get(name);
+      if (id == null) {
+        id = add(name);
+      }
+      return id;
+    }
+
+    private synchronized int add(String name) {
+      Integer id = ids.get(name);
+      if (id == null) {
+        id = names.size();
+        names.add(name);
+        ids.put(name, id);
+      }
+      return id;
+    }
+
+    synchronized String name(int id) {
+      return names.get(id);
+    }
+
+    synchronized int size() {
+      return names.size();
+    }
+  }
+}
@@ -4,6 +4,7 @@ import java.util.List;
 
 import org.mitre.synthea.world.agents.Person;
 import org.mitre.synthea.world.agents.Provider;
+import org.mitre.synthea.world.agents.ProviderIndex;
 import org.mitre.synthea.world.concepts.HealthRecord.EncounterType;
 
 /**
@@ -19,4 +20,28 @@ public interface IProviderFinder {
    * @return Service provider or null if none is available.
    */
   public Provider find(List<Provider> providers, Person person, EncounterType service, long time);
+
+  /**
+   * Find a provider with a specific service for the person, from the providers in the index.
+   * By default, the providers within increasing distances of the person are considered, until
+   * one is found or the maximum search distance is reached.
+   * @param index The index of the loaded providers.
+   * @param person The patient who requires the service.
+   * @param service The service required. For example, EncounterType.AMBULATORY.
+   * @param time The date/time within the simulated world, in milliseconds.
+   * @return Service provider or null if none is available.
+   */
+  public default Provider find(ProviderIndex index, Person person, EncounterType service,
+      long time) {
+    double degrees = ProviderIndex.INITIAL_SEARCH_DISTANCE;
+    while (degrees <= index.getMaxDistance()) {
+      List<Provider> options = index.within(person, service, degrees);
+      Provider provider = find(options, person, service, time);
+      if (provider != null) {
+        return provider;
+      }
+      degrees *= 2.0;
+    }
+    return null;
+  }
 }
@@ -5,10 +5,26 @@ import java.util.List;
 
 import org.mitre.synthea.world.agents.Person;
 import org.mitre.synthea.world.agents.Provider;
+import org.mitre.synthea.world.agents.ProviderIndex;
 import org.mitre.synthea.world.concepts.HealthRecord.EncounterType;
 
 public class ProviderFinderNearest implements IProviderFinder {
 
+  /**
+   * Find the nearest provider directly in the index, instead of searching increasing distances.
+   * The providers tied for the nearest are then picked from in the same way as any other list.
+   */
+  @Override
+  public Provider find(ProviderIndex index, Person person, EncounterType service, long time) {
+    boolean vaOnly = person.attributes.containsKey("veteran")
+        && service != EncounterType.URGENTCARE && service != EncounterType.EMERGENCY;
+    List<Provider> nearest = index.nearest(person, service, vaOnly);
+    if (nearest.isEmpty()) {
+      return null;
+    }
+    return find(nearest, person, service, time);
+  }
+
   @Override
   public Provider find(List<Provider> providers, Person person, EncounterType service, long time) {
     double distance;
@@ -10,7 +10,7 @@ import org.mitre.synthea.world.concepts.HealthRecord.Encounter;
 import org.mitre.synthea.world.concepts.HealthRecord.Entry;
 import org.mitre.synthea.world.concepts.HealthRecord.Medication;
 
-public class Claim implements Serializable {
+public class Claim implements Cloneable, Serializable {
 
   private Entry mainEntry;
   // The Entries have the actual cost, so the claim has the amount that the payer covered.
@@ -46,6 +46,24 @@ public class Claim implements Serializable {
     this.items = new ArrayList<Entry>();
   }
 
+  /**
+   * Create a copy of this claim for a copy of its main entry.
+   * @param mainEntry the copy of the main entry.
+   * @param items the line items of the copy.
+   * @return the copy.
+   */
+  Claim copy(Entry mainEntry, List<Entry> items) {
+    try {
+      Claim copy = (Claim) super.clone();
+      copy.mainEntry = mainEntry;
+      copy.items = items;
+      return copy;
+    } catch (CloneNotSupportedException e) {
+      // should not happen, and not something we can handle
+      throw new RuntimeException(e);
+    }
+  }
+
   /**
    * Adds non-explicit costs to the Claim. (Procedures/Immunizations/etc).
    */
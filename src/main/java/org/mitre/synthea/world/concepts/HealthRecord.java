@@ -15,6 +15,7 @@ import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -117,7 +118,7 @@ public class HealthRecord implements Serializable {
    * Observations, Reports, Medications, etc. All Entries have a name, start and
    * stop times, a type, and a list of associated codes.
    */
-  public class Entry implements Serializable {
+  public class Entry implements Cloneable, Serializable {
     /** reference to the HealthRecord this entry belongs to. */
     HealthRecord record = HealthRecord.this;
     public String fullUrl;
@@ -165,6 +166,24 @@ public class HealthRecord implements Serializable {
       return this.codes.stream().anyMatch(c -> code.equals(c.code) && system.equals(c.system));
     }
 
+    /**
+     * Create a copy of this entry for a copy of its health record. The copy has its own list of
+     * codes, so that codes can be replaced without changing this entry; other fields are shared.
+     * @param record the health record the copy belongs to.
+     * @return the copy.
+     */
+    Entry copy(HealthRecord record) {
+      try {
+        Entry copy = (Entry) super.clone();
+        copy.record = record;
+        copy.codes = new ArrayList<Code>(codes);
+        return copy;
+      } catch (CloneNotSupportedException e) {
+        // should not happen, and not something we can handle
+        throw new RuntimeException(e);
+      }
+    }
+
     /**
      * Converts the entry to a String.
      */
@@ -201,6 +220,13 @@ public class HealthRecord implements Serializable {
       super(time, type);
       this.observations = observations;
     }
+
+    @Override
+    Report copy(HealthRecord record) {
+      Report copy = (Report) super.copy(record);
+      copy.observations = new ArrayList<Observation>(observations);
+      return copy;
+    }
   }
 
   public class Medication extends Entry {
@@ -323,6 +349,23 @@ public class HealthRecord implements Serializable {
       this.series = new ArrayList<Series>();
     }
 
+    @Override
+    ImagingStudy copy(HealthRecord record) {
+      ImagingStudy copy = (ImagingStudy) super.copy(record);
+      copy.series = new ArrayList<Series>(series.size());
+      for (Series s : series) {
+        Series seriesCopy = s.clone();
+        if (s.instances != null) {
+          seriesCopy.instances = new ArrayList<Instance>(s.instances.size());
+          for (Instance instance : s.instances) {
+            seriesCopy.instances.add(instance.clone());
+          }
+        }
+        copy.series.add(seriesCopy);
+      }
+      return copy;
+    }
+
     /**
      * ImagingStudy.Series represents a series of images that were taken of a
      * specific part of the body.
@@ -543,6 +586,39 @@ public class HealthRecord implements Serializable {
       this.claim = new Claim(this, person);
     }
 
+    /**
+     * Create a copy of this encounter for a copy of its health record, holding copies of the
+     * entries of this encounter in new lists, and a copy of its claim.
+     * @param record the health record the copy belongs to.
+     * @param copies the copies made so far, by original entry. The entries of this encounter are
+     *     added to it.
+     * @return the copy.
+     */
+    Encounter copy(HealthRecord record, Map<Entry, Entry> copies) {
+      Encounter copy = (Encounter) super.copy(record);
+      copies.put(this, copy);
+      copy.observations = copyEntries(observations, record, copies);
+      copy.reports = copyEntries(reports, record, copies);
+      for (Report report : copy.reports) {
+        report.observations.replaceAll(o -> (Observation) copies.getOrDefault(o, o));
+      }
+      copy.conditions = copyEntries(conditions, record, copies);
+      copy.allergies = copyEntries(allergies, record, copies);
+      copy.procedures = copyEntries(procedures, record, copies);
+      copy.immunizations = copyEntries(immunizations, record, copies);
+      copy.medications = copyEntries(medications, record, copies);
+      copy.careplans = copyEntries(careplans, record, copies);
+      copy.imagingStudies = copyEntries(imagingStudies, record, copies);
+      copy.devices = copyEntries(devices, record, copies);
+      copy.supplies = copyEntries(supplies, record, copies);
+      List<Entry> items = new ArrayList<Entry>(claim.items.size());
+      for (Entry item : claim.items) {
+        items.add(copies.getOrDefault(item, item));
+      }
+      copy.claim = claim.copy(copy, items);
+      return copy;
+    }
+
     /**
      * Add an observation to the encounter. In this case, no codes are added to the observation.
      * It appears that some code in Synthea likes it this way (and does not like good old OO-style
@@ -555,6 +631,7 @@ public class HealthRecord implements Serializable {
     public Observation addObservation(long time, String type, Object value) {
       Observation observation = new Observation(time, type, value);
       this.observations.add(observation);
+      record.indexObservation(this, observation);
       return observation;
     }
 
@@ -569,10 +646,20 @@ public class HealthRecord implements Serializable {
     public Observation addObservation(long time, String type, Object value, String display) {
       Observation observation = new Observation(time, type, value);
       this.observations.add(observation);
+      record.indexObservation(this, observation);
       observation.codes.add(new Code("LOINC", type, display));
       return observation;
     }
 
+    /**
+     * Add an existing observation to the encounter.
+     * @param observation The observation to add
+     */
+    public void addObservation(Observation observation) {
+      this.observations.add(observation);
+      record.indexObservation(this, observation);
+    }
+
     /**
      * Find the first observation in the encounter with the given LOINC code.
      * @param code The LOINC code to look for
@@ -610,6 +697,11 @@ public class HealthRecord implements Serializable {
   public Map<String, Entry> present;
   /** recorded death date/time. */
   public Long death;
+  /**
+   * For each observation type, the latest encounter with an observation of that type.
+   * Null when the index needs to be rebuilt.
+   */
+  private Map<String, Encounter> latestObservations;
 
   /**
    * Construct a health record for the supplied person.
@@ -619,6 +711,72 @@ public class HealthRecord implements Serializable {
     this.person = person;
     encounters = new ArrayList<Encounter>();
     present = new HashMap<String, Entry>();
+    latestObservations = new HashMap<String, Encounter>();
+  }
+
+  /**
+   * Create a copy of this health record for the given person, which can be filtered and modified
+   * without changing this record. The lists of entries and the entries in them are copied; objects
+   * that are only read during export, such as providers and codes, are shared.
+   *
+   * <p>Costs that have been determined are copied. Costs that have not are determined when they
+   * are first read, as in this record, but from the random number generator of the given person.
+   * @param person the person the copy belongs to.
+   * @return the copy.
+   */
+  public HealthRecord copy(Person person) {
+    HealthRecord copy = new HealthRecord(person);
+    copy.provider = provider;
+    copy.death = death;
+    Map<Entry, Entry> copies = new IdentityHashMap<Entry, Entry>();
+    for (Encounter encounter : encounters) {
+      copy.encounters.add(encounter.copy(copy, copies));
+    }
+    for (Map.Entry<String, Entry> entry : present.entrySet()) {
+      Entry original = entry.getValue();
+      copy.present.put(entry.getKey(), copies.computeIfAbsent(original, e -> e.copy(copy)));
+    }
+    copy.latestObservations = null;
+    return copy;
+  }
+
+  /**
+   * Determine the costs of the entries in this record that have not been determined yet, in the
+   * order of the encounters, so that copies of this record are given the same costs.
+   */
+  public void determineCosts() {
+    for (Encounter encounter : encounters) {
+      determineCost(encounter);
+      encounter.claim.items.forEach(HealthRecord::determineCost);
+      encounter.procedures.forEach(HealthRecord::determineCost);
+      encounter.immunizations.forEach(HealthRecord::determineCost);
+      encounter.medications.forEach(HealthRecord::determineCost);
+    }
+  }
+
+  /**
+   * Determine the cost of an entry, if it has not been determined yet. Only entries with a code
+   * have a cost.
+   */
+  private static void determineCost(Entry entry) {
+    if (!entry.codes.isEmpty()) {
+      entry.getCost();
+    }
+  }
+
+  /**
+   * Copy entries into a new list, adding the copies to the map of copies.
+   */
+  @SuppressWarnings("unchecked")
+  private static <E extends Entry> List<E> copyEntries(List<E> entries, HealthRecord record,
+      Map<Entry, Entry> copies) {
+    List<E> list = new ArrayList<E>(entries.size());
+    for (E entry : entries) {
+      E copy = (E) entry.copy(record);
+      copies.put(entry, copy);
+      list.add(copy);
+    }
+    return list;
   }
 
   /**
@@ -726,7 +884,8 @@ public class HealthRecord implements Serializable {
         count--;
       }
     }
-    encounter.observations.add(observation);
+    // any moved observations are found again on their next lookup
+    encounter.addObservation(observation);
     return observation;
   }
 
@@ -736,14 +895,66 @@ public class HealthRecord implements Serializable {
    * @return the latest observation or null if none exists.
    */
   public Observation getLatestObservation(String type) {
-    for (int i = encounters.size() - 1; i >= 0; i--) {
-      Encounter encounter = encounters.get(i);
-      Observation obs = encounter.findObservation(type);
-      if (obs != null) {
-        return obs;
+    if (latestObservations == null) {
+      resetObservationIndex();
+    }
+    Encounter encounter = latestObservations.get(type);
+    if (encounter == null) {
+      return null;
+    }
+    Observation obs = encounter.findObservation(type);
+    if (obs == null) {
+      // the observation has been moved or removed since it was indexed
+      latestObservations.remove(type);
+      for (int i = encounters.size() - 1; i >= 0 && obs == null; i--) {
+        obs = encounters.get(i).findObservation(type);
+        if (obs != null) {
+          latestObservations.put(type, encounters.get(i));
+        }
+      }
+    }
+    return obs;
+  }
+
+  /**
+   * Update the latest observation index after an observation was added to an encounter.
+   * @param encounter the encounter.
+   * @param observation the observation added to the encounter.
+   */
+  private void indexObservation(Encounter encounter, Observation observation) {
+    if (latestObservations == null || observation == null) {
+      return;
+    }
+    Encounter latest = latestObservations.get(observation.type);
+    if (latest == encounter) {
+      // the first observation of each type in an encounter is the one that is found
+      return;
+    }
+    boolean newer;
+    if (!encounters.isEmpty() && encounters.get(encounters.size() - 1) == encounter) {
+      // observations are nearly always added to the current encounter
+      newer = true;
+    } else {
+      int index = encounters.indexOf(encounter);
+      newer = index >= 0 && (latest == null || encounters.indexOf(latest) < index);
+    }
+    if (newer) {
+      latestObservations.put(observation.type, encounter);
+    }
+  }
+
+  /**
+   * Rebuild the index of latest observations from the encounters. This must be called after
+   * encounters or observations are removed from this record, or observations are added to
+   * an encounter other than through {@link Encounter#addObservation(Observation)}.
+   */
+  public void resetObservationIndex() {
+    latestObservations = new HashMap<String, Encounter>();
+    for (Encounter encounter : encounters) {
+      for (Observation observation : encounter.observations) {
+        latestObservations.put(observation.type, encounter);
       }
     }
-    return null;
   }
 
   /**
@@ -0,0 +1,120 @@
+package org.mitre.synthea.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.world.agents.Person;
+
+public class DataStoreTest {
+
+  @After
+  public void tearDown() {
+    Config.set("generate.database.commit_interval", "1");
+  }
+
+  private Person createPerson() {
+    Person person = new Person(0L);
+    person.attributes.put(Person.ID, UUID.randomUUID().toString());
+    person.attributes.put(Person.NAME, "Test Person");
+    person.attributes.put(Person.BIRTHDATE, 0L);
+    person.attributes.put(Person.RACE, "white");
+    person.attributes.put(Person.GENDER, "F");
+    person.attributes.put(Person.SOCIOECONOMIC_CATEGORY, "Middle");
+    return person;
+  }
+
+  private int countPersons(DataStore store, Person... persons) throws Exception {
+    int count = 0;
+    try (Connection connection = store.getConnection()) {
+      PreparedStatement stmt = connection.prepareStatement(
+          "SELECT COUNT(*) FROM PERSON WHERE ID = ?");
+      for (Person person : persons) {
+        stmt.setString(1, (String) person.attributes.get(Person.ID));
+        ResultSet rs = stmt.executeQuery();
+        rs.next();
+        count += rs.getInt(1);
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void testPersonsAreCommittedInBatches() throws Exception {
+    Config.set("generate.database.commit_interval", "3");
+    DataStore store = new DataStore(false);
+    Person[] persons = new Person[4];
+    for (int i = 0; i < persons.length; i++) {
+      persons[i] = createPerson();
+    }
+
+    assertTrue(store.store(persons[0]));
+    assertTrue(store.store(persons[1]));
+    assertEquals(0, countPersons(store, persons));
+
+    assertTrue(store.flush());
+    assertEquals(2, countPersons(store, persons));
+
+    assertTrue(store.store(persons[2]));
+    assertTrue(store.store(persons[3]));
+    assertTrue(store.flush());
+    assertEquals(4, countPersons(store, persons));
+  }
+
+  @Test
+  public void testFailedPersonDoesNotLoseEarlierPersons() throws Exception {
+    Config.set("generate.database.commit_interval", "3");
+    Config.set("generate.database.pool_size", "1");
+    DataStore store;
+    try {
+      store = new DataStore(false);
+    } finally {
+      Config.set("generate.database.pool_size", "4");
+    }
+    Person stored = createPerson();
+    Person broken = createPerson();
+    // storing fails part of the way through the person
+    broken.attributes.remove(Person.BIRTHDATE);
+
+    assertTrue(store.store(stored));
+    assertFalse(store.store(broken));
+    assertTrue(store.flush());
+    assertEquals(1, countPersons(store, stored));
+    assertEquals(0, countPersons(store, broken));
+  }
+
+  @Test
+  public void testClose() throws Exception {
+    Config.set("generate.database.commit_interval", "10");
+    DataStore store = new DataStore(false);
+    Person person = createPerson();
+    assertTrue(store.store(person));
+    assertTrue(store.close());
+    // pending persons are committed, and reports can still read them
+    assertEquals(1, countPersons(store, person));
+    assertFalse(store.store(createPerson()));
+  }
+
+  @Test(timeout = 10000)
+  public void testStoreFailsWhenSetupFails() throws Exception {
+    DataStore store = new DataStore(false) {
+      @Override
+      public Connection getConnection() throws SQLException {
+        throw new SQLException("database unavailable");
+      }
+    };
+    // without a connection, storing fails rather than waiting for one
+    assertFalse(store.store(createPerson()));
+    assertTrue(store.flush());
+    assertTrue(store.close());
+  }
+}
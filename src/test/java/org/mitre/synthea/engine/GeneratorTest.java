@@ -11,6 +11,9 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -26,9 +29,11 @@ import org.mitre.synthea.export.Exporter;
 import org.mitre.synthea.export.Exporter.SupportedFhirVersion;
 import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.helpers.Utilities;
+import org.mitre.synthea.modules.LifecycleModule;
 import org.mitre.synthea.world.agents.Payer;
 import org.mitre.synthea.world.agents.Person;
 import org.mitre.synthea.world.agents.Provider;
+import org.mitre.synthea.world.concepts.HealthRecord;
 import org.mitre.synthea.world.geography.Location;
 
 public class GeneratorTest {
@@ -70,6 +75,189 @@ public class GeneratorTest {
     assertEquals(numberOfPeople, generator.stats.get("alive").longValue());
   }
 
+  @Test
+  public void testSchedulersProduceSamePopulation() throws Exception {
+    int numberOfPeople = 6;
+    List<Object> fixedNames = generateNames(numberOfPeople, "fixed", "2", "1");
+    List<Object> stealingNames = generateNames(numberOfPeople, "work_stealing", "4", "0");
+    Config.set("generate.scheduler", "fixed");
+    Config.set("generate.threads", "0");
+    Config.set("generate.scheduler.window", "0");
+    assertEquals(numberOfPeople, fixedNames.size());
+    assertEquals(fixedNames, stealingNames);
+  }
+
+  private List<Object> generateNames(int numberOfPeople, String scheduler, String threads,
+      String window) {
+    Config.set("generate.scheduler", scheduler);
+    Config.set("generate.threads", threads);
+    Config.set("generate.scheduler.window", window);
+    Provider.clear();
+    Payer.clear();
+    Generator generator = new Generator(numberOfPeople, 42L, 1L);
+    generator.internalStore = Collections.synchronizedList(new LinkedList<>());
+    generator.run();
+    List<Object> names = new ArrayList<Object>();
+    for (Person person : generator.internalStore) {
+      names.add(person.attributes.get(Person.NAME));
+    }
+    names.sort((a, b) -> a.toString().compareTo(b.toString()));
+    return names;
+  }
+
+  @Test
+  public void testEventDrivenTimeAdvancementProducesSamePeople() throws Exception {
+    long stop = System.currentTimeMillis();
+    // besides the selected modules, simulate fixtures that wait in an age Guard and in Delays
+    // from seconds to years, so that modules are skipped for every kind of wait
+    List<Module> fixtures = Arrays.asList(TestHelper.getFixture("example_module.json"),
+        TestHelper.getFixture("delay.json"));
+    List<String> fixed = generateRecords(false, stop, fixtures);
+    List<String> event = generateRecords(true, stop, fixtures);
+    assertEquals(fixed.size(), event.size());
+    for (int i = 0; i < fixed.size(); i++) {
+      assertEquals("seed " + i, fixed.get(i), event.get(i));
+    }
+  }
+
+  private List<String> generateRecords(boolean eventDriven, long stop, List<Module> fixtures) {
+    Provider.clear();
+    Payer.clear();
+    Generator generator = new Generator(1, 7L, 1L);
+    generator.eventDriven = eventDriven;
+    generator.stop = stop;
+    List<String> records = new ArrayList<String>();
+    for (Person person : simulatePeople(generator, 12, fixtures)) {
+      StringBuilder record = new StringBuilder();
+      record.append(person.attributes.get(Person.DEATHDATE)).append('\n');
+      for (HealthRecord.Encounter encounter : person.record.encounters) {
+        appendEntry(record, encounter);
+        for (HealthRecord.Entry condition : encounter.conditions) {
+          appendEntry(record, condition);
+        }
+        for (HealthRecord.Entry medication : encounter.medications) {
+          appendEntry(record, medication);
+        }
+        for (HealthRecord.Entry procedure : encounter.procedures) {
+          appendEntry(record, procedure);
+        }
+        record.append(encounter.observations.size()).append('\n');
+      }
+      for (Module fixture : fixtures) {
+        @SuppressWarnings("unchecked")
+        List<State> history = (List<State>) person.attributes.get(fixture.name);
+        for (State state : history) {
+          record.append(state.name).append(' ').append(state.entered).append(' ')
+              .append(state.exited).append('\n');
+        }
+      }
+      records.add(record.toString());
+    }
+    if (eventDriven) {
+      assertTrue(generator.moduleStepsSkipped.get() > 0);
+    }
+    return records;
+  }
+
+  /**
+   * Simulate a person for each of the seeds 0 to count - 1 until the generator stops, in the
+   * modules selected by the generator followed by the given fixtures. Unlike
+   * {@link Generator#generatePerson(int, long)}, persons who die are kept rather than replaced.
+   */
+  private static List<Person> simulatePeople(Generator generator, int count,
+      List<Module> fixtures) {
+    List<Person> people = new ArrayList<Person>();
+    for (long seed = 0; seed < count; seed++) {
+      Person person = new Person(seed);
+      person.populationSeed = generator.options.seed;
+      person.attributes.putAll(generator.randomDemographics(new Random(seed)));
+      person.attributes.put(Person.LOCATION, generator.location);
+      person.lastUpdated = (long) person.attributes.get(Person.BIRTHDATE);
+      LifecycleModule.birth(person, person.lastUpdated);
+      person.currentModules = new ArrayList<Module>(Module.getModules());
+      person.currentModules.addAll(fixtures);
+      generator.updatePerson(person);
+      people.add(person);
+    }
+    return people;
+  }
+
+  @Test
+  public void testHistoryEvictionKeepsExportedHistory() throws Exception {
+    int yearsOfHistory = 10;
+    Config.set("exporter.years_of_history", Integer.toString(yearsOfHistory));
+    long stop = System.currentTimeMillis();
+    List<Person> full = generatePeople(false, stop);
+    List<Person> evicted = generatePeople(true, stop);
+    int olderThanHistory = 0;
+    int withEvictions = 0;
+    for (int i = 0; i < full.size(); i++) {
+      int fullEntries = countEntries(full.get(i).record);
+      int evictedEntries = countEntries(evicted.get(i).record);
+      assertTrue("seed " + i, evictedEntries <= fullEntries);
+      if (full.get(i).ageInYears(full.get(i).lastUpdated) > yearsOfHistory + 1) {
+        olderThanHistory++;
+      }
+      if (evictedEntries < fullEntries) {
+        withEvictions++;
+      }
+      assertEquals("seed " + i, exportedRecord(full.get(i), yearsOfHistory),
+          exportedRecord(evicted.get(i), yearsOfHistory));
+    }
+    // some persons have history from before the export window, and some of it is evicted
+    assertTrue(olderThanHistory > 0);
+    assertTrue(withEvictions > 0);
+  }
+
+  private List<Person> generatePeople(boolean evictHistory, long stop) {
+    Config.set("generate.evict_history", Boolean.toString(evictHistory));
+    Provider.clear();
+    Payer.clear();
+    Generator generator = new Generator(1, 7L, 1L);
+    Config.set("generate.evict_history", "false");
+    generator.stop = stop;
+    return simulatePeople(generator, 8, Collections.emptyList());
+  }
+
+  private static int countEntries(HealthRecord record) {
+    int count = 0;
+    for (HealthRecord.Encounter encounter : record.encounters) {
+      count += 1 + encounter.observations.size() + encounter.procedures.size()
+          + encounter.immunizations.size() + encounter.reports.size();
+    }
+    return count;
+  }
+
+  private String exportedRecord(Person person, int yearsOfHistory) {
+    long finishTime = person.lastUpdated + Long.parseLong(Config.get("generate.timestep"));
+    Person filtered = Exporter.filterForExport(person, yearsOfHistory, finishTime);
+    StringBuilder record = new StringBuilder();
+    for (HealthRecord.Encounter encounter : filtered.record.encounters) {
+      appendEntry(record, encounter);
+      List<HealthRecord.Entry> entries = new ArrayList<HealthRecord.Entry>();
+      entries.addAll(encounter.conditions);
+      entries.addAll(encounter.observations);
+      entries.addAll(encounter.reports);
+      entries.addAll(encounter.procedures);
+      entries.addAll(encounter.medications);
+      entries.addAll(encounter.immunizations);
+      entries.addAll(encounter.careplans);
+      entries.addAll(encounter.claim.items);
+      for (HealthRecord.Entry entry : entries) {
+        appendEntry(record, entry);
+      }
+    }
+    return record.toString();
+  }
+
+  private static void appendEntry(StringBuilder record, HealthRecord.Entry entry) {
+    record.append(entry.start).append(' ').append(entry.stop).append(' ').append(entry.type);
+    for (HealthRecord.Code code : entry.codes) {
+      record.append(' ').append(code.code);
+    }
+    record.append('\n');
+  }
+
   @Test
   public void testGenerateWithDatabase() throws Exception {
     int numberOfPeople = 1;
@@ -268,6 +456,37 @@ public class GeneratorTest {
     generateThread.interrupt();
   }
   
+  @Test
+  public void testGenerateWithExportPipeline() throws Exception {
+    int numberOfPeople = 5;
+    Config.set("generate.export_threads", "2");
+    Config.set("generate.export_queue_size", "1");
+    Generator.GeneratorOptions opts = new Generator.GeneratorOptions();
+    opts.population = numberOfPeople;
+    opts.overflow = false;
+    Exporter.ExporterRuntimeOptions ero = new Exporter.ExporterRuntimeOptions();
+    ero.enableQueue(SupportedFhirVersion.R4);
+    Generator generator = new Generator(opts, ero);
+    Thread generateThread = new Thread() {
+      public void run() {
+        generator.run();
+      }
+    };
+    generateThread.start();
+
+    // export threads block on the record queue, which in turn blocks simulation threads
+    for (int i = 0; i < numberOfPeople; i++) {
+      assertNotNull(ero.getNextRecord());
+    }
+    generateThread.join();
+    Config.set("generate.export_threads", "0");
+    Config.set("generate.export_queue_size", "0");
+
+    assertEquals(numberOfPeople, generator.stats.get("alive").longValue()
+        + generator.stats.get("dead").longValue());
+    assertTrue(ero.isRecordQueueEmpty());
+  }
+
   @Test
   public void testUpdateAfterCreation() throws Exception {
     // Get 100 people
@@ -1,24 +1,19 @@
 package org.mitre.synthea.engine;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
-import org.apache.commons.lang3.Range;
 import org.junit.AfterClass;
-import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.mitre.synthea.TestHelper;
 import org.mitre.synthea.engine.Logic.ActiveCondition;
-import org.mitre.synthea.engine.Transition.DirectTransition;
-import org.mitre.synthea.engine.Transition.LookupTableKey;
 import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.world.agents.Person;
@@ -51,6 +46,9 @@ public class LookupTableTransitionTest {
     Module lookuptabletesttimerangeModule = TestHelper.getFixture("lookuptable_timerangetest.json");
     modules.put("lookuptable_timerangetest", new Module.ModuleSupplier(
             lookuptabletesttimerangeModule));
+    Module lookuptabletestoverlapModule = TestHelper.getFixture("lookuptable_overlaptest.json");
+    modules.put("lookuptable_overlaptest", new Module.ModuleSupplier(
+            lookuptabletestoverlapModule));
 
     /* Create Mild Lookuptablitis Condition */
     mildLookuptablitis = new ActiveCondition();
@@ -79,214 +77,84 @@ public class LookupTableTransitionTest {
     // Remove the lookuptable_test.json module
     modules.remove("lookuptable_test");
     modules.remove("lookuptable_timerangetest");
+    modules.remove("lookuptable_overlaptest");
   }
 
-  @Test
-  public void keyTestWithAgesMatch() {
-    DirectTransition test = new DirectTransition("test");
-
-    List<String> attributes = new ArrayList<String>();
-    attributes.add("foo");
-    attributes.add("bar");
-    Integer age = 20;
-    LookupTableKey silver = test.new LookupTableKey(attributes, age, null);
-
-    List<String> others = new ArrayList<String>();
-    others.add("foo");
-    others.add("bar");
-    Range<Integer> range = Range.between(0, 30);
-    LookupTableKey gold = test.new LookupTableKey(others, range, null);
-
-    Assert.assertEquals(silver, gold);
-    Assert.assertEquals(gold, silver);
-
-    Set<LookupTableKey> set = new HashSet<LookupTableKey>();
-    set.add(gold);
-    Assert.assertTrue(set.contains(silver));
-  }
-
-  @Test
-  public void keyTestWithAgesMatchHigh() {
-    DirectTransition test = new DirectTransition("test");
-
-    List<String> attributes = new ArrayList<String>();
-    attributes.add("foo");
-    attributes.add("bar");
-    Integer age = 30;
-    LookupTableKey silver = test.new LookupTableKey(attributes, age, null);
-
-    List<String> others = new ArrayList<String>();
-    others.add("foo");
-    others.add("bar");
-    Range<Integer> range = Range.between(0, 30);
-    LookupTableKey gold = test.new LookupTableKey(others, range, null);
-
-    Assert.assertEquals(silver, gold);
-    Assert.assertEquals(gold, silver);
-
-    Set<LookupTableKey> set = new HashSet<LookupTableKey>();
-    set.add(gold);
-    Assert.assertTrue(set.contains(silver));
-  }
-
-  @Test
-  public void keyTestWithAgesMatchLow() {
-    DirectTransition test = new DirectTransition("test");
-
-    List<String> attributes = new ArrayList<String>();
-    attributes.add("foo");
-    attributes.add("bar");
-    Integer age = 0;
-    LookupTableKey silver = test.new LookupTableKey(attributes, age, null);
-
-    List<String> others = new ArrayList<String>();
-    others.add("foo");
-    others.add("bar");
-    Range<Integer> range = Range.between(0, 30);
-    LookupTableKey gold = test.new LookupTableKey(others, range, null);
-
-    Assert.assertEquals(silver, gold);
-    Assert.assertEquals(gold, silver);
-
-    Set<LookupTableKey> set = new HashSet<LookupTableKey>();
-    set.add(gold);
-    Assert.assertTrue(set.contains(silver));
+  private static Transition.RangeIndex index(long[]... ranges) {
+    List<Integer> targets = new ArrayList<Integer>();
+    for (int i = 0; i < ranges.length; i++) {
+      targets.add(i);
+    }
+    return new Transition.RangeIndex(Arrays.asList(ranges), targets);
   }
 
   @Test
-  public void keyTestCorrectMatch() {
-    DirectTransition test = new DirectTransition("test");
-
-    List<String> attributes = new ArrayList<String>();
-    attributes.add("foo");
-    attributes.add("bar");
-    Integer age = 20;
-    LookupTableKey yellow = test.new LookupTableKey(attributes, age, null);
-    age = 50;
-    LookupTableKey grey = test.new LookupTableKey(attributes, age, null);
-
-    List<String> others = new ArrayList<String>();
-    others.add("foo");
-    others.add("bar");
-    Range<Integer> range = Range.between(0, 30);
-    LookupTableKey gold = test.new LookupTableKey(others, range, null);
-
-    Range<Integer> anotherRange = Range.between(31, 60);
-    LookupTableKey platinum = test.new LookupTableKey(others, anotherRange, null);
-
-    Assert.assertEquals(yellow, gold);
-    Assert.assertEquals(gold, yellow);
-    Assert.assertEquals(grey, platinum);
-    Assert.assertEquals(platinum, grey);
-
-    Assert.assertNotEquals(grey, gold);
-    Assert.assertNotEquals(yellow, platinum);
-    Assert.assertNotEquals(gold, platinum);
-    Assert.assertNotEquals(yellow, grey);
-
-    Map<LookupTableKey, String> map = new HashMap<LookupTableKey, String>();
-    map.put(gold, "gold");
-    map.put(platinum, "platinum");
-    Assert.assertTrue(map.containsKey(yellow));
-    Assert.assertEquals(map.get(yellow), "gold");
-    Assert.assertTrue(map.containsKey(grey));
-    Assert.assertEquals(map.get(grey), "platinum");
+  public void rangeIndexBoundaries() {
+    Transition.RangeIndex ages = index(new long[] {0, 30}, new long[] {31, 60});
+    // both ends of each range are included
+    assertEquals(0, ages.find(0));
+    assertEquals(0, ages.find(20));
+    assertEquals(0, ages.find(30));
+    assertEquals(1, ages.find(31));
+    assertEquals(1, ages.find(50));
+    assertEquals(1, ages.find(60));
+    assertEquals(-1, ages.find(-1));
+    assertEquals(-1, ages.find(61));
   }
 
   @Test
-  public void keyTestWithAgesNoMatchAge() {
-    DirectTransition test = new DirectTransition("test");
-
-    List<String> attributes = new ArrayList<String>();
-    attributes.add("foo");
-    attributes.add("bar");
-    Integer age = 40;
-    LookupTableKey silver = test.new LookupTableKey(attributes, age, null);
-
-    List<String> others = new ArrayList<String>();
-    others.add("foo");
-    others.add("bar");
-    Range<Integer> range = Range.between(0, 30);
-    LookupTableKey gold = test.new LookupTableKey(others, range, null);
-
-    Assert.assertNotEquals(silver, gold);
-    Assert.assertNotEquals(gold, silver);
-
-    Set<LookupTableKey> set = new HashSet<LookupTableKey>();
-    set.add(gold);
-    Assert.assertFalse(set.contains(silver));
+  public void rangeIndexUnsortedRows() {
+    // rows do not have to be in order of their ranges
+    Transition.RangeIndex ages = index(new long[] {31, 60}, new long[] {0, 30},
+        new long[] {61, 140});
+    assertEquals(1, ages.find(0));
+    assertEquals(1, ages.find(30));
+    assertEquals(0, ages.find(31));
+    assertEquals(2, ages.find(61));
+    assertEquals(2, ages.find(140));
+    assertEquals(-1, ages.find(141));
   }
 
   @Test
-  public void keyTestWithAgesNoMatchOther() {
-    DirectTransition test = new DirectTransition("test");
-
-    List<String> attributes = new ArrayList<String>();
-    attributes.add("foo");
-    attributes.add("bar");
-    Integer age = 20;
-    LookupTableKey silver = test.new LookupTableKey(attributes, age, null);
-
-    List<String> others = new ArrayList<String>();
-    others.add("foo");
-    others.add("baz");
-    Range<Integer> range = Range.between(0, 30);
-    LookupTableKey gold = test.new LookupTableKey(others, range, null);
-
-    Assert.assertNotEquals(silver, gold);
-    Assert.assertNotEquals(gold, silver);
- 
-    Set<LookupTableKey> set = new HashSet<LookupTableKey>();
-    set.add(gold);
-    Assert.assertFalse(set.contains(silver));
+  public void rangeIndexGaps() {
+    Transition.RangeIndex ages = index(new long[] {0, 10}, new long[] {20, 30},
+        new long[] {50, 50});
+    assertEquals(0, ages.find(10));
+    assertEquals(-1, ages.find(11));
+    assertEquals(-1, ages.find(15));
+    assertEquals(-1, ages.find(19));
+    assertEquals(1, ages.find(20));
+    assertEquals(-1, ages.find(49));
+    assertEquals(2, ages.find(50));
+    assertEquals(-1, ages.find(51));
   }
 
   @Test
-  public void keyTestWithoutAgesMatch() {
-    DirectTransition test = new DirectTransition("test");
-
-    List<String> attributes = new ArrayList<String>();
-    attributes.add("foo");
-    attributes.add("bar");
-    Integer age = null;
-    LookupTableKey silver = test.new LookupTableKey(attributes, age, null);
-
-    List<String> others = new ArrayList<String>();
-    others.add("foo");
-    others.add("bar");
-    Range<Integer> range = null;
-    LookupTableKey gold = test.new LookupTableKey(others, range, null);
-
-    Assert.assertEquals(silver, gold);
-    Assert.assertEquals(gold, silver);
-
-    Set<LookupTableKey> set = new HashSet<LookupTableKey>();
-    set.add(gold);
-    Assert.assertTrue(set.contains(silver));
+  public void rangeIndexOverlaps() {
+    // the first matching row is used, in the order of the CSV file
+    Transition.RangeIndex ages = index(new long[] {20, 40}, new long[] {0, 30},
+        new long[] {30, 30});
+    assertEquals(1, ages.find(0));
+    assertEquals(1, ages.find(19));
+    assertEquals(0, ages.find(20));
+    assertEquals(0, ages.find(30));
+    assertEquals(0, ages.find(40));
+    assertEquals(-1, ages.find(41));
+
+    // ranges that only share their boundary overlap as well
+    Transition.RangeIndex shared = index(new long[] {30, 60}, new long[] {0, 30});
+    assertEquals(1, shared.find(0));
+    assertEquals(0, shared.find(30));
+    assertEquals(0, shared.find(60));
   }
 
   @Test
-  public void keyTestWithoutAgesNoMatch() {
-    DirectTransition test = new DirectTransition("test");
-
-    List<String> attributes = new ArrayList<String>();
-    attributes.add("foo");
-    attributes.add("bar");
-    Integer age = null;
-    LookupTableKey silver = test.new LookupTableKey(attributes, age, null);
-
-    List<String> others = new ArrayList<String>();
-    others.add("foo");
-    others.add("baz");
-    Range<Integer> range = null;
-    LookupTableKey gold = test.new LookupTableKey(others, range, null);
-
-    Assert.assertNotEquals(silver, gold);
-    Assert.assertNotEquals(gold, silver);
-
-    Set<LookupTableKey> set = new HashSet<LookupTableKey>();
-    set.add(gold);
-    Assert.assertFalse(set.contains(silver));
+  public void rangeIndexAny() {
+    Transition.RangeIndex any = index(Transition.RangeIndex.ANY);
+    assertEquals(0, any.find(Long.MIN_VALUE));
+    assertEquals(0, any.find(0));
+    assertEquals(0, any.find(Long.MAX_VALUE));
+    assertEquals(-1, index().find(0));
   }
 
   @Test
@@ -635,4 +503,46 @@ public class LookupTableTransitionTest {
           e.getMessage().contains("does not match a JSON state to transition to in CSV table"));
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * Process the lookuptable_overlaptest module for a male aged the given number of years at the
+   * given time, whose rows are, in order: ages 0-50 at times 0-999 (mild), ages 20-60 at times
+   * 1000-1999 (moderate) and ages 0-50 at times 1000-1999 (extreme).
+   */
+  private static Person processOverlappingAges(int age, long conditionTime) {
+    Person person = new Person(0L);
+    person.attributes.put(Person.BIRTHDATE,
+        conditionTime - Utilities.convertTime("years", age) - Utilities.convertTime("days", 30));
+    person.attributes.put(Person.GENDER, "M");
+    assertEquals(age, person.ageInYears(conditionTime));
+    modules.get("lookuptable_overlaptest").get().process(person, conditionTime);
+    return person;
+  }
+
+  @Test
+  public void overlappingAgeRangesUseFirstMatchingRow() {
+    // 30 is in both age ranges; the first of them has no row for the time, the second has
+    Person person = processOverlappingAges(30, 1500L);
+    assertFalse(mildLookuptablitis.test(person, 1600L));
+    assertTrue(moderateLookuptablitis.test(person, 1600L));
+    assertFalse(extremeLookuptablitis.test(person, 1600L));
+
+    // the earlier row wins over the later row with the same age range
+    person = processOverlappingAges(30, 500L);
+    assertTrue(mildLookuptablitis.test(person, 600L));
+    assertFalse(moderateLookuptablitis.test(person, 600L));
+    assertFalse(extremeLookuptablitis.test(person, 600L));
+
+    // 10 is only in the first age range
+    person = processOverlappingAges(10, 1500L);
+    assertFalse(mildLookuptablitis.test(person, 1600L));
+    assertFalse(moderateLookuptablitis.test(person, 1600L));
+    assertTrue(extremeLookuptablitis.test(person, 1600L));
+
+    // 55 is only in the second age range, which has no row for the time: the default is used
+    person = processOverlappingAges(55, 500L);
+    assertFalse(mildLookuptablitis.test(person, 600L));
+    assertFalse(moderateLookuptablitis.test(person, 600L));
+    assertTrue(extremeLookuptablitis.test(person, 600L));
+  }
+}
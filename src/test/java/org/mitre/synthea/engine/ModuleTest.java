@@ -3,6 +3,7 @@ package org.mitre.synthea.engine;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
@@ -12,17 +13,26 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.stream.JsonReader;
 import java.io.File;
+import java.io.FileOutputStream;
 
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Predicate;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Test;
+import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.helpers.Utilities;
 import org.powermock.reflect.Whitebox;
 
@@ -43,6 +53,25 @@ public class ModuleTest {
     assertFalse(someModules.stream().anyMatch(filterOnModuleName("COPD")));
   }
 
+  @Test
+  public void registry() {
+    Module.Registry registry = Module.warmUp();
+    assertSame(registry, Module.getRegistry());
+    assertSame(registry.get("copd"), Module.getModuleByPath("copd"));
+    assertNotNull(registry.get("medications/otc_antihistamine"));
+    assertNull(registry.get("missing_module"));
+
+    Module[] someModules = registry.select(path -> path.contains("ti"));
+    assertEquals(Module.getModules(path -> path.contains("ti")).size(), someModules.length);
+    for (int i = 0; i < someModules.length; i++) {
+      // the same module instances are returned in the same order every time
+      assertSame(someModules[i], registry.select(path -> path.contains("ti"))[i]);
+    }
+    for (Module module : someModules) {
+      assertFalse(module.submodule);
+    }
+  }
+
   @Test
   public void getModuleByPath() {
     Module module = Module.getModuleByPath("copd");
@@ -70,6 +99,111 @@ public class ModuleTest {
     Module.getModuleByPath("bad_module"); // should not fail now
   }
 
+  @Test
+  public void warmUp_badModule() throws Exception {
+    IOException fault = new IOException("Deliberate failure");
+    Field registryField = Whitebox.getField(Module.class, "registry");
+    registryField.setAccessible(true);
+    try (FaultyModuleScope ignore = injectFaultIntoModuleLoad("bad_module", fault)) {
+      registryField.set(null, null);
+      Module.warmUp();
+      fail("Expected warmUp() to fail with a RuntimeException");
+    } catch (RuntimeException e) {
+      assertTrue(e.getMessage().contains("bad_module"));
+      assertSame(fault, e.getCause().getCause());
+    }
+    // the registry is only published once every module has loaded
+    assertNull(registryField.get(null));
+    assertNotNull(Module.warmUp().get("copd"));
+  }
+
+  @Test
+  public void warmUp_excludedBadModule() throws Exception {
+    IOException fault = new IOException("Deliberate failure");
+    Field registryField = Whitebox.getField(Module.class, "registry");
+    registryField.setAccessible(true);
+    try (FaultyModuleScope ignore = injectFaultIntoModuleLoad("bad_module", fault, false)) {
+      registryField.set(null, null);
+      // modules that are not selected are not loaded, so they cannot fail
+      Module.Registry registry = Module.warmUp(path -> path.equals("copd"));
+      assertNotNull(registry.get("copd"));
+      assertNull(registry.get("bad_module"));
+      assertEquals(1, registry.select(path -> path.equals("copd")).length
+          - registry.select(path -> false).length);
+    } finally {
+      registryField.set(null, null);
+    }
+  }
+
+  @Test
+  public void warmUp_badSubmodule() throws Exception {
+    IOException fault = new IOException("Deliberate failure");
+    Field registryField = Whitebox.getField(Module.class, "registry");
+    registryField.setAccessible(true);
+    try (FaultyModuleScope ignore =
+        injectFaultIntoModuleLoad("submodules/bad_submodule", fault, true)) {
+      registryField.set(null, null);
+      // the error is only thrown when the submodule is used
+      Module.Registry registry = Module.warmUp(path -> path.equals("copd"));
+      assertNull(registry.get("submodules/bad_submodule"));
+      try {
+        Module.getModuleByPath("submodules/bad_submodule");
+        fail("Expected getModuleByPath() to fail with a RuntimeException");
+      } catch (RuntimeException e) {
+        assertSame(fault, e.getCause());
+      }
+    } finally {
+      registryField.set(null, null);
+    }
+  }
+
+  @Test
+  public void moduleCache() throws Exception {
+    File cacheDir = Files.createTempDirectory("module_cache").toFile();
+    Config.set("generate.modules.cache_dir", cacheDir.getAbsolutePath());
+    try {
+      Path modulesFolder = Paths.get("modules");
+      Path path = Paths.get("modules", "med_rec.json");
+      Module parsed = Module.loadFile(path, modulesFolder, null);
+      assertEquals(1, cacheDir.listFiles().length);
+
+      Module cached = Module.loadFile(path, modulesFolder, null);
+      assertNotSame(parsed, cached);
+      assertEquals(parsed.name, cached.name);
+      assertEquals(parsed.getStateNames(), cached.getStateNames());
+      State state = cached.getState("Wellness_Encounter");
+      assertSame(cached, state.module);
+      assertEquals(parsed.getState("Wellness_Encounter").getClass(), state.getClass());
+      assertEquals(1, cacheDir.listFiles().length);
+
+      // overriding a value changes the hash, so the module is compiled and cached again
+      Properties overrides = new Properties();
+      overrides.put("med_rec.json::$['states']['Wellness_Encounter']['distributed_transition']"
+          + "[0]['distribution']", "0.5");
+      Module.loadFile(path, modulesFolder, overrides);
+      assertEquals(2, cacheDir.listFiles().length);
+
+      // a cache file holding any class that modules do not contain is rejected and replaced
+      for (File file : cacheDir.listFiles()) {
+        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(file))) {
+          oos.writeObject(new File("not a module"));
+        }
+      }
+      assertEquals(parsed.name, Module.loadFile(path, modulesFolder, null).name);
+      assertEquals(parsed.name, Module.loadFile(path, modulesFolder, null).name);
+
+      // an unreadable cache file is ignored and replaced
+      for (File file : cacheDir.listFiles()) {
+        Files.write(file.toPath(), "not a module".getBytes(StandardCharsets.UTF_8));
+      }
+      assertEquals(parsed.name, Module.loadFile(path, modulesFolder, null).name);
+      assertEquals(parsed.name, Module.loadFile(path, modulesFolder, null).name);
+    } finally {
+      Config.remove("generate.modules.cache_dir");
+      FileUtils.deleteDirectory(cacheDir);
+    }
+  }
+
   @Test
   public void getModuleByPath_missingModule() {
     Module module = Module.getModuleByPath("missing_module");
@@ -87,6 +221,11 @@ public class ModuleTest {
    */
   private static FaultyModuleScope injectFaultIntoModuleLoad(String path, Exception fault)
       throws Exception {
+    return injectFaultIntoModuleLoad(path, fault, false);
+  }
+
+  private static FaultyModuleScope injectFaultIntoModuleLoad(String path, Exception fault,
+      boolean submodule) throws Exception {
     Field modulesField = Whitebox.getField(Module.class, "modules");
     modulesField.setAccessible(true);
     @SuppressWarnings("unchecked")
@@ -98,7 +237,8 @@ public class ModuleTest {
     Callable<Module> faultyCallable = () -> {
       throw fault;
     };
-    Module.ModuleSupplier faultySupplier = new Module.ModuleSupplier(false, path, faultyCallable);
+    Module.ModuleSupplier faultySupplier =
+        new Module.ModuleSupplier(submodule, path, faultyCallable);
     modules.put(path, faultySupplier);
     
     // A runnable that safely puts everything back the way it was.
@@ -1,8 +1,12 @@
 package org.mitre.synthea.engine;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.Lists;
 
 import java.io.File;
@@ -22,6 +26,7 @@ import org.apache.commons.math.ode.DerivativeException;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.mitre.synthea.helpers.Config;
 import org.simulator.math.odes.MultiTable;
 import org.simulator.math.odes.MultiTable.Block.Column;
 
@@ -142,6 +147,97 @@ public class PhysiologySimulatorTest {
     assertEquals(4, pngCount);
   }
   
+  @Test
+  public void testSimulatorPool() throws DerivativeException {
+    // use a duration no other test uses, so the pool starts out empty
+    String model = "circulation/Smith2004_CVS_human.xml";
+    PhysiologySimulator first = PhysiologySimulator.borrow(model, "runge_kutta", 0.01, 3.5);
+    PhysiologySimulator second = PhysiologySimulator.borrow(model, "runge_kutta", 0.01, 3.5);
+    assertNotSame(first, second);
+
+    Map<String,Double> inputs = new HashMap<String,Double>();
+    inputs.put("R_sys", 2.0);
+    MultiTable expected = first.run(inputs);
+    PhysiologySimulator.release(first);
+
+    // a released simulator is reused, and previous runs do not affect the next one
+    PhysiologySimulator reused = PhysiologySimulator.borrow(model, "runge_kutta", 0.01, 3.5);
+    assertSame(first, reused);
+    reused.run(new HashMap<String,Double>());
+    MultiTable results = reused.run(inputs);
+    assertEquals(expected.getRowCount(), results.getRowCount());
+    Column expectedPao = expected.getColumn("P_ao");
+    Column pao = results.getColumn("P_ao");
+    for (int i = 0; i < expectedPao.getRowCount(); i++) {
+      assertEquals(expectedPao.getValue(i), pao.getValue(i), 0.0001);
+    }
+    PhysiologySimulator.release(reused);
+    PhysiologySimulator.release(second);
+
+    // simulators with different settings are pooled separately
+    PhysiologySimulator other = PhysiologySimulator.borrow(model, "runge_kutta", 0.01, 2.5);
+    assertNotSame(first, other);
+    assertNotSame(second, other);
+    PhysiologySimulator.release(other);
+  }
+
+  @Test
+  public void testResultCache() throws DerivativeException {
+    Config.set("physiology.cache.quantization.R_sys", "0.1");
+    PhysiologySimulator.setResultCacheSize(10);
+    try {
+      PhysiologySimulator physio = new PhysiologySimulator(
+          "circulation/Smith2004_CVS_human.xml", "runge_kutta", 0.01, 2);
+      Map<String,Double> inputs = new HashMap<String,Double>();
+      inputs.put("R_sys", 2.02);
+      MultiTable results = physio.run(inputs);
+      // the quantized input is the one that gets simulated
+      assertEquals(2.0, results.getColumn("R_sys").getValue(0), 0.0001);
+
+      // inputs that round to the same value share the result
+      inputs.put("R_sys", 1.98);
+      assertSame(results, physio.run(inputs));
+      inputs.put("R_sys", 2.5);
+      assertNotSame(results, physio.run(inputs));
+
+      CacheStats stats = PhysiologySimulator.getResultCacheStats();
+      assertEquals(1, stats.hitCount());
+      assertEquals(2, stats.missCount());
+    } finally {
+      PhysiologySimulator.setResultCacheSize(0);
+      Config.remove("physiology.cache.quantization.R_sys");
+    }
+    assertNull(PhysiologySimulator.getResultCacheStats());
+  }
+
+  @Test
+  public void testResultCacheKeepsModelDefaults() throws DerivativeException {
+    String model = "circulation/Smith2004_CVS_human.xml";
+    MultiTable expected = new PhysiologySimulator(model, "runge_kutta", 0.01, 2)
+        .run(new HashMap<String,Double>());
+
+    // a step this coarse would change most model constants if they were rounded
+    Config.set("physiology.cache.quantization", "1");
+    PhysiologySimulator.setResultCacheSize(10);
+    try {
+      PhysiologySimulator physio = new PhysiologySimulator(model, "runge_kutta", 0.01, 2);
+      Map<String,Double> inputs = new HashMap<String,Double>();
+      inputs.put("R_sys", 1.2);
+      MultiTable results = physio.run(inputs);
+      assertEquals(1.0, results.getColumn("R_sys").getValue(0), 0.0001);
+      for (int c = 0; c < expected.getColumnCount(); c++) {
+        String name = expected.getColumnIdentifier(c);
+        if (!name.equals("R_sys")) {
+          assertEquals(name, expected.getColumn(c).getValue(0),
+              results.getColumn(name).getValue(0), 0.0);
+        }
+      }
+    } finally {
+      PhysiologySimulator.setResultCacheSize(0);
+      Config.set("physiology.cache.quantization", "0");
+    }
+  }
+
   @Test
   public void testGetSolvers() {
     Set<String> solvers = PhysiologySimulator.getSolvers();
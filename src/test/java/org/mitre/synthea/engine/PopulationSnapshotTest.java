@@ -0,0 +1,165 @@
+package org.mitre.synthea.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mitre.synthea.TestHelper;
+import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.world.agents.Payer;
+import org.mitre.synthea.world.agents.Person;
+import org.mitre.synthea.world.agents.Provider;
+
+public class PopulationSnapshotTest {
+  @Rule
+  public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  /**
+   * Configure settings across these tests.
+   * @throws Exception on test configuration loading errors.
+   */
+  @BeforeClass
+  public static void setup() throws Exception {
+    TestHelper.exportOff();
+    TestHelper.loadTestProperties();
+    Generator.DEFAULT_STATE = Config.get("test_state.default", "Massachusetts");
+  }
+
+  /**
+   * Clear the providers and payers before each test.
+   */
+  @Before
+  public void before() {
+    Provider.clear();
+    Payer.clear();
+  }
+
+  private static List<Person> createPeople(Generator generator, int count) {
+    List<Person> people = new ArrayList<Person>();
+    Random random = new Random(7L);
+    for (int i = 0; i < count; i++) {
+      long personSeed = random.nextLong();
+      Map<String, Object> demoAttributes =
+          generator.randomDemographics(new Random(personSeed));
+      people.add(generator.createPerson(personSeed, demoAttributes));
+    }
+    return people;
+  }
+
+  @Test
+  public void testWriteAndRead() throws Exception {
+    Generator generator = new Generator(1, 42L, 1L);
+    List<Person> people = createPeople(generator, 3);
+    File file = tmpFolder.newFile("population.snapshot");
+    try (PopulationSnapshot.Writer writer =
+        new PopulationSnapshot.Writer(file, generator.location)) {
+      for (int i = 0; i < people.size(); i++) {
+        writer.write(people.get(i), i);
+      }
+      assertEquals(people.size(), writer.size());
+    }
+
+    assertTrue(PopulationSnapshot.isSnapshot(file));
+    try (PopulationSnapshot.Reader reader =
+        new PopulationSnapshot.Reader(file, generator.location)) {
+      assertEquals(people.size(), reader.size());
+      for (int i = 0; i < people.size(); i++) {
+        PopulationSnapshot.Record record = reader.next();
+        assertNotNull(record);
+        assertEquals(i, record.index);
+        Person original = people.get(i);
+        Person person = record.read();
+        assertEquals(original.seed, person.seed);
+        assertEquals(original.lastUpdated, person.lastUpdated);
+        assertEquals(original.attributes.get(Person.NAME), person.attributes.get(Person.NAME));
+        assertEquals(original.record.encounters.size(), person.record.encounters.size());
+        // shared objects are resolved to the ones that are loaded, not copied
+        assertSame(generator.location, person.attributes.get(Person.LOCATION));
+        assertEquals(original.currentModules.size(), person.currentModules.size());
+        for (int m = 0; m < original.currentModules.size(); m++) {
+          assertSame(original.currentModules.get(m), person.currentModules.get(m));
+        }
+        for (int age = 0; age < original.payerHistory.length; age++) {
+          assertSame(original.payerHistory[age], person.payerHistory[age]);
+        }
+      }
+      assertNull(reader.next());
+    }
+  }
+
+  @Test
+  public void testReadUnfinishedSnapshot() throws Exception {
+    Generator generator = new Generator(1, 42L, 1L);
+    List<Person> people = createPeople(generator, 2);
+    File file = tmpFolder.newFile("population.snapshot");
+    try (PopulationSnapshot.Writer writer =
+        new PopulationSnapshot.Writer(file, generator.location)) {
+      writer.write(people.get(0), 0);
+      writer.write(people.get(1), 1);
+    }
+    // cut off the trailer (12 bytes), the index (8 + 12 bytes per person) and the last byte of
+    // the second person, as if the generator was stopped while writing them
+    byte[] bytes = Files.readAllBytes(file.toPath());
+    File unfinished = tmpFolder.newFile("unfinished.snapshot");
+    Files.write(unfinished.toPath(), Arrays.copyOf(bytes, bytes.length - 12 - 8 - 24 - 1));
+
+    try (PopulationSnapshot.Reader reader =
+        new PopulationSnapshot.Reader(unfinished, generator.location)) {
+      assertEquals(-1, reader.size());
+      PopulationSnapshot.Record record = reader.next();
+      assertNotNull(record);
+      assertEquals(people.get(0).seed, record.read().seed);
+      assertNull(reader.next());
+    }
+  }
+
+  @Test
+  public void testSerializedPopulationIsNotSnapshot() throws Exception {
+    File file = tmpFolder.newFile("population.ser");
+    try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(file))) {
+      oos.writeObject(new ArrayList<Person>());
+    }
+    assertFalse(PopulationSnapshot.isSnapshot(file));
+  }
+
+  @Test
+  public void testGeneratorSavesAndUpdatesSnapshot() throws Exception {
+    File file = tmpFolder.newFile("population.snapshot");
+    Generator.GeneratorOptions options = new Generator.GeneratorOptions();
+    options.population = 3;
+    options.seed = 42L;
+    options.clinicianSeed = 1L;
+    options.updatedPopulationSnapshotPath = file;
+    Generator generator = new Generator(options);
+    generator.run();
+    int saved = generator.stats.get("alive").get() + generator.stats.get("dead").get();
+
+    Generator.GeneratorOptions updateOptions = new Generator.GeneratorOptions();
+    updateOptions.seed = 42L;
+    updateOptions.clinicianSeed = 1L;
+    updateOptions.initialPopulationSnapshotPath = file;
+    updateOptions.daysToTravelForward = 30;
+    Generator updater = new Generator(updateOptions);
+    updater.run();
+    int updated = updater.stats.get("alive").get() + updater.stats.get("dead").get();
+    assertEquals(saved, updated);
+  }
+}
@@ -0,0 +1,250 @@
+package org.mitre.synthea.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.mitre.synthea.TestHelper;
+import org.mitre.synthea.world.agents.Person;
+import org.mitre.synthea.world.concepts.HealthRecord;
+import org.mitre.synthea.world.concepts.HealthRecord.Code;
+
+public class StateHistoryTest {
+  private static final String[] NAMES = {"Initial", "Delay", "Encounter", "CarePlan", "Terminal"};
+
+  private State state(String name, long entered, Long exited) {
+    State state = new State.Simple();
+    state.name = name;
+    state.entered = entered;
+    state.exited = exited;
+    return state;
+  }
+
+  private void assertSameAnswers(Person indexed, Person linear, long time) {
+    for (String name : NAMES) {
+      for (String since : Arrays.asList(null, "Delay", "CarePlan", name)) {
+        for (Long within : Arrays.asList(null, time - 10, time - 50, time)) {
+          assertEquals(name + " since " + since + " within " + within,
+              linear.hadPriorState(name, since, within),
+              indexed.hadPriorState(name, since, within));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testPriorStateMatchesLinearSearch() {
+    Person indexed = new Person(0L);
+    Person linear = new Person(0L);
+    indexed.history = new StateHistory();
+    linear.history = new LinkedList<State>();
+
+    Random random = new Random(42L);
+    long time = 0L;
+    for (int i = 0; i < 200; i++) {
+      time += random.nextInt(5);
+      State state = state(NAMES[random.nextInt(NAMES.length)], time,
+          random.nextInt(10) == 0 ? null : time + random.nextInt(3));
+      indexed.history.add(0, state);
+      linear.history.add(0, state);
+      assertSameAnswers(indexed, linear, time);
+    }
+
+    // modifications other than adding to the front are also supported
+    State oldest = state("Oldest", 0L, 0L);
+    indexed.history.add(oldest);
+    linear.history.add(oldest);
+    indexed.history.remove(10);
+    linear.history.remove(10);
+    assertEquals(linear.history, indexed.history);
+    assertSameAnswers(indexed, linear, time);
+    assertEquals(linear.hadPriorState("Oldest", null, null),
+        indexed.hadPriorState("Oldest", null, null));
+  }
+
+  @Test
+  public void testAddAllAtFront() {
+    List<State> history = new StateHistory();
+    history.add(0, state("Initial", 0L, 0L));
+    history.add(0, state("CallSubmodule", 0L, null));
+    // submodule histories are added at the front, most recent first
+    List<State> submodule = Arrays.asList(state("Terminal", 2L, null),
+        state("Delay", 1L, 2L), state("Initial", 1L, 1L));
+    history.addAll(0, submodule);
+
+    assertEquals(5, history.size());
+    assertEquals("Terminal", history.get(0).name);
+    assertEquals("Initial", history.get(2).name);
+    assertEquals("CallSubmodule", history.get(3).name);
+    assertTrue(((StateHistory) history).hadPriorState("Delay", "CallSubmodule", null));
+    assertFalse(((StateHistory) history).hadPriorState("CallSubmodule", "Delay", null));
+  }
+
+  @Test
+  public void testFindEntry() {
+    Person person = new Person(0L);
+    StateHistory history = new StateHistory();
+    Code code = new Code("SNOMED-CT", "44054006", "Diabetes");
+    assertNull(history.findEntry(HealthRecord.Entry.class, code));
+
+    State onset = state("Diabetes", 0L, 0L);
+    onset.entry = person.record.new Entry(0L, code.code);
+    onset.entry.codes.add(code);
+    history.add(0, onset);
+    // the most recent state is found even before it has been indexed
+    assertSame(onset.entry, history.findEntry(HealthRecord.Entry.class, code));
+    assertNull(history.findEntry(HealthRecord.Medication.class, code));
+
+    State medication = state("Metformin", 1L, 1L);
+    medication.entry = person.record.medicationStart(1L, code.code, false);
+    medication.entry.codes.add(code);
+    history.add(0, medication);
+    history.add(0, state("Delay", 1L, 2L));
+
+    assertSame(medication.entry, history.findEntry(HealthRecord.Entry.class, code));
+    assertSame(medication.entry, history.findEntry(HealthRecord.Medication.class, code));
+    assertNull(history.findEntry(HealthRecord.CarePlan.class, code));
+    assertNull(history.findEntry(HealthRecord.Entry.class,
+        new Code("SNOMED-CT", "12345", "Unknown")));
+  }
+
+  @Test
+  public void testFinishedStatesAreCompacted() throws Exception {
+    Module module = TestHelper.getFixture("condition_onset.json");
+    Person person = new Person(0L);
+    Code code = new Code("SNOMED-CT", "73211009", "Diabetes mellitus");
+    StateHistory history = new StateHistory();
+
+    State initial = module.getState("Initial").clone();
+    initial.entered = 0L;
+    initial.exited = 0L;
+    history.add(0, initial);
+    // not diagnosed yet, so a later encounter may still change it
+    State onset = module.getState("Diabetes").clone();
+    onset.entered = 0L;
+    onset.exited = 0L;
+    history.add(0, onset);
+    State delay = module.getState("6_Month_Delay").clone();
+    delay.entered = 0L;
+    delay.exited = 10L;
+    history.add(0, delay);
+    State terminal = module.getState("Terminal").clone();
+    history.add(0, terminal);
+
+    assertEquals(4, history.size());
+    assertSame(terminal, history.get(0));
+    assertSame(onset, history.get(2));
+    State copy = history.get(1);
+    assertNotSame(delay, copy);
+    assertTrue(copy instanceof State.Delay);
+    assertEquals("6_Month_Delay", copy.name);
+    assertSame(module, copy.module);
+    assertEquals(0L, (long) copy.entered);
+    assertEquals(10L, (long) copy.exited);
+    assertEquals("Initial", history.get(3).name);
+    assertNull(history.get(3).entry);
+
+    assertTrue(history.hadPriorState("Diabetes", null, null));
+    assertTrue(history.hadPriorState("Diabetes", null, -1L));
+    assertFalse(history.hadPriorState("Diabetes", null, 0L));
+    assertFalse(history.hadPriorState("Diabetes", "6_Month_Delay", null));
+
+    // the onset is diagnosed after the person moved on
+    assertNull(history.findEntry(HealthRecord.Entry.class, code));
+    onset.entry = person.record.new Entry(20L, code.code);
+    onset.entry.codes.add(code);
+    assertSame(onset.entry, history.findEntry(HealthRecord.Entry.class, code));
+  }
+
+  @Test
+  public void testAddAllFromHistoryKeepsCompactStates() throws Exception {
+    Module module = TestHelper.getFixture("condition_onset.json");
+    Person person = new Person(0L);
+    Code code = new Code("SNOMED-CT", "73211009", "Diabetes mellitus");
+
+    StateHistory submodule = new StateHistory();
+    State initial = module.getState("Initial").clone();
+    initial.entered = 1L;
+    initial.exited = 1L;
+    initial.entry = person.record.new Entry(1L, code.code);
+    initial.entry.codes.add(code);
+    submodule.add(0, initial);
+    State delay = module.getState("6_Month_Delay").clone();
+    delay.entered = 1L;
+    delay.exited = 5L;
+    submodule.add(0, delay);
+    State terminal = module.getState("Terminal").clone();
+    submodule.add(0, terminal);
+    assertTrue(submodule.isCompact(2));
+    assertTrue(submodule.isCompact(1));
+    assertFalse(submodule.isCompact(0));
+
+    StateHistory history = new StateHistory();
+    history.add(0, state("CallSubmodule", 0L, null));
+    history.addAll(0, submodule);
+
+    assertEquals(4, history.size());
+    assertSame(terminal, history.get(0));
+    assertEquals("6_Month_Delay", history.nameAt(1));
+    assertEquals(State.Delay.class, history.typeAt(1));
+    assertEquals(5L, (long) history.get(1).exited);
+    assertEquals("Initial", history.nameAt(2));
+    assertSame(initial.entry, history.get(2).entry);
+    assertSame(initial.entry, history.findEntry(HealthRecord.Entry.class, code));
+    assertEquals("CallSubmodule", history.nameAt(3));
+    assertFalse(history.isCompact(3));
+    assertTrue(history.hadPriorState("6_Month_Delay", "CallSubmodule", null));
+    assertFalse(history.hadPriorState("6_Month_Delay", null, 5L));
+  }
+
+  @Test
+  public void testPriorStateWithinMatchesLinearSearchForCompactStates() throws Exception {
+    Module module = TestHelper.getFixture("condition_onset.json");
+    String[] names = {"Initial", "Diabetes", "6_Month_Delay", "ED_Visit", "Appendicitis"};
+    StateHistory indexed = new StateHistory();
+    List<State> linear = new LinkedList<State>();
+
+    Random random = new Random(7L);
+    long time = 0L;
+    for (int i = 0; i < 300; i++) {
+      time += random.nextInt(5);
+      State state = module.getState(names[random.nextInt(names.length)]).clone();
+      state.entered = time;
+      // exits are mostly in order, but not always
+      state.exited = random.nextInt(20) == 0 ? null
+          : time + random.nextInt(3) - (random.nextInt(30) == 0 ? 40 : 0);
+      indexed.add(0, state);
+      linear.add(0, state);
+      for (String name : names) {
+        for (Long within : Arrays.asList(time - 200, time - 50, time - 10, time)) {
+          boolean expected = false;
+          for (State previous : linear) {
+            if (previous.exited != null && previous.exited <= within) {
+              break;
+            }
+            if (previous.name.equals(name)) {
+              expected = true;
+              break;
+            }
+          }
+          assertEquals(name + " within " + within + " at " + i, expected,
+              indexed.hadPriorState(name, null, within));
+        }
+      }
+    }
+    int compact = 0;
+    for (int i = 0; i < indexed.size(); i++) {
+      compact += indexed.isCompact(i) ? 1 : 0;
+    }
+    assertTrue(compact > 100);
+  }
+}
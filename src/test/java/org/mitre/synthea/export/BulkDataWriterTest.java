@@ -0,0 +1,127 @@
+package org.mitre.synthea.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mitre.synthea.helpers.Config;
+
+public class BulkDataWriterTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @After
+  public void tearDown() {
+    Config.set("exporter.fhir.bulk_data.sharded", "false");
+    Config.set("exporter.fhir.bulk_data.merge_shards", "true");
+    Config.set("exporter.fhir.bulk_data.max_open_files", "256");
+  }
+
+  private void writeFromThreads(Path directory, int threadCount, int linesPerThread)
+      throws Exception {
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < threadCount; t++) {
+      final int threadId = t;
+      threads.add(new Thread(() -> {
+        for (int i = 0; i < linesPerThread; i++) {
+          try {
+            BulkDataWriter.getInstance().append(directory, "Observation",
+                Collections.singletonList("{\"id\":\"" + threadId + "-" + i + "\"}"));
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      }));
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+  }
+
+  @Test
+  public void testSharedFileIsCompleteAfterEachAppend() throws Exception {
+    Path directory = tempFolder.newFolder().toPath();
+    writeFromThreads(directory, 4, 25);
+
+    // readable before close
+    List<String> lines = Files.readAllLines(directory.resolve("Observation.ndjson"));
+    assertEquals(100, lines.size());
+    BulkDataWriter.getInstance().close();
+    lines = Files.readAllLines(directory.resolve("Observation.ndjson"));
+    assertEquals(100, lines.size());
+    assertEquals(100, lines.stream().distinct().count());
+  }
+
+  @Test
+  public void testShardsAreMergedOnClose() throws Exception {
+    Config.set("exporter.fhir.bulk_data.sharded", "true");
+    Path directory = tempFolder.newFolder().toPath();
+    writeFromThreads(directory, 4, 25);
+
+    File[] shards = directory.toFile().listFiles((dir, name) -> name.matches(
+        "Observation\\.\\d{4}\\.ndjson"));
+    assertEquals(4, shards.length);
+
+    BulkDataWriter.getInstance().close();
+    List<String> lines = Files.readAllLines(directory.resolve("Observation.ndjson"));
+    assertEquals(100, lines.size());
+    assertEquals(100, lines.stream().distinct().count());
+    assertEquals(1, directory.toFile().list().length);
+  }
+
+  @Test
+  public void testShardsAreKeptWithoutMerge() throws Exception {
+    Config.set("exporter.fhir.bulk_data.sharded", "true");
+    Config.set("exporter.fhir.bulk_data.merge_shards", "false");
+    Path directory = tempFolder.newFolder().toPath();
+    writeFromThreads(directory, 2, 10);
+    BulkDataWriter.getInstance().close();
+
+    assertFalse(directory.resolve("Observation.ndjson").toFile().exists());
+    int total = 0;
+    for (File shard : directory.toFile().listFiles()) {
+      assertTrue(shard.getName().startsWith("Observation."));
+      total += Files.readAllLines(shard.toPath()).size();
+    }
+    assertEquals(20, total);
+  }
+
+  @Test
+  public void testLeastRecentlyWrittenFilesAreClosedAndReopened() throws Exception {
+    Config.set("exporter.fhir.bulk_data.max_open_files", "2");
+    List<Path> directories = new ArrayList<Path>();
+    for (int d = 0; d < 5; d++) {
+      directories.add(tempFolder.newFolder().toPath());
+    }
+    // alternate between more folders than there may be open files, so every file is closed and
+    // reopened several times
+    for (int i = 0; i < 10; i++) {
+      for (Path directory : directories) {
+        BulkDataWriter.getInstance().append(directory, "Observation",
+            Collections.singletonList("{\"id\":\"" + i + "\"}"));
+      }
+    }
+    BulkDataWriter.getInstance().close();
+
+    for (Path directory : directories) {
+      List<String> lines = Files.readAllLines(directory.resolve("Observation.ndjson"));
+      assertEquals(10, lines.size());
+      assertEquals("{\"id\":\"9\"}", lines.get(9));
+    }
+  }
+}
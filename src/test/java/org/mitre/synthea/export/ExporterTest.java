@@ -1,11 +1,20 @@
 package org.mitre.synthea.export;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mitre.synthea.TestHelper.years;
 
+import ca.uhn.fhir.parser.IParser;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mitre.synthea.TestHelper;
 import org.mitre.synthea.engine.Generator;
 import org.mitre.synthea.helpers.Config;
@@ -18,6 +27,7 @@ import org.mitre.synthea.world.concepts.HealthRecord.Code;
 import org.mitre.synthea.world.concepts.HealthRecord.Encounter;
 import org.mitre.synthea.world.concepts.HealthRecord.EncounterType;
 import org.mitre.synthea.world.concepts.HealthRecord.Medication;
+import org.mitre.synthea.world.concepts.HealthRecord.Procedure;
 import org.mitre.synthea.world.geography.Location;
 
 public class ExporterTest {
@@ -29,6 +39,9 @@ public class ExporterTest {
   private HealthRecord record;
   
   private static final HealthRecord.Code DUMMY_CODE = new HealthRecord.Code("", "", "");
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
   
   /**
    * Setup test data.
@@ -56,6 +69,34 @@ public class ExporterTest {
     }
   }
 
+  @Test
+  public void testBulkDataExportReusesParsers() throws Exception {
+    TestHelper.exportOff();
+    File tempOutputFolder = tempFolder.newFolder();
+    Config.set("exporter.baseDirectory", tempOutputFolder.toString());
+    Config.set("exporter.fhir.export", "true");
+    Config.set("exporter.fhir.bulk_data", "true");
+
+    int numberOfPeople = 2;
+    Generator generator = new Generator(numberOfPeople);
+    generator.options.overflow = false;
+    for (int i = 0; i < numberOfPeople; i++) {
+      generator.generatePerson(i);
+    }
+    Config.set("exporter.fhir.export", "false");
+    Config.set("exporter.fhir.bulk_data", "false");
+
+    File patients = new File(new File(tempOutputFolder, "fhir"), "Patient.ndjson");
+    List<String> lines = Files.readAllLines(patients.toPath());
+    assertEquals(numberOfPeople, lines.size());
+    IParser parser = FhirR4.getContext().newJsonParser();
+    for (String line : lines) {
+      org.hl7.fhir.r4.model.Patient patient =
+          parser.parseResource(org.hl7.fhir.r4.model.Patient.class, line);
+      assertTrue(patient.hasId());
+    }
+  }
+
   @Test
   public void testExportFilterSimpleCutoff() {
     record.encounterStart(time - years(8), EncounterType.WELLNESS);
@@ -251,8 +292,30 @@ public class ExporterTest {
     assertEquals(1, filtered.record.encounters.size());
     assertEquals(1, filtered.record.encounters.get(0).conditions.size());
     assertEquals("something_permanent", filtered.record.encounters.get(0).conditions.get(0).type);
-    assertEquals(1, record.encounters.get(0).claim.items.size());
-    assertEquals("something_permanent", record.encounters.get(0).claim.items.get(0).type);
+    List<HealthRecord.Entry> items = filtered.record.encounters.get(0).claim.items;
+    assertEquals(1, items.size());
+    assertEquals("something_permanent", items.get(0).type);
+    assertSame(filtered.record.encounters.get(0).conditions.get(0), items.get(0));
+  }
+
+  @Test
+  public void testExportFilterShouldNotChangePerson() {
+    record.encounterStart(time - years(18), EncounterType.EMERGENCY);
+    Procedure procedure = record.procedure(time - years(18), "appendectomy");
+    record.encounterStart(time - years(4), EncounterType.WELLNESS);
+    Medication med = record.medicationStart(time - years(4), "placebitol", true);
+    med.stop = time + years(1);
+
+    Person filtered = Exporter.filterForExport(patient, yearsToKeep, endTime);
+
+    assertEquals(1, filtered.record.encounters.size());
+    assertEquals(0L, filtered.record.encounters.get(0).medications.get(0).stop);
+    // the patient still has the whole history
+    assertEquals(2, record.encounters.size());
+    assertSame(procedure, record.encounters.get(0).procedures.get(0));
+    assertSame(med, record.encounters.get(1).medications.get(0));
+    assertEquals(time + years(1), med.stop);
+    assertSame(record, patient.record);
   }
 
 }
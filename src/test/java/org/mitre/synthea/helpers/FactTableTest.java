@@ -2,6 +2,8 @@ package org.mitre.synthea.helpers;
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -37,4 +39,49 @@ public class FactTableTest {
     Assert.assertTrue(output.contains(he + ",He"));    
   }
 
+  @Test
+  public void testConcurrentFacts() throws Exception {
+    FactTable table = new FactTable();
+    table.setHeader("ID,ELEMENT");
+    table.setNextId(100);
+
+    // every thread adds the same keys, in a different order
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final int offset = t * 25;
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < 100; i++) {
+          String key = "E" + ((i + offset) % 100);
+          table.addFact(key, key);
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    // each key has exactly one ID, and no IDs were skipped
+    Set<Integer> ids = new HashSet<Integer>();
+    for (int i = 0; i < 100; i++) {
+      int id = table.getFactId("E" + i);
+      Assert.assertEquals("E" + i, table.getFactById(id));
+      Assert.assertEquals("E" + i, table.getFactByKey("E" + i));
+      ids.add(id);
+    }
+    Assert.assertEquals(100, ids.size());
+    Assert.assertTrue(ids.contains(100));
+    Assert.assertTrue(ids.contains(199));
+
+    // facts are written in ID order
+    StringWriter writer = new StringWriter();
+    table.write(writer);
+    String[] lines = writer.toString().split(System.lineSeparator());
+    Assert.assertEquals(101, lines.length);
+    for (int i = 1; i < lines.length; i++) {
+      Assert.assertTrue(lines[i].startsWith((99 + i) + ","));
+    }
+  }
 }
@@ -3,10 +3,15 @@ package org.mitre.synthea.helpers;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 import org.mitre.synthea.TestHelper;
@@ -46,19 +51,19 @@ public class TransitionMetricsTest {
     metrics.printStats(1, modules); // print it to ensure no exceptions. don't parse the output
 
     Metric m = metrics.getMetric(example.name, "Initial");
-    assertEquals(1, m.entered.get()); // 1 person entered the state
-    assertEquals(0, m.current.get()); // none currently in this state
+    assertEquals(1, m.entered); // 1 person entered the state
+    assertEquals(0, m.current); // none currently in this state
     
-    Map<String,AtomicInteger> dests = m.destinations;
+    Map<String, Long> dests = m.destinations;
     assertEquals(null, dests.get("Age_Guard")); // the 1 person did not go here
-    assertEquals(1, dests.get("Terminal").get()); // they went here
+    assertEquals(1L, (long) dests.get("Terminal")); // they went here
     
     m = metrics.getMetric(example.name, "Pre_Examplitis");
-    assertEquals(0, m.entered.get()); // nobody hit this
+    assertEquals(0, m.entered); // nobody hit this
     
     m = metrics.getMetric(example.name, "Terminal");
-    assertEquals(1, m.entered.get()); // 1 person hit this
-    assertEquals(1, m.current.get()); // and is still there
+    assertEquals(1, m.entered); // 1 person hit this
+    assertEquals(1, m.current); // and is still there
     
     metrics = new TransitionMetrics();
     for (long seed : new long[] {31255L, 0L, 12345L}) {
@@ -76,19 +81,31 @@ public class TransitionMetricsTest {
     metrics.printStats(3, modules); // print it to ensure no exceptions
 
     m = metrics.getMetric(example.name, "Initial");
-    assertEquals(3, m.entered.get()); // 3 people entered the state
-    assertEquals(0, m.current.get()); // none currently in this state
+    assertEquals(3, m.entered); // 3 people entered the state
+    assertEquals(0, m.current); // none currently in this state
     
     dests = m.destinations;
     assertEquals(null, dests.get("Terminal")); // the 3 people did not go here
-    assertEquals(3, dests.get("Age_Guard").get()); // they went here
+    assertEquals(3L, (long) dests.get("Age_Guard")); // they went here
     
     m = metrics.getMetric(example.name, "Pre_Examplitis");
-    assertEquals(1, m.entered.get());
+    assertEquals(1, m.entered);
     
     m = metrics.getMetric(example.name, "Terminal");
-    assertEquals(3, m.entered.get());
-    assertEquals(3, m.current.get());
+    assertEquals(3, m.entered);
+    assertEquals(3, m.current);
+
+    // snapshots contain the same totals
+    File snapshot = File.createTempFile("transition_metrics", ".json");
+    metrics.writeSnapshot(snapshot);
+    JsonObject json = new JsonParser().parse(new String(Files.readAllBytes(snapshot.toPath()),
+        StandardCharsets.UTF_8)).getAsJsonObject();
+    JsonObject terminal = json.getAsJsonObject(example.name).getAsJsonObject("Terminal");
+    assertEquals(3, terminal.get("entered").getAsLong());
+    assertEquals(3, terminal.get("current").getAsLong());
+    assertEquals(3, json.getAsJsonObject(example.name).getAsJsonObject("Initial")
+        .getAsJsonObject("destinations").get("Age_Guard").getAsLong());
+    snapshot.delete();
   }
   
   private long run(Person person, Module singleModule, long start) {
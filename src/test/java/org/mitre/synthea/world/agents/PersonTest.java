@@ -10,14 +10,20 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.Period;
+import java.time.ZoneId;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import org.mitre.synthea.TestHelper;
+import org.mitre.synthea.engine.ExpressedSymptom;
 import org.mitre.synthea.engine.Generator;
 import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.world.concepts.VitalSign;
@@ -96,6 +102,56 @@ public class PersonTest {
       assertEquals(original.records.keySet(), rehydrated.records.keySet());
     }
     assertTrue(Arrays.equals(original.payerHistory, rehydrated.payerHistory));
+    assertEquals(original.symptomTotal(), rehydrated.symptomTotal());
+  }
+
+  @Test
+  public void testSymptomTotalAndLargestSymptom() throws Exception {
+    assertEquals(0, person.symptomTotal());
+    person.setSymptom("Flu", "Flu", "Fever", 0L, 30, false);
+    person.setSymptom("Appendicitis", "Appendicitis", "Pain", 0L, 40, false);
+    person.setSymptom("Injury", "Injury", "Pain", 0L, 60, false);
+    assertEquals(90, person.symptomTotal());
+    assertEquals(60, person.getSymptom("Pain"));
+
+    // addressing the largest symptom addresses its largest source
+    person.addressLargestSymptom();
+    assertEquals(40, person.getSymptom("Pain"));
+    assertEquals(70, person.symptomTotal());
+
+    // a new value replaces the previous value of the source
+    person.setSymptom("Flu", "Flu", "Fever", 1L, 10, false);
+    assertEquals(50, person.symptomTotal());
+    person.addressLargestSymptom();
+    assertEquals(0, person.getSymptom("Pain"));
+    person.addressLargestSymptom();
+    assertEquals(0, person.symptomTotal());
+    // nothing is left to address
+    person.addressLargestSymptom();
+    assertEquals(0, person.symptomTotal());
+
+    // the totals are computed again after deserialization
+    person.setSymptom("Flu", "Flu", "Fever", 2L, 25, false);
+    Person rehydrated = serializeAndDeserialize(person);
+    assertEquals(25, rehydrated.symptomTotal());
+    rehydrated.setSymptom("Injury", "Injury", "Pain", 2L, 15, false);
+    assertEquals(40, rehydrated.symptomTotal());
+    assertEquals(25, person.symptomTotal());
+  }
+
+  @Test
+  public void testDeserializedSymptomSourceUpdatesTotal() throws Exception {
+    person.setSymptom("Flu", "Flu", "Fever", 0L, 30, false);
+    Person rehydrated = serializeAndDeserialize(person);
+
+    // the source refers to its symptom through the serialized outer instance only
+    ExpressedSymptom.SymptomSource source =
+        rehydrated.symptoms.get("Fever").getSources().get("Flu");
+    source.addInfo("Flu", 1L, 45, false);
+    assertEquals(45, rehydrated.getSymptom("Fever"));
+    assertEquals(45, rehydrated.symptomTotal());
+    source.resolve();
+    assertEquals(0, rehydrated.symptomTotal());
   }
 
   @Test
@@ -143,6 +199,30 @@ public class PersonTest {
     assertEquals(expectedAge, person.ageInMonths(now));
   }
   
+  @Test
+  public void testAgeMatchesPeriodAcrossCentury() {
+    ZoneId zone = ZoneId.systemDefault();
+    // include birthdays at the end of long months and on a leap day
+    long[] birthdates = {timestamp(1950, 1, 31, 23, 59, 0), timestamp(1960, 2, 29, 0, 0, 0),
+        timestamp(1999, 8, 15, 12, 30, 0), timestamp(2016, 4, 7, 17, 14, 0)};
+    for (long birthdate : birthdates) {
+      person.attributes.put(Person.BIRTHDATE, birthdate);
+      LocalDate birthday = Instant.ofEpochMilli(birthdate).atZone(zone).toLocalDate();
+      long end = birthdate + TimeUnit.DAYS.toMillis(100 * 365);
+      // 13 hour steps reach every day and different times of day
+      for (long time = birthdate - TimeUnit.DAYS.toMillis(60); time < end;
+          time += TimeUnit.HOURS.toMillis(13)) {
+        Period period = Period.between(birthday,
+            Instant.ofEpochMilli(time).atZone(zone).toLocalDate());
+        double years = period.getYears() + period.getMonths() / 12.0
+            + period.getDays() / 365.2425;
+        assertEquals(Math.max(0, period.getYears()), person.ageInYears(time));
+        assertEquals(Math.max(0, period.toTotalMonths()), person.ageInMonths(time));
+        assertEquals(Math.max(0, years), person.ageInDecimalYears(time), 0.0);
+      }
+    }
+  }
+
   @Test(expected = IllegalArgumentException.class)
   public void testVitalSignNaN() {
     person.setVitalSign(VitalSign.HEIGHT, Double.NaN);
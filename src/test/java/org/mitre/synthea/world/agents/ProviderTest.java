@@ -1,13 +1,18 @@
 package org.mitre.synthea.world.agents;
 
+import com.google.common.collect.Table;
+
+import java.awt.geom.Point2D;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -229,4 +234,84 @@ public class ProviderTest {
            }
          });
   }
+
+  @Test
+  public void testConcurrentUtilization() throws Exception {
+    Provider provider = new Provider();
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final int offset = t;
+      threads[t] = new Thread(() -> {
+        // each thread starts at a different year, so that the years grow in both directions
+        for (int i = 0; i < 1000; i++) {
+          int year = 1950 + ((i + offset * 37) % 100);
+          provider.incrementEncounters(EncounterType.WELLNESS, year);
+          provider.incrementLabs(year);
+          provider.addRevenue(0.5);
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    Table<Integer, String, AtomicInteger> utilization = provider.getUtilization();
+    Assert.assertEquals(100, utilization.rowKeySet().size());
+    Assert.assertEquals(40, utilization.get(1950, Provider.ENCOUNTERS).get());
+    Assert.assertEquals(40, utilization.get(2049, Provider.LABS).get());
+    Assert.assertEquals(40,
+        utilization.get(1999, Provider.ENCOUNTERS + "-" + EncounterType.WELLNESS).get());
+    Assert.assertNull(utilization.get(1999, Provider.PROCEDURES));
+    Assert.assertEquals(4000, provider.getEncounterCount());
+    Assert.assertEquals(2000.0, provider.getRevenue(), 0.001);
+  }
+
+  @Test
+  public void testIndexMatchesLinearSearch() {
+    Provider.loadProviders(location, 1L);
+    ProviderIndex index = new ProviderIndex(Provider.getProviderList(), 2.0, 0, 0);
+    // a small cache, so that cached and evicted cells are both searched
+    ProviderIndex cached = new ProviderIndex(Provider.getProviderList(), 2.0, 20, 0.05);
+    Person person = new Person(0L);
+    EncounterType[] services = {EncounterType.WELLNESS, EncounterType.EMERGENCY, null};
+    for (int i = 0; i < 200; i++) {
+      location.assignPoint(person, location.randomCityName(person.random));
+      Point2D.Double point = person.getLonLat();
+      // move some points away from the city centers, so that not every search is short
+      point.setLocation(point.x + person.rand(-1.0, 1.0), point.y + person.rand(-1.0, 1.0));
+      if (i % 2 == 0) {
+        person.attributes.put("veteran", true);
+      } else {
+        person.attributes.remove("veteran");
+      }
+      for (EncounterType service : services) {
+        List<Provider> within = new ArrayList<Provider>();
+        List<Provider> nearest = new ArrayList<Provider>();
+        double minDistance = 2.0;
+        for (Provider provider : Provider.getProviderList()) {
+          if (!provider.accepts(person, 0) || (service != null && !provider.hasService(service))) {
+            continue;
+          }
+          double distance = provider.distance(person);
+          if (distance <= 0.5) {
+            within.add(provider);
+          }
+          if (distance < minDistance) {
+            nearest.clear();
+            minDistance = distance;
+          }
+          if (distance == minDistance) {
+            nearest.add(provider);
+          }
+        }
+        Assert.assertEquals(within, index.within(person, service, 0.5));
+        Assert.assertEquals(nearest, index.nearest(person, service, false));
+        Assert.assertEquals(within, cached.within(person, service, 0.5));
+        Assert.assertEquals(nearest, cached.nearest(person, service, false));
+      }
+    }
+  }
 }
@@ -3,6 +3,9 @@ package org.mitre.synthea.world.concepts;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.math.BigDecimal;
+import java.util.List;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.mitre.synthea.helpers.Config;
@@ -73,4 +76,20 @@ public class CostsTest {
     double expectedCost = Double.parseDouble(Config.get("generate.costs.default_medication_cost"));
     assertEquals(expectedCost, cost, 0.01); // assert the cost is within $0.01
   }
-}
\ No newline at end of file
+
+  @Test public void testExportViewDeterminesCostsInSameOrder() {
+    Code code = new Code("RxNorm","705129","Nitroglycerin 0.4 MG/ACTUAT Mucosal Spray");
+    Entry first = person.record.medicationStart(time, "first", true);
+    first.codes.add(code);
+    Entry second = person.record.medicationStart(time, "second", true);
+    second.codes.add(code);
+
+    // the view draws costs from a copy of the generator, leaving the person's unchanged
+    Person view = person.exportView();
+    List<HealthRecord.Medication> medications = view.record.encounters.get(0).medications;
+    BigDecimal secondCost = medications.get(1).getCost();
+    BigDecimal firstCost = medications.get(0).getCost();
+    assertEquals(secondCost, second.getCost());
+    assertEquals(firstCost, first.getCost());
+  }
+}
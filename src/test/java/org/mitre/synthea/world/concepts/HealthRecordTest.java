@@ -7,6 +7,7 @@ import org.mitre.synthea.world.agents.Payer;
 import org.mitre.synthea.world.agents.Person;
 import org.mitre.synthea.world.concepts.HealthRecord.Encounter;
 import org.mitre.synthea.world.concepts.HealthRecord.EncounterType;
+import org.mitre.synthea.world.concepts.HealthRecord.Observation;
 import org.mitre.synthea.world.concepts.HealthRecord.Report;
 
 public class HealthRecordTest {
@@ -76,4 +77,40 @@ public class HealthRecordTest {
     Assert.assertEquals("B", report.observations.get(1).value);
     Assert.assertEquals("C", report.observations.get(2).value);
   } 
+
+  @Test
+  public void testLatestObservation() {
+    Person person = new Person(0L);
+    person.setPayerAtTime(time, noInsurance);
+    HealthRecord record = new HealthRecord(person);
+    Assert.assertNull(record.getLatestObservation("A"));
+
+    Encounter first = record.encounterStart(time, EncounterType.WELLNESS);
+    Observation a1 = record.observation(time, "A", 1);
+    record.observation(time, "A", 2);
+    // the first observation of the type in the latest encounter is found
+    Assert.assertSame(a1, record.getLatestObservation("A"));
+
+    record.encounterStart(time + 1, EncounterType.WELLNESS);
+    Observation a3 = record.observation(time + 1, "A", 3);
+    Observation b1 = record.observation(time + 1, "B", 1);
+    Assert.assertSame(a3, record.getLatestObservation("A"));
+    Assert.assertSame(b1, record.getLatestObservation("B"));
+
+    // adding to an earlier encounter does not hide the later observation
+    Observation b0 = first.addObservation(time, "B", 0);
+    Assert.assertSame(b1, record.getLatestObservation("B"));
+
+    // observations moved into a multi-observation are no longer found
+    Observation multi = record.multiObservation(time + 1, "M", 1);
+    Assert.assertSame(b1, multi.observations.get(0));
+    Assert.assertSame(b0, record.getLatestObservation("B"));
+    Assert.assertSame(multi, record.getLatestObservation("M"));
+
+    // removing encounters requires the index to be rebuilt
+    record.encounters.remove(1);
+    record.resetObservationIndex();
+    Assert.assertSame(a1, record.getLatestObservation("A"));
+    Assert.assertNull(record.getLatestObservation("M"));
+  }
 }